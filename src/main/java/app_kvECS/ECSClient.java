@@ -35,6 +35,7 @@ public class ECSClient implements Runnable {
             put("removeNodes", 1); // remove at least one node
             put("quit", 0);
             put("clear", 0);
+            put("storeType", 1);
         }
     };
 
@@ -66,13 +67,15 @@ public class ECSClient implements Runnable {
                     break;
                 case "addNode":
                     try {
+                        // optional byte budget bounding the cache instead of the entry count
                         IECSNode node = ecs.addNode(
                                 tokens[1],
-                                Integer.parseInt(tokens[2])
+                                Integer.parseInt(tokens[2]),
+                                tokens.length > 3 ? Long.parseLong(tokens[3]) : 0
                         );
                         result = (node != null);
                     } catch (NumberFormatException nfe) {
-                        printError("cache size must be an integer!\nUsage: addNode <strategy> <cacheSize>");
+                        printError("cache size must be an integer!\nUsage: addNode <strategy> <cacheSize> [<cacheBytes>]");
                         logger.info("Unable to parse argument <cacheSize>", nfe);
                     } catch (IllegalArgumentException iae) {
                         printError("Error! Invalid <strategy>! Must be one of [None LRU LFU FIFO]!");
@@ -92,6 +95,16 @@ public class ECSClient implements Runnable {
                     ecs.clearRestoreList();
                     result = true;
                     break;
+                case "storeType":
+                    // engine of the nodes added afterwards
+                    try {
+                        ecs.setStoreType(tokens[1]);
+                        result = true;
+                    } catch (IllegalArgumentException iae) {
+                        printError("Invalid <storeType>! Must be one of [Iterate Log Segmented Lsm ValueLog]!");
+                        logger.info("Unknown store type", iae);
+                    }
+                    break;
                 default:
                     printError("Unknown command!");
                     printHelp();
@@ -114,7 +127,7 @@ public class ECSClient implements Runnable {
     }
 
     private void printHelp() {
-        System.out.println("Usage: addNode/start/stop/shutDown/removeNodes/quit");
+        System.out.println("Usage: addNode/start/stop/shutDown/removeNodes/storeType/quit");
     }
 
     @Override
@@ -47,6 +47,14 @@ public interface IECSClient {
      */
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize);
 
+    /**
+     * Same as addNodes, with the caches of the servers bounded by the estimated bytes of
+     * their keys and values instead of the number of entries
+     *
+     * @param cacheBytes byte budget of each cache, 0 to bound them by cacheSize
+     */
+    public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize, long cacheBytes);
+
     /**
      * Sets up `count` servers with the ECS (in this case Zookeeper)
      *
@@ -5,7 +5,20 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        OffHeap,    /* LRU by size class with values in direct memory, cache size in kilobytes */
+        ConcurrentLRU,  /* LRU per segment, segments locked separately */
+        ConcurrentLFU,  /* LFU per segment, segments locked separately */
+        ConcurrentFIFO, /* lock-free FIFO ring */
+        TinyLFU         /* LRU window and main area with frequency admission, resists scans */
+    }
+
+    public enum StoreType {
+        Iterate,    /* single text file, updated in place */
+        Log,        /* append-only segments with background compaction */
+        Segmented,  /* one file per hash range bucket, moved and deleted as a whole */
+        Lsm,        /* sorted memtable and tables with leveled merging, supports range scans */
+        ValueLog    /* compact key file of value pointers, values in an append-only value log */
     }
 
     public enum ServerStatus {
@@ -82,6 +95,11 @@ public interface IKVServer {
      */
     public void clearCache();
 
+    /**
+     * Remove the keys of a hash range from the local cache of the server
+     */
+    public void invalidateCache(String[] hashRange);
+
     /**
      * Clear the storage of the server
      */
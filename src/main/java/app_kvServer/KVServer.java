@@ -11,7 +11,11 @@ import org.apache.log4j.Logger;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import server.*;
+import server.cache.KVAbsentKeyCache;
 import server.cache.KVCache;
+import server.cache.KVCacheStats;
+import server.cache.KVConcurrentCache;
+import server.cache.KVSynchronizedCache;
 import server.sql.SQLIterateStore;
 import server.sql.SQLJoinQuerent;
 import server.sql.SQLPersistentStore;
@@ -23,9 +27,15 @@ import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class KVServer implements IKVServer, Runnable, Watcher {
@@ -34,12 +44,36 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     public static final Integer MAX_KEY = 20;
     public static final Integer MAX_VAL = 120 * 1024;
     public static final Integer BUFFER_SIZE = 1024;
+    /**
+     * Size of the write-ahead log after which the store is synced and the log truncated
+     */
+    public static final long WAL_CHECKPOINT_SIZE = 16 * 1024 * 1024;
+    /**
+     * Number of key lock stripes, gets and puts of keys in different stripes run in parallel
+     */
+    public static final int LOCK_STRIPES = 64;
+    /**
+     * Appended to the storage name for the directories of snapshots
+     */
+    public static final String SNAPSHOT_SUFFIX = "_snapshot";
+
+    /**
+     * Interval of publishing the cache statistics to ZooKeeper in milliseconds
+     */
+    public static final long CACHE_STATS_INTERVAL = 10000;
 
     private static Logger logger = Logger.getRootLogger();
 
     private int port = -1;
     private int cacheSize;
+    /**
+     * Byte budget of the cache replacing the cacheSize bound, 0 for none
+     */
+    private long cacheBytes = 0;
     private CacheStrategy strategy;
+    private StoreType storeType = StoreType.Iterate;
+    private KVWriteAheadLog.Durability durability = KVWriteAheadLog.Durability.BATCH;
+    private boolean valueCompression = false;
 
     private boolean running;
     private ServerSocket serverSocket = null;
@@ -60,10 +94,35 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     private String hashRingString;
 
     /**
-     * cache would be null if strategy is set to None
+     * cache would be null if strategy is set to None. Safe for concurrent use, caches
+     * of single threaded strategies are wrapped in a KVSynchronizedCache
+     */
+    private KVConcurrentCache cache;
+    /**
+     * Keys known to be missing from the store, null along with the cache
+     */
+    private KVAbsentKeyCache absentKeys;
+    /**
+     * Set by the warm-up thread
+     */
+    private volatile KVPersistentStore store;
+    /**
+     * null if the write-ahead log could not be opened
+     */
+    private volatile KVWriteAheadLog wal;
+    /**
+     * Held shared by gets and puts and exclusively by operations on the whole store
+     */
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    /**
+     * Keys are mapped to stripes by hash, so a get never sees a put of its key half done
      */
-    private KVCache cache;
-    private KVPersistentStore store;
+    private final ReadWriteLock[] keyLocks = createKeyLocks();
+    private final AtomicLong snapshotSeq = new AtomicLong();
+    /**
+     * Released once the store is opened and the write-ahead log replayed
+     */
+    private final CountDownLatch warmUpDone = new CountDownLatch(1);
 
     /**
      * Forward put requests to server replicas
@@ -73,7 +132,7 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     /**
      * SQL storage service
      */
-    private SQLPersistentStore sqlStore;
+    private volatile SQLPersistentStore sqlStore;
 
     public SQLPersistentStore getSqlStore() {
         return sqlStore;
@@ -96,13 +155,40 @@ public class KVServer implements IKVServer, Runnable, Watcher {
      * @param strategy  specifies the cache replacement strategy in case the cache
      *                  is full and there is a GET- or PUT-request on a key that is
      *                  currently not contained in the cache. Options are "FIFO", "LRU",
-     *                  and "LFU".
+     *                  "LFU", "TinyLFU", "OffHeap" (cache size in kilobytes) and the
+     *                  lock-free or segmented "ConcurrentFIFO", "ConcurrentLRU" and
+     *                  "ConcurrentLFU".
      */
     public KVServer(Integer port, Integer cacheSize, String strategy) {
         this(port, cacheSize, strategy, "iterateDataBase"); // Default db name
     }
 
     public KVServer(int port, int cacheSize, String strategy, String fileName) {
+        this(port, cacheSize, strategy, fileName, StoreType.Iterate.name());
+    }
+
+    /**
+     * Start a standalone KV Server with the given storage engine
+     *
+     * @param storeType storage engine, "Iterate", "Log", "Segmented", "Lsm" or "ValueLog"
+     */
+    public KVServer(int port, int cacheSize, String strategy, String fileName, String storeType) {
+        this(port, cacheSize, strategy, fileName, storeType, KVWriteAheadLog.Durability.BATCH.name());
+    }
+
+    /**
+     * @param durability durability of puts, "NONE", "BATCH" or "SYNC"
+     */
+    public KVServer(int port, int cacheSize, String strategy, String fileName, String storeType,
+                    String durability) {
+        this(port, cacheSize, strategy, fileName, storeType, durability, false);
+    }
+
+    /**
+     * @param valueCompression deflate large values in the Iterate, Segmented and ValueLog engines
+     */
+    public KVServer(int port, int cacheSize, String strategy, String fileName, String storeType,
+                    String durability, boolean valueCompression) {
         this.status = ServerStatus.START;
         this.port = port;
         this.cacheSize = cacheSize;
@@ -113,7 +199,8 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             // Use reflection to dynamically initialize the cache based on strategy name
             try {
                 Constructor<?> cons = Class.forName("server.cache.KV" + strategy + "Cache").getConstructor(Integer.class);
-                this.cache = (KVCache) cons.newInstance(cacheSize);
+                this.cache = KVSynchronizedCache.wrap((KVCache) cons.newInstance(cacheSize));
+                this.absentKeys = new KVAbsentKeyCache(KVAbsentKeyCache.DEFAULT_SIZE);
             } catch (ClassNotFoundException |
                     NoSuchMethodException |
                     IllegalAccessException |
@@ -123,7 +210,85 @@ public class KVServer implements IKVServer, Runnable, Watcher {
                 e.printStackTrace();
             }
         }
-        this.store = new KVIterateStore(fileName);
+        this.storeType = StoreType.valueOf(storeType);
+        this.valueCompression = valueCompression;
+        this.store = createStore(this.storeType, fileName, valueCompression, KVParallelLoader.NO_PROGRESS);
+        this.durability = KVWriteAheadLog.Durability.valueOf(durability);
+        openWriteAheadLog();
+        warmUpDone.countDown();
+    }
+
+    /**
+     * Replay the write-ahead log left by a previous run into the store and start a new one
+     */
+    private void openWriteAheadLog() {
+        try {
+            this.wal = new KVWriteAheadLog(new File(store.getfileName() + KVWriteAheadLog.WAL_SUFFIX), durability);
+            if (wal.replay(store) > 0) {
+                store.sync();
+            }
+            wal.checkpoint();
+            logger.info(prompt() + "Write-ahead log opened in " + durability + " mode");
+        } catch (IOException e) {
+            logger.error(prompt() + "Unable to open the write-ahead log, puts are not logged", e);
+            this.wal = null;
+        }
+    }
+
+    private static ReadWriteLock[] createKeyLocks() {
+        ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        return locks;
+    }
+
+    private ReadWriteLock keyLock(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, String hashes of similar keys differ mostly in the low ones
+        hash ^= hash >>> 16;
+        return keyLocks[(hash & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * @param loadProgress called with the share of the storage loaded in percent, by engines
+     *                     reporting it
+     */
+    private static KVPersistentStore createStore(StoreType storeType, String fileName, boolean valueCompression,
+                                                 IntConsumer loadProgress) {
+        KVBinaryFormat format = valueCompression
+                ? new KVBinaryFormat(KVBinaryFormat.DEFAULT_COMPRESSION_THRESHOLD)
+                : KVBinaryFormat.INSTANCE;
+        switch (storeType) {
+            case Log:
+                return new KVLogStore(fileName, "./res", KVLogStore.DEFAULT_SEGMENT_SIZE,
+                        KVLogStore.DEFAULT_GARBAGE_RATIO, loadProgress);
+            case Lsm:
+                return new KVLsmStore(fileName);
+            case ValueLog:
+                return new KVValueLogStore(fileName, "./res", format,
+                        KVValueLogStore.DEFAULT_MIN_GARBAGE, KVValueLogStore.DEFAULT_GARBAGE_RATIO);
+            case Segmented:
+                KVSegmentedStore segmented = new KVSegmentedStore(fileName, "./res",
+                        KVSegmentedStore.DEFAULT_BITS, format, loadProgress);
+                segmented.setMemoryMapped(true);
+                segmented.setBloomFilter(true);
+                return segmented;
+            case Iterate:
+            default:
+                KVIterateStore store = new KVIterateStore(fileName, "./res", true, format, loadProgress);
+                store.setMemoryMapped(true);
+                store.setBloomFilter(true);
+                return store;
+        }
+    }
+
+    /**
+     * @return name of the storage file of a distributed server, e.g. "server1_segmentedDataBase"
+     */
+    private static String dataBaseName(String serverName, StoreType storeType) {
+        String type = storeType.name();
+        return serverName + "_" + Character.toLowerCase(type.charAt(0)) + type.substring(1) + "DataBase";
     }
 
     public KVServer(Integer port, String name, String zkHostName, int zkPort) {
@@ -172,6 +337,18 @@ public class KVServer implements IKVServer, Runnable, Watcher {
                 ServerMetaData json = new Gson().fromJson(cacheString, ServerMetaData.class);
                 this.cacheSize = json.getCacheSize();
                 this.strategy = CacheStrategy.valueOf(json.getCacheStrategy());
+                if (json.getCacheBytes() != null) {
+                    this.cacheBytes = json.getCacheBytes();
+                }
+                if (json.getStoreType() != null) {
+                    this.storeType = StoreType.valueOf(json.getStoreType());
+                }
+                if (json.getDurability() != null) {
+                    this.durability = KVWriteAheadLog.Durability.valueOf(json.getDurability());
+                }
+                if (json.getValueCompression() != null) {
+                    this.valueCompression = json.getValueCompression();
+                }
             } else {
                 logger.error(prompt() + "Server node dose not exist " + zkPath);
             }
@@ -185,8 +362,8 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         }
 
         try {
-            //remove the init message if have
-            List<String> children = zk.getChildren(zkPath, this, null);
+            //remove the init message if have, the watch is only set once the store is loaded
+            List<String> children = zk.getChildren(zkPath, false, null);
             if (!children.isEmpty()) {
                 String messagePath = zkPath + "/" + children.get(0);
                 byte[] data = zk.getData(messagePath, false, null);
@@ -259,7 +436,11 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             try {
                 Constructor<?> cons = Class.forName("server.cache.KV" + strategy
                         + "Cache").getConstructor(Integer.class);
-                this.cache = (KVCache) cons.newInstance(cacheSize);
+                this.cache = KVSynchronizedCache.wrap((KVCache) cons.newInstance(cacheSize));
+                this.absentKeys = new KVAbsentKeyCache(KVAbsentKeyCache.DEFAULT_SIZE);
+                if (cacheBytes > 0) {
+                    this.cache.setMaxBytes(cacheBytes);
+                }
             } catch (ClassNotFoundException |
                     NoSuchMethodException |
                     IllegalAccessException |
@@ -270,13 +451,159 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             }
         }
 
-        this.store = new KVIterateStore(name + "_iterateDataBase");
-        this.sqlStore = new SQLIterateStore(serverName, zk, (KVIterateStore) store);
+        // the store is loaded in the background, admin messages wait for it
+        new Thread(this::warmUp, "warmUp-" + name).start();
+
+        if (cache != null) {
+            Thread publisher = new Thread(this::publishCacheStats, "cacheStats-" + name);
+            publisher.setDaemon(true);
+            publisher.start();
+        }
+    }
+
+    /**
+     * Open the store, rebuilding its index, and replay the write-ahead log. Progress is
+     * published in the server node like the transfer progress; the server stays stopped
+     * until this finishes, as a START message is only handled afterwards
+     */
+    private void warmUp() {
+        long begin = System.currentTimeMillis();
+        updateWarmUpProgress(0);
+        int[] reported = {0};
+        KVPersistentStore engine = createStore(storeType, dataBaseName(serverName, storeType), valueCompression,
+                percent -> {
+                    // 100 is only reported once the server is ready to start
+                    if (percent > reported[0] && percent < 100) {
+                        reported[0] = percent;
+                        updateWarmUpProgress(percent);
+                    }
+                });
+        // SQL tables are built on top of an iterate store, kept next to other engines
+        KVIterateStore sqlRows;
+        if (engine instanceof KVIterateStore) {
+            sqlRows = (KVIterateStore) engine;
+            this.store = engine;
+        } else {
+            sqlRows = (KVIterateStore) createStore(StoreType.Iterate, serverName + KVSplitStore.SQL_SUFFIX,
+                    valueCompression, KVParallelLoader.NO_PROGRESS);
+            this.store = new KVSplitStore(engine, sqlRows);
+            adoptIterateStore();
+        }
+        this.sqlStore = new SQLIterateStore(serverName, zk, sqlRows);
+        openWriteAheadLog();
+        updateWarmUpProgress(100);
+        warmUpDone.countDown();
+        logger.info(prompt() + "Storage loaded in " + (System.currentTimeMillis() - begin) + " ms");
+        // handle messages sent meanwhile and watch for further ones
+        handleAdminMessage();
+    }
+
+    /**
+     * Merge the storage file and write-ahead log left by a previous run on the Iterate
+     * engine into the store, so switching the engine of a server keeps its data
+     */
+    private void adoptIterateStore() {
+        String fileName = dataBaseName(serverName, StoreType.Iterate);
+        File legacy = new File("./res", fileName);
+        File legacyWal = new File(legacy.getPath() + KVWriteAheadLog.WAL_SUFFIX);
+        if (!legacy.exists() && !legacyWal.exists())
+            return;
+        try {
+            if (legacy.exists()) {
+                // opening it finishes a data move interrupted by a crash
+                new KVIterateStore(fileName, "./res", false, KVBinaryFormat.INSTANCE).close();
+                store.mergeData(legacy);
+            }
+            if (legacyWal.exists()) {
+                KVWriteAheadLog log = new KVWriteAheadLog(legacyWal, durability);
+                log.replay(store);
+                log.close();
+            }
+            store.sync();
+            legacyWal.delete();
+            logger.info(prompt() + "Moved the data of " + legacy.getPath() + " to the " + storeType + " engine");
+        } catch (IOException e) {
+            logger.error(prompt() + "Unable to move the data of " + legacy.getPath(), e);
+        }
+    }
+
+    /**
+     * Wait until the store is loaded
+     */
+    public void awaitWarmUp() throws InterruptedException {
+        warmUpDone.await();
+    }
+
+    public boolean isWarmedUp() {
+        return warmUpDone.getCount() == 0;
+    }
+
+    private void updateWarmUpProgress(int warmUpProgress) {
+        try {
+            byte[] rawMetaData = zk.getData(zkPath, false, null);
+            ServerMetaData metaData = new Gson().fromJson(new String(rawMetaData), ServerMetaData.class);
+            metaData.setWarmUpProgress(warmUpProgress);
+            zk.setData(zkPath, new Gson().toJson(metaData).getBytes(),
+                    zk.exists(zkPath, false).getVersion());
+            logger.debug(prompt() + "Update WarmUpProgress: " + warmUpProgress);
+        } catch (InterruptedException | KeeperException e) {
+            logger.info(prompt() + "Unable to update warm-up progress");
+        }
+    }
+
+    /**
+     * Publish the cache statistics every CACHE_STATS_INTERVAL until ZooKeeper is closed
+     */
+    private void publishCacheStats() {
+        while (zk.getState().isAlive()) {
+            try {
+                Thread.sleep(CACHE_STATS_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            updateCacheStats();
+        }
+    }
+
+    /**
+     * Write the cache statistics into the metadata of the server node
+     */
+    public void updateCacheStats() {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                Stat stat = new Stat();
+                byte[] rawMetaData = zk.getData(zkPath, false, stat);
+                ServerMetaData metaData = new Gson().fromJson(new String(rawMetaData), ServerMetaData.class);
+                metaData.setCacheStats(cache.getStats());
+                zk.setData(zkPath, new Gson().toJson(metaData).getBytes(), stat.getVersion());
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                // the metadata changed since it was read, read it again
+            } catch (InterruptedException | KeeperException e) {
+                logger.debug(prompt() + "Unable to update cache statistics");
+                return;
+            }
+        }
+    }
 
+    public KVCacheStats getCacheStats() {
+        return cache != null ? cache.getStats() : null;
     }
 
+    /**
+     * Messages act on the store, so the watch is only set once it is loaded. This keeps
+     * the event thread of ZooKeeper free during the warm-up, and a START in particular
+     * from serving before the store is there
+     */
     @Override
     public void process(WatchedEvent event) {
+        handleAdminMessage();
+    }
+
+    /**
+     * Handle the message in the server node, if any, and watch for the next one
+     */
+    private void handleAdminMessage() {
         List<String> children;
         try {
             children = zk.getChildren(zkPath, false, null);
@@ -351,17 +678,18 @@ public class KVServer implements IKVServer, Runnable, Watcher {
                     zk.delete(path, zk.exists(path, false).getVersion());
                     logger.info(prompt() + "Server" + zkPath + "start sending....");
 
-                    // send data
-                    sendData(message.getHashRange(), message.getReceiverHost(), receiverPort, false);
+                    // send a copy of the data, the sender keeps it
+                    sendSnapshot(message.getHashRange(), message.getReceiverHost(), receiverPort);
 
                     break;
 
                 case DELETE:
                     logger.debug(prompt() + "Receive delete message");
                     this.lockWrite();
-                    ((KVIterateStore) this.store).deleteData(message.getHashRange());
+                    this.store.deleteData(message.getHashRange());
+                    this.checkpoint();
                     this.unlockWrite();
-                    this.clearCache();
+                    this.invalidateCache(message.getHashRange());
                     logger.debug(prompt() + "Finish delete range");
                     zk.delete(path, zk.exists(path, false).getVersion());
                     break;
@@ -413,6 +741,25 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         return status;
     }
 
+    /**
+     * Merge a data file received from another server into the store. Keys remembered
+     * as missing may be in it, so they are forgotten
+     */
+    public void mergeData(File dataFile) throws IOException {
+        store.mergeData(dataFile);
+        if (absentKeys != null) {
+            absentKeys.clear();
+        }
+    }
+
+    public KVAbsentKeyCache getAbsentKeys() {
+        return absentKeys;
+    }
+
+    public KVPersistentStore getStore() {
+        return store;
+    }
+
     @Override
     public String getStorageName() {
         return this.store.getfileName();
@@ -446,6 +793,10 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         return strategy;
     }
 
+    public StoreType getStoreType() {
+        return storeType;
+    }
+
     @Override
     public int getCacheSize() {
         return cacheSize;
@@ -475,43 +826,191 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     }
 
     @Override
-    public synchronized String getKV(String key) throws Exception {
-        if (cache != null) {
-            if (this.inCache(key)) {
-                return cache.get(key);
-            } else {
-                // Not in cache, read from disk and update cache
-                String result = store.get(key);
+    public String getKV(String key) throws Exception {
+        ReadWriteLock keyLock = keyLock(key);
+        storeLock.readLock().lock();
+        keyLock.readLock().lock();
+        try {
+            if (cache != null) {
+                // The cache never holds "null", so a null result is a miss
+                String cached = cache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+                if (absentKeys.contains(key)) {
+                    return null;
+                }
+            }
+            // Not in cache, read from disk and update cache
+            long generation = absentKeys != null ? absentKeys.getGeneration() : 0;
+            long begin = System.nanoTime();
+            String result = store.get(key);
+            if (cache != null) {
+                cache.recordLoad(System.nanoTime() - begin);
                 if (result != null) {
                     cache.put(key, result);
+                } else {
+                    absentKeys.add(key, generation);
                 }
-                return result;
             }
-        } else {
-            return store.get(key);
+            return result;
+        } finally {
+            keyLock.readLock().unlock();
+            storeLock.readLock().unlock();
         }
     }
 
     @Override
-    public synchronized void putKV(String key, String value) throws Exception {
-        // Update both cache and storage
-        store.put(key, value);
-        if (cache != null)
-            cache.put(key, value);
+    public void putKV(String key, String value) throws Exception {
+        if (upsertKV(key, value) == KVPersistentStore.PutResult.NOT_FOUND)
+            throw new IOException("Try to delete an entry with non-exist key: " + key);
+    }
+
+    /**
+     * Insert, update or delete ("null" value) a key
+     *
+     * @return state of the key before the call, found by the store in the same pass
+     */
+    public KVPersistentStore.PutResult upsertKV(String key, String value) throws Exception {
+        long lsn = 0;
+        KVPersistentStore.PutResult result;
+        ReadWriteLock keyLock = keyLock(key);
+        storeLock.readLock().lock();
+        keyLock.writeLock().lock();
+        try {
+            // Log first so the log holds the puts of a key in the order they are applied
+            if (wal != null)
+                lsn = wal.append(key, value);
+            // Update both cache and storage
+            result = store.upsert(key, value);
+            if (cache != null) {
+                cache.put(key, value);
+                if ("null".equals(value)) {
+                    absentKeys.add(key, absentKeys.getGeneration());
+                } else {
+                    absentKeys.remove(key);
+                }
+            }
+        } finally {
+            keyLock.writeLock().unlock();
+            storeLock.readLock().unlock();
+        }
+        if (wal != null && wal.size() >= WAL_CHECKPOINT_SIZE)
+            checkpoint(WAL_CHECKPOINT_SIZE);
+        // Wait for the log outside the lock so concurrent puts share one fsync
+        if (wal != null)
+            wal.sync(lsn);
+        return result;
+    }
+
+    /**
+     * Sync the store and truncate the write-ahead log. Must follow every change of the
+     * store not made by putKV, otherwise replaying the log could revert it
+     */
+    public void checkpoint() {
+        checkpoint(0);
+    }
+
+    /**
+     * Checkpoint if the log is at least minSize bytes, puts are blocked meanwhile
+     * so no logged put is truncated before it reaches the store
+     */
+    private void checkpoint(long minSize) {
+        if (wal == null)
+            return;
+        storeLock.writeLock().lock();
+        try {
+            if (wal.size() < minSize)
+                return;
+            store.sync();
+            wal.checkpoint();
+            if (valueCompression) {
+                logger.info(prompt() + "Value compression ratio " + String.format("%.2f", getCompressionRatio()));
+            }
+        } catch (IOException e) {
+            logger.error(prompt() + "Unable to checkpoint the write-ahead log", e);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Take a point-in-time snapshot of the store. Puts only wait while the snapshot is
+     * taken, not while it is read, and engines taking it alongside writes only hold up
+     * the puts to the files being copied; the caller must close it
+     */
+    public KVSnapshot snapshot() throws IOException {
+        File dir = new File(store.getfileName() + SNAPSHOT_SUFFIX + snapshotSeq.incrementAndGet());
+        // the read lock still keeps data moves from replacing files meanwhile
+        Lock lock = store.isSnapshotConcurrent() ? storeLock.readLock() : storeLock.writeLock();
+        lock.lock();
+        try {
+            return store.snapshot(dir);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterate over the entries with fromKey <= key < toKey in key order
+     *
+     * @param fromKey first key, null for no lower bound
+     * @param toKey   key after the last one, null for no upper bound
+     * @throws UnsupportedOperationException if the storage engine is not sorted
+     */
+    public Iterator<KVIterateStore.KVEntry> scanKV(String fromKey, String toKey) throws IOException {
+        if (!(store instanceof KVSortedStore)) {
+            throw new UnsupportedOperationException("Storage engine " + storeType + " does not support range scans");
+        }
+        // writes update the store along with the cache, so the store alone is up to date
+        return ((KVSortedStore) store).scan(fromKey, toKey);
+    }
+
+    /**
+     * @return raw value bytes divided by stored value bytes of the values written since start
+     */
+    public double getCompressionRatio() {
+        return store.getCompressionRatio();
+    }
+
+    public KVWriteAheadLog getWriteAheadLog() {
+        return wal;
     }
 
     @Override
     public void clearCache() {
         logger.info(prompt() + "Cache cleared");
-        if (cache != null)
+        if (cache != null) {
             cache.clear();
+            absentKeys.clear();
+        }
+    }
+
+    /**
+     * Keys remembered as absent stay, the store no longer holds the range either
+     */
+    @Override
+    public void invalidateCache(String[] hashRange) {
+        if (cache != null) {
+            int removed = cache.invalidate(hashRange);
+            logger.info(prompt() + "Cache invalidated " + removed + " keys of range "
+                    + hashRange[0] + " - " + hashRange[1]);
+        }
     }
 
     @Override
     public void clearStorage() {
-        store.clearStorage();
-        if (cache != null)
-            cache.clear();
+        storeLock.writeLock().lock();
+        try {
+            store.clearStorage();
+            checkpoint();
+            if (cache != null) {
+                cache.clear();
+                absentKeys.clear();
+            }
+        } finally {
+            storeLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -549,6 +1048,21 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     @Override
     public void close() {
         kill();
+        checkpoint();
+        storeLock.writeLock().lock();
+        try {
+            if (wal != null) {
+                wal.close();
+            }
+            // null while the warm-up has not opened it yet
+            if (store != null) {
+                store.close();
+            }
+        } catch (IOException e) {
+            logger.error(prompt() + "Unable to close the write-ahead log", e);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
         clearCache();
     }
 
@@ -603,6 +1117,78 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     }
 
 
+    /**
+     * Stream a snapshot of the hash range to a receiver while keeping the local copy,
+     * e.g. to bootstrap a replica. Unlike sendData(hashRange, host, port, false) the
+     * store is not rewritten into move and remain files. Writes are refused until the
+     * receiver has all data, as puts are only forwarded to it after the hash ring update
+     */
+    public boolean sendSnapshot(String[] hashRange, String targetHost, int targetPort) {
+        this.lockWrite();
+        try (KVSnapshot snapshot = snapshot();
+             Socket clientSocket = new Socket(targetHost, targetPort);
+             BufferedOutputStream out = new BufferedOutputStream(clientSocket.getOutputStream(), BUFFER_SIZE)) {
+            long count = snapshot.writeTo(new ProgressOutputStream(out, sizeOf(snapshot.getDir())), hashRange);
+            out.flush();
+            updateTransferProgress(100);
+            logger.info(prompt() + "Finish sending snapshot of " + count + " entries");
+            return true;
+        } catch (IOException e) {
+            logger.error(prompt() + "Unable to send snapshot", e);
+            return false;
+        } finally {
+            this.unlockWrite();
+        }
+    }
+
+    private static long sizeOf(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    /**
+     * Publishes the bytes written so far, out of the expected ones, as transfer progress
+     */
+    private class ProgressOutputStream extends FilterOutputStream {
+        private final long expected;
+        private long written = 0;
+        private int progress = 0;
+
+        ProgressOutputStream(OutputStream out, long expected) {
+            super(out);
+            this.expected = Math.max(1, expected);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            advance(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            advance(len);
+        }
+
+        private void advance(int len) {
+            written += len;
+            // 100 is only published once the transfer is complete
+            int current = (int) Math.min(99, written * 100 / expected);
+            if (current > progress) {
+                progress = current;
+                updateTransferProgress(current);
+            }
+        }
+    }
+
     public boolean sendData(String[] hashRange, String targetHost, int targetPort) {
         return sendData(hashRange, targetHost, targetPort, true);
     }
@@ -611,7 +1197,7 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         try {
             this.lockWrite();
 
-            ((KVIterateStore) this.store).preMoveData(hashRange);
+            this.store.preMoveData(hashRange);
 
             String moveFileName = this.store.getfileName() + KVIterateStore.MOVE_SUFFIX;
             File moveFile = new File(moveFileName);
@@ -643,10 +1229,11 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             out.close();
             clientSocket.close();
 
-            ((KVIterateStore) this.store).afterMoveData(shouldDelete);
+            this.store.afterMoveData(shouldDelete);
 
             if (shouldDelete) {
-                this.clearCache();
+                this.checkpoint();
+                this.invalidateCache(hashRange);
             }
 
             this.unlockWrite();
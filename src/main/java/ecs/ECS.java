@@ -1,6 +1,7 @@
 package ecs;
 
 import app_kvECS.IECSClient;
+import app_kvServer.IKVServer;
 import app_kvServer.KVServer;
 import com.google.gson.Gson;
 import common.NetworkUtils;
@@ -12,6 +13,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.stereotype.Service;
 import server.ServerMetaData;
+import server.cache.KVCacheStats;
 
 import java.io.*;
 import java.util.*;
@@ -43,6 +45,12 @@ public class ECS implements IECSClient {
     public static final String ZK_METADATA_ROOT = "/metadata";
 
     public boolean locally = false;
+
+    /**
+     * Storage engine of the servers set up from now on, null for the server default.
+     * Segments of the Segmented engine are indexed in parallel when a server starts
+     */
+    private String storeType = IKVServer.StoreType.Segmented.name();
     private static Logger logger = Logger.getRootLogger();
 
     private String restoreFileName = "ecs_restore_list";
@@ -151,6 +159,51 @@ public class ECS implements IECSClient {
         return generalNodeTable.get(name);
     }
 
+    /**
+     * @return cache statistics last published by the server, null if there are none
+     */
+    public KVCacheStats getCacheStats(String name) {
+        ECSNode node = generalNodeTable.get(name);
+        if (node == null) return null;
+        try {
+            if (zk.exists(getNodePath(node), false) == null) return null;
+            byte[] data = zk.getData(getNodePath(node), false, null);
+            return new Gson().fromJson(new String(data), ServerMetaData.class).getCacheStats();
+        } catch (InterruptedException | KeeperException e) {
+            logger.error("Unable to read cache statistics of " + name);
+            return null;
+        }
+    }
+
+    /**
+     * @return cache statistics of all servers that published some, by server name
+     */
+    public Map<String, KVCacheStats> getAllCacheStats() {
+        Map<String, KVCacheStats> result = new TreeMap<>();
+        for (String name : generalNodeTable.keySet()) {
+            KVCacheStats stats = getCacheStats(name);
+            if (stats != null) {
+                result.put(name, stats);
+            }
+        }
+        return result;
+    }
+
+    public String getStoreType() {
+        return storeType;
+    }
+
+    /**
+     * @param storeType name of an IKVServer.StoreType, null for the server default
+     * @throws IllegalArgumentException if there is no such engine
+     */
+    public void setStoreType(String storeType) {
+        if (storeType != null) {
+            IKVServer.StoreType.valueOf(storeType);
+        }
+        this.storeType = storeType;
+    }
+
     public void createNode(String name, String host, Integer port) throws ECSException {
         if (generalNodeTable.containsKey(name)) {
             throw new ECSException(name + " already exists. Server name must be unique");
@@ -183,7 +236,8 @@ public class ECS implements IECSClient {
             }
         }
 
-        boolean ret = true;
+        // restored servers may still be loading their storage
+        boolean ret = new ECSWarmUpMonitor(zk).await(toStart);
 
         // restore server first
         for (ECSNode n : toRestore) {
@@ -298,6 +352,9 @@ public class ECS implements IECSClient {
             for (ECSNode n : nodeList) {
                 String line = String.join(" ", n.getNodeName(), n.cacheStrategy,
                         n.cacheSize.toString());
+                if (n.cacheBytes != null) {
+                    line += " " + n.cacheBytes;
+                }
                 output.append(line + "\r\n");
 
             }
@@ -317,19 +374,23 @@ public class ECS implements IECSClient {
 
     @Override
     public IECSNode addNode(String cacheStrategy, int cacheSize) {
-        Collection<IECSNode> nodes = addNodes(1, cacheStrategy, cacheSize);
+        return addNode(cacheStrategy, cacheSize, 0);
+    }
+
+    public IECSNode addNode(String cacheStrategy, int cacheSize, long cacheBytes) {
+        Collection<IECSNode> nodes = addNodes(1, cacheStrategy, cacheSize, cacheBytes);
         if (nodes == null) return null;
         assert nodes.size() <= 1;
         return nodes.size() == 1 ? (IECSNode) nodes.toArray()[0] : null;
     }
 
-    public void addNodes(Collection<IECSNode> nodes, String cacheStrategy, int cacheSize) {
-        setupNodes(nodes, cacheStrategy, cacheSize);
+    public void addNodes(Collection<IECSNode> nodes, String cacheStrategy, int cacheSize, long cacheBytes) {
+        setupNodes(nodes, cacheStrategy, cacheSize, cacheBytes);
         invokeNodes(nodes);
     }
 
-    public void addNodesLocally(Collection<IECSNode> nodes, String cacheStrategy, int cacheSize) {
-        setupNodes(nodes, cacheStrategy, cacheSize);
+    public void addNodesLocally(Collection<IECSNode> nodes, String cacheStrategy, int cacheSize, long cacheBytes) {
+        setupNodes(nodes, cacheStrategy, cacheSize, cacheBytes);
         for (IECSNode node : nodes) {
             KVServer server = new KVServer(node.getNodePort(), node.getNodeName(),
                     ECS.ZK_HOST, Integer.parseInt(ECS.ZK_PORT));
@@ -394,7 +455,12 @@ public class ECS implements IECSClient {
 
     @Override
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize) {
-        Collection<IECSNode> nodes = setupNodes(count, cacheStrategy, cacheSize);
+        return addNodes(count, cacheStrategy, cacheSize, 0);
+    }
+
+    @Override
+    public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize, long cacheBytes) {
+        Collection<IECSNode> nodes = setupNodes(count, cacheStrategy, cacheSize, cacheBytes);
         if (nodes == null) return null;
 
         return invokeNodes(nodes);
@@ -402,6 +468,10 @@ public class ECS implements IECSClient {
 
     @Override
     public Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize) {
+        return setupNodes(count, cacheStrategy, cacheSize, 0);
+    }
+
+    public Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize, long cacheBytes) {
         if (count > nodePool.size()) return null;
 
         List<IECSNode> nodeList = new ArrayList<>();
@@ -410,13 +480,21 @@ public class ECS implements IECSClient {
             nodeList.add(n);
         }
 
-        return setupNodes(nodeList, cacheStrategy, cacheSize);
+        return setupNodes(nodeList, cacheStrategy, cacheSize, cacheBytes);
 
     }
 
-    public Collection<IECSNode> setupNodes(Collection<IECSNode> nodeList, String cacheStrategy, int cacheSize) {
-
-        byte[] metadata = new Gson().toJson(new ServerMetaData(cacheStrategy, cacheSize)).getBytes();
+    /**
+     * @param cacheBytes byte budget of each cache, 0 to bound them by cacheSize
+     */
+    public Collection<IECSNode> setupNodes(Collection<IECSNode> nodeList, String cacheStrategy, int cacheSize,
+                                           long cacheBytes) {
+        ServerMetaData serverMetaData = new ServerMetaData(cacheStrategy, cacheSize);
+        if (cacheBytes > 0) {
+            serverMetaData.setCacheBytes(cacheBytes);
+        }
+        serverMetaData.setStoreType(storeType);
+        byte[] metadata = new Gson().toJson(serverMetaData).getBytes();
         // create corresponding Z-nodes on zookeeper server
         try {
 
@@ -436,6 +514,7 @@ public class ECS implements IECSClient {
             for (IECSNode n : nodeList) {
                 ((ECSNode) n).cacheStrategy = cacheStrategy;
                 ((ECSNode) n).cacheSize = cacheSize;
+                ((ECSNode) n).cacheBytes = cacheBytes > 0 ? cacheBytes : null;
 
                 Stat exists = zk.exists(getNodePath(n), false);
                 if (exists == null) {
@@ -473,8 +552,10 @@ public class ECS implements IECSClient {
                 .filter((n) -> n.getStatus().equals(ECSNode.ServerStatus.INACTIVE))
                 .collect(Collectors.toList());
 
+        // servers pick up messages once their storage is loaded, which may exceed the timeout
+        boolean ret = new ECSWarmUpMonitor(zk).await(toWait);
         ECSMulticaster multicaster = new ECSMulticaster(zk, toWait);
-        boolean ret = multicaster.send(new KVAdminMessage(KVAdminMessage.OperationType.INIT));
+        ret &= multicaster.send(new KVAdminMessage(KVAdminMessage.OperationType.INIT));
 
         Integer MAX_RETRY = 5;
         for (ECSNode node : toWait) {
@@ -620,7 +701,7 @@ public class ECS implements IECSClient {
                 } else {
                     for (String restoreLine : restoreLineList) {
                         String[] tokens = restoreLine.split(" ");
-                        if (tokens.length != 3) {
+                        if (tokens.length != 3 && tokens.length != 4) {
                             logger.error("Invalid restore line token format");
                             throw new IOException();
                         }
@@ -628,6 +709,7 @@ public class ECS implements IECSClient {
                         String restoreName = tokens[0];
                         String cacheStrategy = tokens[1];
                         Integer cacheSize = Integer.parseInt(tokens[2]);
+                        long cacheBytes = tokens.length == 4 ? Long.parseLong(tokens[3]) : 0;
 
                         ECSNode restoreNode = generalNodeTable.get(restoreName);
                         // should not be null
@@ -641,9 +723,9 @@ public class ECS implements IECSClient {
                             logger.info("Restoring: " + restoreNode.getNodeName());
                             List<IECSNode> singleList = new ArrayList<>(Arrays.asList(restoreNode));
                             if (this.locally) {
-                                this.addNodesLocally(singleList, cacheStrategy, cacheSize);
+                                this.addNodesLocally(singleList, cacheStrategy, cacheSize, cacheBytes);
                             } else {
-                                this.addNodes(singleList, cacheStrategy, cacheSize);
+                                this.addNodes(singleList, cacheStrategy, cacheSize, cacheBytes);
                             }
                         }
                     }
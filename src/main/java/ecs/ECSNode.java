@@ -27,6 +27,10 @@ public class ECSNode extends RawECSNode implements IECSNode {
 
     public String cacheStrategy;
     public Integer cacheSize;
+    /**
+     * Byte budget of the cache, null if it is bounded by cacheSize
+     */
+    public Long cacheBytes;
 
 
     public enum ServerStatus {
@@ -203,6 +207,30 @@ public class ECSNode extends RawECSNode implements IECSNode {
             }
         }
 
+        /**
+         * @return whether every hash in the interval [from, to] is in range, from <= to
+         */
+        public boolean covers(BigInteger from, BigInteger to) {
+            if (upper.equals(lower)) {
+                return true;
+            }
+            // the range must not end inside the interval
+            boolean endsInside = upper.compareTo(from) >= 0 && upper.compareTo(to) < 0;
+            return inRange(from) && inRange(to) && !endsInside;
+        }
+
+        /**
+         * @return whether any hash in the interval [from, to] is in range, from <= to
+         */
+        public boolean overlaps(BigInteger from, BigInteger to) {
+            if (upper.equals(lower)) {
+                return true;
+            }
+            // the range may start and end inside the interval
+            boolean startsInside = lower.compareTo(from) >= 0 && lower.compareTo(to) < 0;
+            return inRange(from) || inRange(to) || startsInside;
+        }
+
         public HashRange intersection(HashRange other) {
             boolean lowerInRange = inRange(other.lower);
             boolean upperInRange = inRange(other.upper);
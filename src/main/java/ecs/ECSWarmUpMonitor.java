@@ -0,0 +1,84 @@
+package ecs;
+
+import com.google.gson.Gson;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import server.ServerMetaData;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait until servers have loaded their storage, they only handle admin messages
+ * afterwards. There is no fixed deadline, a server is given up once its warm-up
+ * progress did not change for STALL_TIMEOUT
+ */
+public class ECSWarmUpMonitor implements Watcher {
+    // launching the process and loading a segment may both take a while
+    public static final Integer STALL_TIMEOUT = 30 * 1000;
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private ZooKeeper zk;
+    private volatile CountDownLatch sig;
+
+    public ECSWarmUpMonitor(ZooKeeper zk) {
+        this.zk = zk;
+    }
+
+    /**
+     * @return false if one of the servers stalled or its node could not be read
+     */
+    public boolean await(Collection<ECSNode> nodes) throws InterruptedException {
+        for (ECSNode node : nodes) {
+            if (!await(node)) return false;
+        }
+        return true;
+    }
+
+    private boolean await(ECSNode node) throws InterruptedException {
+        String path = ECS.getNodePath(node);
+        Integer last = null;
+        long lastChange = System.currentTimeMillis();
+        while (true) {
+            sig = new CountDownLatch(1);
+            Integer progress;
+            try {
+                // watch before reading, so no update between the two is missed
+                zk.exists(path, this);
+                byte[] data = zk.getData(path, false, null);
+                progress = new Gson().fromJson(new String(data), ServerMetaData.class).getWarmUpProgress();
+            } catch (KeeperException e) {
+                logger.error("Unable to read warm-up progress of " + node.getNodeName(), e);
+                return false;
+            }
+            if (progress != null && progress == 100) {
+                logger.info(node.getNodeName() + " warmed up");
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (!Objects.equals(progress, last)) {
+                last = progress;
+                lastChange = now;
+                logger.info(node.getNodeName() + " warming up " + (progress == null ? 0 : progress) + "%");
+            }
+            long left = lastChange + STALL_TIMEOUT - now;
+            if (left <= 0) {
+                logger.error(node.getNodeName() + " made no warm-up progress for " + STALL_TIMEOUT + " ms");
+                return false;
+            }
+            sig.await(left, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        CountDownLatch current = sig;
+        if (current != null) current.countDown();
+    }
+}
@@ -0,0 +1,135 @@
+package performance;
+
+import server.cache.KVCache;
+import server.cache.KVConcurrentCache;
+import server.cache.KVSynchronizedCache;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress benchmark of the caches alone, the single threaded strategies behind the
+ * lock the server puts around them against their concurrent variants. A hit returning
+ * the value of another key fails the run.
+ * <p>
+ * Usage: CacheBenchmark [cacheSize] [readPercent] [strategy...]
+ */
+public class CacheBenchmark {
+    private static final String[] STRATEGIES = {
+            "LRU", "ConcurrentLRU", "LFU", "ConcurrentLFU", "FIFO", "ConcurrentFIFO"};
+    private static final int OPS_PER_THREAD = 1000000;
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+    private final KVConcurrentCache cache;
+    private final int keySpace;
+    private final int readPercent;
+
+    public CacheBenchmark(KVConcurrentCache cache, int keySpace, int readPercent) {
+        this.cache = cache;
+        this.keySpace = keySpace;
+        this.readPercent = readPercent;
+    }
+
+    /**
+     * Create a cache the way the server does
+     */
+    static KVConcurrentCache createCache(String strategy, int cacheSize) throws Exception {
+        Constructor<?> cons = Class.forName("server.cache.KV" + strategy + "Cache")
+                .getConstructor(Integer.class);
+        return KVSynchronizedCache.wrap((KVCache) cons.newInstance(cacheSize));
+    }
+
+    /**
+     * Run the workload with the given number of threads, a missed get puts the key
+     *
+     * @return operations per second and hit rate
+     */
+    public double[] run(int threads, int opsPerThread) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicLong hits = new AtomicLong();
+        AtomicLong gets = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(seed);
+                long localHits = 0;
+                long localGets = 0;
+                try {
+                    start.await();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        // low keys are drawn more often
+                        int k = random.nextInt(random.nextInt(keySpace) + 1);
+                        String key = "key" + k;
+                        if (random.nextInt(100) < readPercent) {
+                            localGets++;
+                            String value = cache.get(key);
+                            if (value == null) {
+                                cache.put(key, "value" + k);
+                            } else if (value.equals("value" + k)) {
+                                localHits++;
+                            } else {
+                                errors.incrementAndGet();
+                            }
+                        } else {
+                            cache.put(key, "value" + k);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    hits.addAndGet(localHits);
+                    gets.addAndGet(localGets);
+                    done.countDown();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (errors.get() > 0) {
+            throw new IllegalStateException(errors.get() + " gets returned a wrong value");
+        }
+        return new double[]{(double) threads * opsPerThread / (elapsed / 1e9),
+                (double) hits.get() / Math.max(1, gets.get())};
+    }
+
+    public static void main(String[] args) {
+        int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int readPercent = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        String[] strategies = STRATEGIES;
+        if (args.length > 2) {
+            strategies = new String[args.length - 2];
+            System.arraycopy(args, 2, strategies, 0, strategies.length);
+        }
+
+        try {
+            for (String strategy : strategies) {
+                CacheBenchmark benchmark = new CacheBenchmark(createCache(strategy, cacheSize),
+                        4 * cacheSize, readPercent);
+                // warm up the JIT before measuring
+                benchmark.run(THREADS[THREADS.length - 1], OPS_PER_THREAD / 10);
+
+                System.out.println("Cache " + strategy + "(" + cacheSize + "), " + readPercent + "% gets");
+                double base = 0;
+                for (int threads : THREADS) {
+                    double[] result = benchmark.run(threads, OPS_PER_THREAD);
+                    if (base == 0) base = result[0];
+                    System.out.println(String.format("%2d threads: %11.0f ops/s (x%.2f), hit rate %.3f",
+                            threads, result[0], result[0] / base, result[1]));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package performance;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import server.cache.KVCache;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a trace of key accesses against every cache strategy and prints the hit rates.
+ * A get missing the cache puts the key afterwards, as the server does after reading the
+ * store.
+ * <p>
+ * A trace file holds one access per line, "GET key", "PUT key" or just the key for a get.
+ * Without a file a synthetic trace is used: skewed point reads mixed with sequential
+ * scans over a table, each scan reading keys that are not read otherwise.
+ * <p>
+ * Usage: CacheTraceReplay [cacheSize] [traceFile]
+ */
+public class CacheTraceReplay {
+    private static final int POINT_KEYS = 100000;
+    private static final int POINT_READS = 2000000;
+    private static final int SCAN_EVERY = 50000;
+    private static final int SCAN_LENGTH = 20000;
+
+    /**
+     * A single access of the trace
+     */
+    static class Access {
+        final boolean put;
+        final String key;
+
+        Access(boolean put, String key) {
+            this.put = put;
+            this.key = key;
+        }
+    }
+
+    static List<Access> readTrace(String fileName) throws IOException {
+        List<Access> trace = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens[0].isEmpty()) continue;
+                if (tokens.length == 1) {
+                    trace.add(new Access(false, tokens[0]));
+                } else {
+                    trace.add(new Access(tokens[0].equalsIgnoreCase("PUT"), tokens[1]));
+                }
+            }
+        }
+        return trace;
+    }
+
+    static List<Access> syntheticTrace() {
+        List<Access> trace = new ArrayList<>();
+        Random random = new Random(42);
+        int scans = 0;
+        for (int i = 0; i < POINT_READS; i++) {
+            // low keys are drawn more often
+            int k = random.nextInt(random.nextInt(POINT_KEYS) + 1);
+            trace.add(new Access(false, "point" + k));
+            if (i % SCAN_EVERY == SCAN_EVERY - 1) {
+                for (int row = 0; row < SCAN_LENGTH; row++) {
+                    trace.add(new Access(false, "table" + scans + "_" + row));
+                }
+                scans++;
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * @return share of gets found in the cache
+     */
+    static double replay(KVCache cache, List<Access> trace) {
+        long gets = 0;
+        long hits = 0;
+        for (Access access : trace) {
+            if (access.put) {
+                cache.put(access.key, "v");
+            } else {
+                gets++;
+                if (cache.get(access.key) != null) {
+                    hits++;
+                } else {
+                    cache.put(access.key, "v");
+                }
+            }
+        }
+        return (double) hits / Math.max(1, gets);
+    }
+
+    public static void main(String[] args) {
+        int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        try {
+            List<Access> trace = args.length > 1 ? readTrace(args[1]) : syntheticTrace();
+            System.out.println(trace.size() + " accesses, cache size " + cacheSize);
+            for (CacheStrategy strategy : CacheStrategy.values()) {
+                // no cache, and the off-heap cache is sized in kilobytes rather than entries
+                if (strategy == CacheStrategy.None || strategy == CacheStrategy.OffHeap) continue;
+                Constructor<?> cons = Class.forName("server.cache.KV" + strategy + "Cache")
+                        .getConstructor(Integer.class);
+                KVCache cache = (KVCache) cons.newInstance(cacheSize);
+                long begin = System.nanoTime();
+                double hitRate = replay(cache, trace);
+                long millis = (System.nanoTime() - begin) / 1000000;
+                System.out.println(String.format("%-15s hit rate %.4f (%d ms)", strategy, hitRate, millis));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
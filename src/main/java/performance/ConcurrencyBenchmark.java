@@ -0,0 +1,119 @@
+package performance;
+
+import app_kvServer.KVServer;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress benchmark of concurrent gets and puts against a single server, called in process
+ * so the result shows the locking of the server rather than the network.
+ * <p>
+ * Usage: ConcurrencyBenchmark [storeType] [cacheStrategy] [cacheSize] [readPercent]
+ */
+public class ConcurrencyBenchmark {
+    private static final int KEY_SPACE = 2000;
+    private static final int OPS_PER_THREAD = 20000;
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+    private final KVServer server;
+    private final int readPercent;
+
+    public ConcurrencyBenchmark(KVServer server, int readPercent) {
+        this.server = server;
+        this.readPercent = readPercent;
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+
+    /**
+     * Fill the key space so gets hit the store
+     */
+    public void load() throws Exception {
+        for (int i = 0; i < KEY_SPACE; i++) {
+            server.putKV(key(i), "value" + i);
+        }
+    }
+
+    /**
+     * Run the workload with the given number of client threads
+     *
+     * @return operations per second
+     */
+    public double run(int threads, int opsPerThread) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicLong errors = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        int k = random.nextInt(KEY_SPACE);
+                        if (random.nextInt(100) < readPercent) {
+                            server.getKV(key(k));
+                        } else {
+                            server.putKV(key(k), "value" + k + "-" + i);
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (errors.get() > 0) {
+            throw new IllegalStateException(errors.get() + " client threads failed");
+        }
+        return (double) threads * opsPerThread / (elapsed / 1e9);
+    }
+
+    public static void main(String[] args) {
+        String storeType = args.length > 0 ? args[0] : "Iterate";
+        String cacheStrategy = args.length > 1 ? args[1] : "LRU";
+        int cacheSize = args.length > 2 ? Integer.parseInt(args[2]) : KEY_SPACE / 4;
+        int readPercent = args.length > 3 ? Integer.parseInt(args[3]) : 90;
+
+        try {
+            new LogSetup("logs/testing/concurrency.log", Level.ERROR);
+            KVServer server = new KVServer(0, cacheSize, cacheStrategy,
+                    "concurrencyBenchmark", storeType);
+            server.clearStorage();
+            ConcurrencyBenchmark benchmark = new ConcurrencyBenchmark(server, readPercent);
+            benchmark.load();
+            // warm up the JIT before measuring
+            benchmark.run(THREADS[THREADS.length - 1], OPS_PER_THREAD / 10);
+
+            System.out.println("Store " + storeType + ", cache " + cacheStrategy + "(" + cacheSize
+                    + "), " + readPercent + "% gets");
+            double base = 0;
+            for (int threads : THREADS) {
+                double throughput = benchmark.run(threads, OPS_PER_THREAD);
+                if (base == 0) base = throughput;
+                System.out.println(String.format("%2d threads: %10.0f ops/s (x%.2f)",
+                        threads, throughput, throughput / base));
+            }
+            server.clearStorage();
+            server.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package performance;
+
+import server.cache.AbstractKVCache;
+import server.cache.KVCache;
+import server.cache.KVLFUCache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Benchmark of the LFU cache against the previous implementation, which scanned all
+ * counters for the victim of every miss on a full cache.
+ * <p>
+ * Keys are drawn with a skew over twice as many keys as the cache holds, a miss puts the
+ * key. Every run stops after OPS operations or TIME_LIMIT_MS, so the scanning cache
+ * finishes at large sizes.
+ * <p>
+ * Usage: LFUCacheBenchmark [cacheSize...]
+ */
+public class LFUCacheBenchmark {
+    private static final int[] CACHE_SIZES = {10000, 100000, 1000000};
+    private static final int OPS = 2000000;
+    private static final long TIME_LIMIT_MS = 10000;
+
+    /**
+     * The LFU cache before the frequency buckets, for comparison
+     */
+    static class ScanLFUCache extends AbstractKVCache {
+        private final HashMap<String, Integer> counters;
+
+        ScanLFUCache(Integer cacheSize) {
+            super(cacheSize);
+            this.cacheMap = new HashMap<>(cacheSize);
+            this.counters = new HashMap<>(cacheSize);
+        }
+
+        private void count(String key) {
+            if (cacheMap.containsKey(key)) {
+                counters.put(key, counters.get(key) + 1);
+                return;
+            }
+            if (cacheMap.size() >= getCacheSize()) {
+                Iterator<Map.Entry<String, Integer>> it = counters.entrySet().iterator();
+                Map.Entry<String, Integer> min = it.next();
+                while (it.hasNext()) {
+                    Map.Entry<String, Integer> entry = it.next();
+                    if (entry.getValue() < min.getValue()) min = entry;
+                }
+                String victim = min.getKey();
+                cacheMap.remove(victim);
+                counters.remove(victim);
+            }
+            counters.put(key, 1);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            count(key);
+            cacheMap.put(key, value);
+        }
+
+        @Override
+        public String get(String key) {
+            if (!cacheMap.containsKey(key)) return null;
+            count(key);
+            return cacheMap.get(key);
+        }
+    }
+
+    private static class Result {
+        long ops;
+        long hits;
+        long nanos;
+
+        double opsPerSecond() {
+            return ops / (nanos / 1e9);
+        }
+
+        double hitRate() {
+            return (double) hits / ops;
+        }
+    }
+
+    /**
+     * Fill the cache, then run the skewed workload
+     */
+    static Result run(KVCache cache, int cacheSize) {
+        int keySpace = 2 * cacheSize;
+        Random random = new Random(42);
+        for (int i = 0; i < cacheSize; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        Result result = new Result();
+        long begin = System.nanoTime();
+        long deadline = begin + TIME_LIMIT_MS * 1000000;
+        while (result.ops < OPS) {
+            // low keys are drawn more often
+            int k = random.nextInt(random.nextInt(keySpace) + 1);
+            String key = "key" + k;
+            if (cache.get(key) != null) {
+                result.hits++;
+            } else {
+                cache.put(key, "value" + k);
+            }
+            result.ops++;
+            if ((result.ops & 1023) == 0 && System.nanoTime() > deadline) break;
+        }
+        result.nanos = System.nanoTime() - begin;
+        return result;
+    }
+
+    private static void report(String name, int cacheSize, IntFunction<KVCache> factory) {
+        Result result = run(factory.apply(cacheSize), cacheSize);
+        System.out.println(String.format("%-8s %8d entries: %12.0f ops/s, hit rate %.3f (%d ops)",
+                name, cacheSize, result.opsPerSecond(), result.hitRate(), result.ops));
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = CACHE_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        // warm up the JIT before measuring
+        run(new KVLFUCache(1000), 1000);
+        run(new ScanLFUCache(1000), 1000);
+
+        for (int size : sizes) {
+            report("buckets", size, KVLFUCache::new);
+            report("aging", size, s -> new KVLFUCache(s, 10L * s));
+            report("scan", size, ScanLFUCache::new);
+        }
+    }
+}
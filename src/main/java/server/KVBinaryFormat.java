@@ -0,0 +1,212 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Length prefixed binary format
+ * <p>
+ * File header: MAGIC, followed by records of
+ * crc(4) | keyLen(4) | valueLen(4, -1 for tombstone) | key | value
+ * where the crc covers everything after itself. Readers can skip the value
+ * of a record without decoding it.
+ * <p>
+ * Values of at least compressionThreshold bytes are stored deflated when that makes
+ * them smaller, flagged by COMPRESSED in valueLen and stored as rawLen(4) | deflated.
+ * Every instance reads both kinds of records, so compression can be turned on for an
+ * existing file and raw copies of records (e.g. move files) keep their compression.
+ */
+public class KVBinaryFormat implements KVRecordFormat {
+    /**
+     * Format without compression, shared by all users not asking for it
+     */
+    public static final KVBinaryFormat INSTANCE = new KVBinaryFormat(Integer.MAX_VALUE);
+
+    /**
+     * 0xB1 can not start a UTF-8 sequence, so a text file never begins with the magic
+     */
+    public static final byte[] MAGIC = new byte[]{(byte) 0xB1, 'K', 'V', '1'};
+    public static final int RECORD_HEADER_SIZE = 12;
+    public static final int TOMBSTONE = -1;
+    public static final int COMPRESSED = 0x40000000;
+    /**
+     * Values below 1KB rarely shrink enough to pay for the inflate on every read
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private final int compressionThreshold;
+    private final AtomicLong rawValueBytes = new AtomicLong();
+    private final AtomicLong storedValueBytes = new AtomicLong();
+
+    /**
+     * @param compressionThreshold smallest value size in bytes to compress
+     */
+    public KVBinaryFormat(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isCompressing() {
+        return compressionThreshold != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return raw value bytes divided by stored value bytes of all values encoded
+     * by this instance, 1 if nothing was encoded yet
+     */
+    public double getCompressionRatio() {
+        long stored = storedValueBytes.get();
+        return stored == 0 ? 1 : (double) rawValueBytes.get() / stored;
+    }
+
+    @Override
+    public byte[] fileHeader() {
+        return MAGIC.clone();
+    }
+
+    /**
+     * @param value null to encode a tombstone
+     */
+    @Override
+    public byte[] encode(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? TOMBSTONE : valueBytes.length;
+        if (value != null && isCompressing()) {
+            rawValueBytes.addAndGet(valueBytes.length);
+            if (valueBytes.length >= compressionThreshold) {
+                byte[] deflated = deflate(valueBytes);
+                if (deflated.length < valueBytes.length) {
+                    valueBytes = deflated;
+                    valueLength = deflated.length | COMPRESSED;
+                }
+            }
+            storedValueBytes.addAndGet(valueBytes.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length);
+        buf.putInt(0);
+        buf.putInt(keyBytes.length);
+        buf.putInt(valueLength);
+        buf.put(keyBytes);
+        buf.put(valueBytes);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, buf.capacity() - 4);
+        buf.putInt(0, (int) crc.getValue());
+        return buf.array();
+    }
+
+    /**
+     * Read a record, a tombstone is returned with a null value when readValue is set.
+     * The checksum is only verified when the value is read.
+     */
+    @Override
+    public KVIterateStore.KVEntry read(KVRecordInput in, boolean readValue) throws IOException {
+        long startOffset = in.position();
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        int read = in.read(header, 0, header.length);
+        if (read == 0) return null;
+        if (read < header.length) {
+            throw new EOFException("Torn record header at " + startOffset);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        int crcValue = buf.getInt();
+        int keyLength = buf.getInt();
+        int valueLength = buf.getInt();
+        if (keyLength < 0 || valueLength < TOMBSTONE) {
+            throw new IOException("Invalid record length at " + startOffset);
+        }
+        boolean compressed = valueLength != TOMBSTONE && (valueLength & COMPRESSED) != 0;
+        int storedLength = valueLength == TOMBSTONE ? 0 : valueLength & ~COMPRESSED;
+
+        byte[] keyBytes = new byte[keyLength];
+        in.readFully(keyBytes);
+        String key = new String(keyBytes, StandardCharsets.UTF_8);
+        String value = null;
+        if (readValue) {
+            byte[] valueBytes = new byte[storedLength];
+            in.readFully(valueBytes);
+            CRC32 crc = new CRC32();
+            crc.update(header, 4, RECORD_HEADER_SIZE - 4);
+            crc.update(keyBytes);
+            crc.update(valueBytes);
+            if ((int) crc.getValue() != crcValue) {
+                throw new IOException("Record checksum mismatch at " + startOffset);
+            }
+            if (compressed) {
+                value = new String(inflate(valueBytes, startOffset), StandardCharsets.UTF_8);
+            } else if (valueLength != TOMBSTONE) {
+                value = new String(valueBytes, StandardCharsets.UTF_8);
+            }
+        } else {
+            long end = in.position() + storedLength;
+            if (end > in.length()) {
+                throw new EOFException("Torn record at " + startOffset);
+            }
+            in.skip(storedLength);
+        }
+        KVIterateStore.KVEntry entry = new KVIterateStore.KVEntry(startOffset, in.position(), key, value);
+        entry.tombstone = valueLength == TOMBSTONE;
+        return entry;
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            // a result not smaller than the raw value is thrown away, so cap the buffer there
+            ByteBuffer out = ByteBuffer.allocate(4 + raw.length);
+            out.putInt(raw.length);
+            byte[] array = out.array();
+            int length = 4;
+            while (!deflater.finished() && length < array.length) {
+                length += deflater.deflate(array, length, array.length - length);
+            }
+            if (!deflater.finished()) {
+                return raw;
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(array, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] stored, long startOffset) throws IOException {
+        if (stored.length < 4) {
+            throw new IOException("Invalid compressed value at " + startOffset);
+        }
+        int rawLength = ByteBuffer.wrap(stored).getInt();
+        if (rawLength < 0) {
+            throw new IOException("Invalid compressed value at " + startOffset);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, 4, stored.length - 4);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawLength) {
+                throw new IOException("Truncated compressed value at " + startOffset);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed value at " + startOffset, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+/**
+ * Bloom filter over the keys of a store, so lookups of keys that were never
+ * stored can be answered without reading the storage file.
+ * <p>
+ * Keys can not be removed, deleted keys only raise the false positive rate
+ * until the filter is rebuilt.
+ */
+public class KVBloomFilter {
+    public static final int BITS_PER_KEY = 10;
+    /**
+     * Optimal for 10 bits per key, about 1% false positives at capacity
+     */
+    public static final int HASH_COUNT = 7;
+    private static final int MIN_CAPACITY = 64;
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int capacity;
+    private int size = 0;
+
+    /**
+     * @param capacity number of keys the filter is sized for
+     */
+    public KVBloomFilter(int capacity) {
+        this.capacity = Math.max(capacity, MIN_CAPACITY);
+        this.bitCount = (long) this.capacity * BITS_PER_KEY;
+        this.bits = new long[(int) ((bitCount + 63) / 64)];
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters of the key, the two halves seed the double hashing
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private long bitIndex(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return Math.floorMod(h1 + (long) i * h2, bitCount);
+    }
+
+    public void put(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long index = bitIndex(hash, i);
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+        size++;
+    }
+
+    /**
+     * @return false if the key was definitely never put
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long index = bitIndex(hash, i);
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of keys put, including keys put more than once
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return whether more keys than the filter is sized for have been put
+     */
+    public boolean isOverloaded() {
+        return size > capacity;
+    }
+
+    /**
+     * @return false positive rate predicted from the number of keys put
+     */
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) HASH_COUNT * size / bitCount), HASH_COUNT);
+    }
+}
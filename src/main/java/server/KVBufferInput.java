@@ -0,0 +1,49 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * KVRecordInput over bytes already in memory
+ */
+public class KVBufferInput implements KVRecordInput {
+    protected ByteBuffer buffer;
+
+    public KVBufferInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public KVBufferInput(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public long position() {
+        return buffer.position();
+    }
+
+    @Override
+    public void seek(long position) {
+        buffer.position((int) Math.min(position, buffer.limit()));
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Buffered KVRecordInput on top of a RandomAccessFile,
+ * so scanning a file does not issue a read call per byte
+ */
+public class KVFileInput implements KVRecordInput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private RandomAccessFile raf;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    /**
+     * File offset of buffer[0]
+     */
+    private long bufferStart = 0;
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+
+    public KVFileInput(File file) throws IOException {
+        this.raf = new RandomAccessFile(file, "r");
+    }
+
+    private boolean fill() throws IOException {
+        bufferStart += bufferPos;
+        bufferPos = 0;
+        raf.seek(bufferStart);
+        bufferLimit = Math.max(raf.read(buffer), 0);
+        return bufferLimit > 0;
+    }
+
+    @Override
+    public long position() {
+        return bufferStart + bufferPos;
+    }
+
+    @Override
+    public void seek(long position) {
+        if (position >= bufferStart && position <= bufferStart + bufferLimit) {
+            bufferPos = (int) (position - bufferStart);
+        } else {
+            bufferStart = position;
+            bufferPos = 0;
+            bufferLimit = 0;
+        }
+    }
+
+    @Override
+    public long length() throws IOException {
+        return raf.length();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (bufferPos >= bufferLimit && !fill()) return -1;
+        return buffer[bufferPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            if (bufferPos >= bufferLimit && !fill()) break;
+            int n = Math.min(len - total, bufferLimit - bufferPos);
+            System.arraycopy(buffer, bufferPos, b, off + total, n);
+            bufferPos += n;
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -1,13 +1,36 @@
 package server;
 
+import app_kvServer.KVServer;
 import ecs.ECSNode;
 import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class KVIterateStore implements KVPersistentStore {
     private String dir = "./res";
@@ -17,17 +40,75 @@ public class KVIterateStore implements KVPersistentStore {
     private String prompt = "KVIterateStore: ";
     public static String MOVE_SUFFIX = "_move";
     public static String REMAIN_SUFFIX = "_remain";
-
-    private static final String ESCAPER = "-";
-    private static final String DELIM = ESCAPER + ",";
-    private static final String ESCAPED_ESCAPER = ESCAPER + "d";
+    private static final String REWRITE_SUFFIX = "_rewrite";
+    /**
+     * Records a data move between preMoveData and afterMoveData, so a restart knows
+     * whether to roll an interrupted move back or forward
+     */
+    public static final String MANIFEST_SUFFIX = "_manifest";
+    /**
+     * Manifest state once the move and remain files are durable, the receiver may not
+     * have the data yet
+     */
+    public static final String MOVE_PREPARED = "move";
+    /**
+     * Manifest state once the data was sent and the storage file is to be replaced by
+     * the remain file
+     */
+    public static final String MOVE_COMMITTED = "commit";
+
+    /**
+     * Format used when creating a new storage file
+     */
+    private KVRecordFormat defaultFormat = KVTextFormat.INSTANCE;
+    /**
+     * Format of the current storage file, detected from its header when opened
+     */
+    private KVRecordFormat format = KVTextFormat.INSTANCE;
+
+    /**
+     * In-memory index from key to the location of its entry in the storage file,
+     * null if the store is not running in indexed mode.
+     * Only kv rows are indexed, sql rows (key longer than MAX_KEY) are always scanned
+     */
+    private Map<String, KVEntry> index = null;
+
+    /**
+     * Shared mapping of the storage file, null unless reads are memory mapped
+     */
+    private KVMappedFile mappedFile = null;
+
+    /**
+     * Bloom filter over all keys in the storage file, null unless enabled
+     */
+    private KVBloomFilter bloomFilter = null;
+    /**
+     * Lookups answered by the filter, and lookups passed by the filter for absent keys
+     */
+    private AtomicLong bloomNegatives = new AtomicLong();
+    private AtomicLong bloomFalsePositives = new AtomicLong();
+    /**
+     * Cursors not closed yet, writes wait until this is empty. Cursors are opened under
+     * the read lock, so several threads may add to it at once
+     */
+    private final Set<KVCursor> openCursors = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Point reads through the index, cursor opening and whole-file copies take the read
+     * lock; writes, offset shifts and replacement of the storage file take the write lock
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition cursorsClosed = lock.writeLock().newCondition();
 
     public static class KVEntry {
         long startOffset;
         long endOffset;
         String key = null;
         String value = null;
-
+        /**
+         * Set by formats supporting tombstones (i.e. binary format)
+         */
+        boolean tombstone = false;
 
         public KVEntry(long startOffset, long endOffset) {
             this.startOffset = startOffset;
@@ -70,6 +151,14 @@ public class KVIterateStore implements KVPersistentStore {
         public void setValue(String value) {
             this.value = value;
         }
+
+        public long getStartOffset() {
+            return startOffset;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
     }
 
     public KVIterateStore() {
@@ -89,132 +178,533 @@ public class KVIterateStore implements KVPersistentStore {
         openFile();
     }
 
-    private String encodeValue(String value) {
-        return value.replaceAll("\r", "\\\\r")
-                .replaceAll("\n", "\\\\n")
-                .replaceAll(ESCAPER, ESCAPED_ESCAPER);
+    /**
+     * @param fileName storage file name
+     * @param indexed  keep an in-memory key to offset index so point lookups
+     *                 become a single positioned read instead of a full file scan
+     */
+    public KVIterateStore(String fileName, boolean indexed) {
+        this(fileName, indexed, KVTextFormat.INSTANCE);
+    }
+
+    /**
+     * @param fileName      storage file name
+     * @param indexed       keep an in-memory key to offset index
+     * @param defaultFormat record format for a newly created storage file,
+     *                      an existing file keeps the format it was written in
+     */
+    public KVIterateStore(String fileName, boolean indexed, KVRecordFormat defaultFormat) {
+        this(fileName, "./res", indexed, defaultFormat);
+    }
+
+    /**
+     * @param dir directory of the storage file
+     */
+    public KVIterateStore(String fileName, String dir, boolean indexed, KVRecordFormat defaultFormat) {
+        this(fileName, dir, indexed, defaultFormat, KVParallelLoader.NO_PROGRESS);
+    }
+
+    /**
+     * @param loadProgress called with the share of the storage file indexed so far in percent
+     */
+    public KVIterateStore(String fileName, String dir, boolean indexed, KVRecordFormat defaultFormat,
+                          IntConsumer loadProgress) {
+        this.fileName = fileName;
+        this.dir = dir;
+        this.defaultFormat = defaultFormat;
+        prompt = "KVIterateStore(" + fileName + "):";
+        openFile();
+        if (indexed) {
+            this.index = new HashMap<>();
+            rebuildIndex(loadProgress);
+        }
+        loadProgress.accept(100);
+    }
+
+    public boolean isIndexed() {
+        return index != null;
+    }
+
+    public KVRecordFormat getFormat() {
+        return format;
+    }
+
+    private byte[] encodeLine(String key, String val) throws IOException {
+        return format.encode(key, val);
+    }
+
+    /**
+     * Enable or disable the memory mapped read path for point reads and scans
+     * of the storage file, files beyond the mappable size fall back to buffered reads
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        lock.writeLock().lock();
+        try {
+            this.mappedFile = memoryMapped ? new KVMappedFile(this.storageFile) : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return mappedFile != null;
+    }
+
+    /**
+     * Enable or disable the Bloom filter, so lookups of missing keys
+     * return without reading the storage file
+     */
+    public void setBloomFilter(boolean enabled) {
+        lock.writeLock().lock();
+        try {
+            if (enabled) {
+                rebuildBloomFilter();
+            } else {
+                bloomFilter = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean hasBloomFilter() {
+        return bloomFilter != null;
+    }
+
+    /**
+     * @return lookups of missing keys answered by the Bloom filter
+     */
+    public long getBloomNegatives() {
+        return bloomNegatives.get();
+    }
+
+    /**
+     * @return lookups of missing keys the Bloom filter could not answer
+     */
+    public long getBloomFalsePositives() {
+        return bloomFalsePositives.get();
+    }
+
+    /**
+     * @return observed share of lookups of missing keys passed by the Bloom filter
+     */
+    public double getBloomFalsePositiveRate() {
+        long falsePositives = bloomFalsePositives.get();
+        long total = falsePositives + bloomNegatives.get();
+        return total == 0 ? 0 : (double) falsePositives / total;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return format instanceof KVBinaryFormat ? ((KVBinaryFormat) format).getCompressionRatio() : 1;
+    }
+
+    /**
+     * Size a new filter for the current keys in the storage file and fill it, called
+     * holding the write lock
+     */
+    private void rebuildBloomFilter() {
+        List<String> keys = new ArrayList<>();
+        try {
+            scan(this.storageFile, format, 0, false, (in, entry) -> keys.add(entry.getKey()));
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to build Bloom filter, lookups of missing keys scan the file", e);
+            bloomFilter = null;
+            return;
+        }
+        // leave room for as many inserts before the next rebuild
+        KVBloomFilter filter = new KVBloomFilter(keys.size() * 2);
+        keys.forEach(filter::put);
+        bloomFilter = filter;
+        logger.info(prompt + "Bloom filter built with " + keys.size() + " keys, expected false positive rate "
+                + filter.expectedFalsePositiveRate());
+    }
+
+    private void addToBloomFilter(String key) {
+        if (bloomFilter == null) return;
+        bloomFilter.put(key);
+        if (bloomFilter.isOverloaded()) {
+            rebuildBloomFilter();
+        }
+    }
+
+    private KVRecordInput openInput(File file) throws IOException {
+        if (mappedFile != null && file.equals(this.storageFile) && KVMappedFile.canMap(file.length())) {
+            return mappedFile.open();
+        }
+        return new KVFileInput(file);
+    }
+
+    /**
+     * Called after the storage file is replaced by another file as a whole
+     */
+    private void storageFileReplaced() {
+        if (mappedFile != null) {
+            mappedFile = new KVMappedFile(this.storageFile);
+        }
+        rebuildIndex(KVParallelLoader.NO_PROGRESS);
+        if (bloomFilter != null) {
+            rebuildBloomFilter();
+        }
+    }
+
+    private interface EntryConsumer {
+        void accept(KVRecordInput in, KVEntry entry) throws IOException;
+    }
+
+    /**
+     * Call the consumer on every entry of a file in order
+     *
+     * @param file       file to scan
+     * @param fileFormat format of the file
+     * @param fromOffset offset to start at, entries before it are skipped
+     * @param readValue  whether values should be decoded
+     */
+    private void scan(File file, KVRecordFormat fileFormat, long fromOffset, boolean readValue,
+                      EntryConsumer consumer) throws IOException {
+        try (KVRecordInput in = openInput(file)) {
+            in.seek(Math.max(fromOffset, fileFormat.headerLength()));
+            KVEntry entry;
+            while ((entry = fileFormat.read(in, readValue)) != null) {
+                consumer.accept(in, entry);
+                in.seek(entry.endOffset);
+            }
+        }
     }
 
-    private String decodeValue(String value) {
-        return value.replaceAll("\\\\r", "\r")
-                .replaceAll("\\\\n", "\n")
-                .replaceAll(ESCAPED_ESCAPER, ESCAPER);
+    /**
+     * Read the encoded bytes of an entry, so it can be copied without re-encoding
+     */
+    private static byte[] readRaw(KVRecordInput in, KVEntry entry) throws IOException {
+        byte[] bytes = new byte[(int) (entry.endOffset - entry.startOffset)];
+        in.seek(entry.startOffset);
+        in.readFully(bytes);
+        return bytes;
     }
 
-    private byte[] encodeLine(String key, String val) throws UnsupportedEncodingException {
-        return (encodeValue(key) + DELIM + encodeValue(val) + "\r\n").getBytes("UTF-8");
+    private RandomAccessFile createWithHeader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.write(format.fileHeader());
+        return raf;
     }
 
-    public synchronized void deleteEntry(KVEntry entry) throws IOException {
-        RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
-        deleteEntry(raf, entry.startOffset, entry.endOffset);
-        raf.close();
+    public void deleteEntry(KVEntry entry) throws IOException {
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
+            RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
+            deleteEntry(raf, entry.startOffset, entry.endOffset);
+            raf.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public synchronized void updateEntry(KVEntry entry) throws IOException {
-        RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
-        updateEntry(raf, entry.startOffset, entry.endOffset, encodeLine(entry.getKey(), entry.getValue()));
-        raf.close();
+    public void updateEntry(KVEntry entry) throws IOException {
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
+            RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
+            updateEntry(raf, entry.startOffset, entry.endOffset, encodeLine(entry.getKey(), entry.getValue()));
+            raf.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public synchronized void appendEntry(KVEntry entry) throws IOException {
-        RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
-        appendEntry(raf, encodeLine(entry.getKey(), entry.getValue()));
-        raf.close();
+    public void appendEntry(KVEntry entry) throws IOException {
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
+            RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
+            byte[] stringBytes = encodeLine(entry.getKey(), entry.getValue());
+            long offset = appendEntry(raf, stringBytes);
+            raf.close();
+            if (index != null && isIndexable(entry.getKey())) {
+                index.put(entry.getKey(), new KVEntry(offset, offset + stringBytes.length, entry.getKey(), null));
+            }
+            addToBloomFilter(entry.getKey());
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
+    /**
+     * Update or delete every entry matching the condition in a single sequential pass,
+     * writing a new storage file instead of shifting the tail of the file per entry
+     *
+     * @param update new value of a matching entry, null to delete it
+     * @return number of entries updated or deleted
+     */
+    public int updateWhere(BiPredicate<String, String> condition,
+                           BiFunction<String, String, String> update) throws IOException {
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
+            File rewriteFile = new File(getfileName() + REWRITE_SUFFIX);
+            int[] changed = {0};
+            try (RandomAccessFile rewriteRaf = createWithHeader(rewriteFile)) {
+                scan(this.storageFile, format, 0, true, (in, entry) -> {
+                    if (!condition.test(entry.getKey(), entry.getValue())) {
+                        rewriteRaf.write(readRaw(in, entry));
+                        return;
+                    }
+                    changed[0]++;
+                    String value = update.apply(entry.getKey(), entry.getValue());
+                    if (value != null) {
+                        rewriteRaf.write(encodeLine(entry.getKey(), value));
+                    }
+                });
+                if (changed[0] > 0) {
+                    rewriteRaf.getFD().sync();
+                }
+            } catch (IOException | RuntimeException e) {
+                rewriteFile.delete();
+                throw e;
+            }
+
+            if (changed[0] == 0) {
+                rewriteFile.delete();
+                return 0;
+            }
+            replaceStorageFile(rewriteFile);
+            logger.info(prompt + changed[0] + " entries updated or deleted in one pass");
+            return changed[0];
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
+    /**
+     * Remove an entry by shifting the tail of the file over it, called holding the write lock
+     */
     private void deleteEntry(RandomAccessFile raf, long offset1, long offset2) throws IOException {
-        synchronized (this) {
-            RandomAccessFile rTemp = new RandomAccessFile(new File(this.dir + "/" + "." + this.fileName + "~"),
-                    "rw");
-            long fileSize = raf.length();
-            FileChannel sourceChannel = raf.getChannel();
-            FileChannel targetChannel = rTemp.getChannel();
-            // move rest of the content (from end of the entry) to temp channel
-            sourceChannel.transferTo(offset2, fileSize - offset2, targetChannel);
-            // remove content from the start of the entry
-            sourceChannel.truncate(offset1);
-            // move content back
-            targetChannel.position(0L);
-            sourceChannel.transferFrom(targetChannel, offset1, (fileSize - offset2));
-            // clean the target_file
-            targetChannel.truncate(0);
-            sourceChannel.close();
-            targetChannel.close();
-            rTemp.close();
+        RandomAccessFile rTemp = new RandomAccessFile(new File(this.dir + "/" + "." + this.fileName + "~"),
+                "rw");
+        long fileSize = raf.length();
+        FileChannel sourceChannel = raf.getChannel();
+        FileChannel targetChannel = rTemp.getChannel();
+        // move rest of the content (from end of the entry) to temp channel
+        sourceChannel.transferTo(offset2, fileSize - offset2, targetChannel);
+        // remove content from the start of the entry
+        sourceChannel.truncate(offset1);
+        // move content back
+        targetChannel.position(0L);
+        sourceChannel.transferFrom(targetChannel, offset1, (fileSize - offset2));
+        // clean the target_file
+        targetChannel.truncate(0);
+        sourceChannel.close();
+        targetChannel.close();
+        rTemp.close();
+
+        if (index != null) {
+            index.values().removeIf(e -> e.startOffset == offset1);
+            shiftIndex(offset2, offset1 - offset2);
         }
     }
 
+    /**
+     * Replace an entry, shifting the tail of the file, called holding the write lock
+     */
     private void updateEntry(RandomAccessFile raf, long offset1, long offset2, byte[] stringBytes) throws IOException {
-        synchronized (this) {
-            RandomAccessFile rTemp = new RandomAccessFile(new File(this.dir + "/" + "." + this.fileName + "~"),
-                    "rw");
-            long fileSize = raf.length();
-            FileChannel sourceChannel = raf.getChannel();
-            FileChannel targetChannel = rTemp.getChannel();
-            // move rest of the content (from end of the entry) to temp channel
-            sourceChannel.transferTo(offset2, fileSize - offset2, targetChannel);
-            // remove content from the start of the entry
-            sourceChannel.truncate(offset1);
-            // insert the new entry
-            raf.seek(offset1);
-            raf.write(stringBytes);
-            long newOffset = raf.getFilePointer();
-            // move content back
-            targetChannel.position(0L);
-            sourceChannel.transferFrom(targetChannel, newOffset, (fileSize - offset2));
-            // clean target channel
-            targetChannel.truncate(0);
-            sourceChannel.close();
-            targetChannel.close();
-            rTemp.close();
-        }
-    }
-
-    private synchronized void appendEntry(RandomAccessFile raf, byte[] stringBytes) throws IOException {
-        raf.seek(raf.length());
+        RandomAccessFile rTemp = new RandomAccessFile(new File(this.dir + "/" + "." + this.fileName + "~"),
+                "rw");
+        long fileSize = raf.length();
+        FileChannel sourceChannel = raf.getChannel();
+        FileChannel targetChannel = rTemp.getChannel();
+        // move rest of the content (from end of the entry) to temp channel
+        sourceChannel.transferTo(offset2, fileSize - offset2, targetChannel);
+        // remove content from the start of the entry
+        sourceChannel.truncate(offset1);
+        // insert the new entry
+        raf.seek(offset1);
         raf.write(stringBytes);
+        long newOffset = raf.getFilePointer();
+        // move content back
+        targetChannel.position(0L);
+        sourceChannel.transferFrom(targetChannel, newOffset, (fileSize - offset2));
+        // clean target channel
+        targetChannel.truncate(0);
+        sourceChannel.close();
+        targetChannel.close();
+        rTemp.close();
+
+        if (index != null) {
+            shiftIndex(offset2, newOffset - offset2);
+            for (KVEntry e : index.values()) {
+                if (e.startOffset == offset1) {
+                    e.endOffset = newOffset;
+                }
+            }
+        }
     }
 
+    private long appendEntry(RandomAccessFile raf, byte[] stringBytes) throws IOException {
+        long offset = raf.length();
+        raf.seek(offset);
+        raf.write(stringBytes);
+        return offset;
+    }
 
-    @Override
-    public void put(String key, String value) throws Exception {
+    /**
+     * Move every indexed entry located at or after the given offset by delta bytes,
+     * called after the tail of the file is shifted by an update or delete
+     */
+    private void shiftIndex(long fromOffset, long delta) {
+        if (delta == 0) return;
+        for (KVEntry e : index.values()) {
+            if (e.startOffset >= fromOffset) {
+                e.startOffset += delta;
+                e.endOffset += delta;
+            }
+        }
+    }
+
+    private boolean isIndexable(String key) {
+        return key.length() <= KVServer.MAX_KEY;
+    }
 
-        assert (this.storageFile != null);
-        // search if key already exist;
-        KVEntry entry = this._get(key);
+    /**
+     * Scan the storage file from the given offset and add every kv row found to the index
+     *
+     * @param fromOffset offset to start scanning at, 0 to index the whole file
+     */
+    private void indexFrom(long fromOffset, IntConsumer progress) throws IOException {
+        long length = this.storageFile.length();
+        int[] reported = {-1};
+        scan(this.storageFile, format, fromOffset, false, (in, entry) -> {
+            int percent = length == 0 ? 100 : (int) (entry.endOffset * 100 / length);
+            if (percent != reported[0]) {
+                reported[0] = percent;
+                progress.accept(percent);
+            }
+            String key = entry.getKey();
+            if (!isIndexable(key)) return;
+            if (index.containsKey(key)) {
+                logger.warn(prompt + "Duplicated key found when indexing: " + key);
+                return;
+            }
+            index.put(key, new KVEntry(entry.startOffset, entry.endOffset, key, null));
+        });
+    }
+
+    /**
+     * Drop the index and rebuild it from the storage file,
+     * used at startup and whenever the storage file is replaced as a whole
+     */
+    private void rebuildIndex(IntConsumer progress) {
+        lock.writeLock().lock();
+        try {
+            if (index == null) return;
+            index.clear();
+            try {
+                indexFrom(0, progress);
+                logger.info(prompt + "Index built with " + index.size() + " entries");
+            } catch (IOException e) {
+                logger.error(prompt + "Unable to build index, fall back to full scan", e);
+                index = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read a single entry with a positioned read using its indexed location
+     */
+    private KVEntry readEntry(KVEntry location) throws IOException {
+        try (KVRecordInput in = openInput(this.storageFile)) {
+            in.seek(location.startOffset);
+            KVEntry entry = format.read(in, true);
+            if (entry == null) {
+                throw new IOException(prompt + "Indexed entry not found at " + location.startOffset);
+            }
+            return entry;
+        }
+    }
 
-        // construct an entry string with fixed length
-        byte[] stringBytes = encodeLine(key, value);
 
-        //modify the storage file
-        RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
+    @Override
+    public PutResult upsert(String key, String value) throws Exception {
+        lock.writeLock().lock();
         try {
-            if (value.equals("null")) {
-                if (entry == null) {
-                    logger.error(prompt + "Try to delete an entry with non-exist key: " + key);
-                    throw new IOException("Try to delete an entry with non-exist key: " + key);
+            awaitCursors();
+            assert (this.storageFile != null);
+            // search if key already exist;
+            KVEntry entry = this._get(key);
+
+            // construct an entry string with fixed length
+            byte[] stringBytes = encodeLine(key, value);
+
+            //modify the storage file
+            RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
+            try {
+                if (value.equals("null")) {
+                    if (entry == null) {
+                        logger.info(prompt + "Try to delete an entry with non-exist key: " + key);
+                        return PutResult.NOT_FOUND;
+                    } else {
+                        // delete that entry
+                        this.deleteEntry(raf, entry.startOffset, entry.endOffset);
+                        logger.info(prompt + "Delete entry (" + key + "=" + entry.value + ") successfully");
+                        return PutResult.DELETED;
+                    }
+                } else if (entry == null) {
+                    // append the entry to the end
+                    long offset = appendEntry(raf, stringBytes);
+                    if (index != null && isIndexable(key)) {
+                        index.put(key, new KVEntry(offset, offset + stringBytes.length, key, null));
+                    }
+                    addToBloomFilter(key);
+                    logger.info(prompt + "Insert new entry: (" + key + "=" + value + ") successfully");
+                    return PutResult.INSERTED;
                 } else {
-                    // delete that entry
-                    this.deleteEntry(raf, entry.startOffset, entry.endOffset);
-                    logger.info(prompt + "Delete entry (" + key + "=" + entry.value + ") successfully");
+                    this.updateEntry(raf, entry.startOffset, entry.endOffset, stringBytes);
+                    logger.info(prompt + "Modify entry with key: " + key + " (" + entry.value + "->" + value + ")");
+                    return PutResult.UPDATED;
                 }
-            } else if (entry == null) {
-                // append the entry to the end
-                appendEntry(raf, stringBytes);
-                logger.info(prompt + "Insert new entry: (" + key + "=" + value + ") successfully");
-            } else {
-                this.updateEntry(raf, entry.startOffset, entry.endOffset, stringBytes);
-                logger.info(prompt + "Modify entry with key: " + key + " (" + entry.value + "->" + value + ")");
-            }
 
+            } finally {
+                raf.close();
+            }
         } finally {
-            raf.close();
+            lock.writeLock().unlock();
         }
     }
 
     private KVEntry _get(String key) throws IOException {
+        if (definitelyAbsent(key)) {
+            bloomNegatives.incrementAndGet();
+            return null;
+        }
+        KVEntry entry = lookup(key);
+        if (entry == null && bloomFilter != null) {
+            bloomFalsePositives.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private boolean definitelyAbsent(String key) {
+        lock.readLock().lock();
+        try {
+            return bloomFilter != null && !bloomFilter.mightContain(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private KVEntry lookup(String key) throws IOException {
+        // point reads share the lock, so misses on different keys read in parallel
+        lock.readLock().lock();
+        try {
+            if (index != null && isIndexable(key)) {
+                KVEntry location = index.get(key);
+                return location == null ? null : readEntry(location);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
         List<KVEntry> selected = select((k, v) -> k.equals(key));
         if (selected.size() > 1) {
             logger.error("Following duplicated key entry found:");
@@ -229,7 +719,12 @@ public class KVIterateStore implements KVPersistentStore {
             if (areSame) {
                 // Remove duplication
                 // Fault tolerance
-                synchronized (this) {
+                lock.writeLock().lock();
+                try {
+                    if (!openCursors.isEmpty()) {
+                        // offsets could be stale once the cursors are gone, retry on a later get
+                        return selected.get(0);
+                    }
                     RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
                     for (int i = selected.size() - 1; i > 0; i--) {
                         KVEntry entry = selected.get(i);
@@ -237,6 +732,8 @@ public class KVIterateStore implements KVPersistentStore {
                         selected.remove(i);
                     }
                     raf.close();
+                } finally {
+                    lock.writeLock().unlock();
                 }
             }
         }
@@ -251,56 +748,161 @@ public class KVIterateStore implements KVPersistentStore {
     }
 
     public List<KVEntry> select(BiPredicate<String, String> condition) throws IOException {
-        synchronized (this) {
-            assert (this.storageFile != null);
-            List<KVEntry> result = new ArrayList<>();
+        List<KVEntry> result = new ArrayList<>();
+        try (KVCursor cursor = cursor(condition)) {
+            cursor.forEachRemaining(result::add);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
+    }
 
-            long endOffset = 0;
-            long startOffset;
-            try {
-                RandomAccessFile raf = new RandomAccessFile(this.storageFile, "r");
-                String line, curKey, curValue;
-                while ((line = raf.readLine()) != null) {
-                    // convert line from ISO to UTF-8
-                    line = new String(line.getBytes("ISO-8859-1"), "UTF-8");
-                    startOffset = endOffset;
-                    endOffset = raf.getFilePointer();
-                    if (line.isEmpty()) {
-                        logger.fatal("how could it be");
-                        continue;
-                    }
-                    String[] strs = line.split(DELIM);
-                    if (strs.length != 2) {
-                        raf.close();
-                        throw new IOException(prompt + "Invalid Entry found when getting data: " + line);
-                    }
-                    curKey = decodeValue(strs[0]);
-                    curValue = decodeValue(strs[1]);
-                    if (condition.test(curKey, curValue)) {
-                        result.add(new KVEntry(startOffset, endOffset, curKey, curValue));
-                    }
-                }
-                raf.close();
+    /**
+     * Open a cursor over the entries matching the condition, reading the file lazily
+     */
+    public KVCursor cursor(BiPredicate<String, String> condition) throws IOException {
+        lock.readLock().lock();
+        try {
+            return new KVCursor(condition, true);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Open a cursor over the entries whose key matches the condition. Values are not read,
+     * entries only carry their key and offsets
+     */
+    public KVCursor keyCursor(Predicate<String> condition) throws IOException {
+        lock.readLock().lock();
+        try {
+            return new KVCursor((key, value) -> condition.test(key), false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forward-only cursor over the entries of the storage file. Writes to the store wait
+     * until every open cursor is closed, so the file does not change under a cursor; the
+     * thread owning a cursor must close it before writing to the store
+     */
+    public class KVCursor implements Iterator<KVEntry>, Closeable {
+        private final BiPredicate<String, String> condition;
+        private final boolean readValue;
+        private final Thread owner = Thread.currentThread();
+        private KVRecordInput in;
+        private KVEntry next = null;
+
+        private KVCursor(BiPredicate<String, String> condition, boolean readValue) throws IOException {
+            assert (storageFile != null);
+            this.condition = condition;
+            this.readValue = readValue;
+            try {
+                this.in = openInput(storageFile);
             } catch (FileNotFoundException fnf) {
                 logger.error(prompt + "Storage file not found", fnf);
                 throw fnf;
             }
+            in.seek(format.headerLength());
+            openCursors.add(this);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) return true;
+            if (in == null) return false;
+            try {
+                KVEntry entry;
+                while ((entry = format.read(in, readValue)) != null) {
+                    in.seek(entry.endOffset);
+                    if (condition.test(entry.getKey(), entry.getValue())) {
+                        next = entry;
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+            close();
+            return false;
+        }
 
-            return result;
+        @Override
+        public KVEntry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            KVEntry entry = next;
+            next = null;
+            return entry;
+        }
+
+        /**
+         * @return the remaining entries as a stream closing the cursor when closed
+         */
+        public Stream<KVEntry> stream() {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                    .onClose(this::close);
+        }
+
+        /**
+         * Release the file and let waiting writes proceed, may be called more than once
+         */
+        @Override
+        public void close() {
+            lock.writeLock().lock();
+            try {
+                if (in == null) return;
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.warn(prompt + "Unable to close cursor input", e);
+                }
+                in = null;
+                openCursors.remove(this);
+                cursorsClosed.signalAll();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Wait until all cursors are closed, must be called holding the write lock before a write
+     */
+    private void awaitCursors() {
+        while (!openCursors.isEmpty()) {
+            for (KVCursor cursor : openCursors) {
+                if (cursor.owner == Thread.currentThread()) {
+                    throw new IllegalStateException(prompt + "Close the open cursor before writing to the store");
+                }
+            }
+            try {
+                cursorsClosed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(prompt + "Interrupted while waiting for cursors", e);
+            }
         }
     }
 
 
     @Override
     public void clearStorage() {
-        if (this.storageFile.delete()) {
-            logger.info(prompt + "Storage file deleted successfully.");
-        } else {
-            logger.error(prompt + "Failed to delete storage file");
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
+            if (this.storageFile.delete()) {
+                logger.info(prompt + "Storage file deleted successfully.");
+            } else {
+                logger.error(prompt + "Failed to delete storage file");
+            }
+            this.storageFile = null;
+            openFile();
+            storageFileReplaced();
+        } finally {
+            lock.writeLock().unlock();
         }
-        this.storageFile = null;
-        openFile();
     }
 
     @Override
@@ -315,115 +917,182 @@ public class KVIterateStore implements KVPersistentStore {
         return this.dir + "/" + this.fileName;
     }
 
+    @Override
     public void deleteData(String[] hashRange) {
-        synchronized (this) {
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
             File remainFile = new File(getfileName() + REMAIN_SUFFIX);
             try {
-                remainFile.createNewFile();
-                RandomAccessFile remainRaf = new RandomAccessFile(remainFile, "rw");
-                RandomAccessFile raf = new RandomAccessFile(this.storageFile, "r");
-
-                // insert remain data
-                // read original file line by line
-                String line, curKey, curValue;
-                while ((line = raf.readLine()) != null) {
-                    // convert line from ISO to UTF-8
-                    line = new String(line.getBytes("ISO-8859-1"), "UTF-8");
-                    if (line.isEmpty()) {
-                        System.out.println("how could it be");
-                        continue;
-                    }
-                    String[] strs = line.split(DELIM);
-                    if (strs.length != 2) {
-                        raf.close();
-                        throw new IOException(prompt + "Invalid Entry found when deleting: " + line);
-                    }
-                    curKey = strs[0];
-                    curValue = strs[1];
-                    byte[] stringBytes = (curKey + DELIM + curValue + "\r\n").getBytes("UTF-8");
-                    String oriKey = decodeValue(curKey);
-                    // append to move file
-                    if (!ECSNode.isKeyInRange(oriKey, hashRange)) {
-                        long offset = remainRaf.length();
-                        remainRaf.seek(offset);
-                        remainRaf.write(stringBytes);
-                    }
+                try (RandomAccessFile remainRaf = createWithHeader(remainFile)) {
+                    // copy entries out of the range to the remain file
+                    scan(this.storageFile, format, 0, false, (in, entry) -> {
+                        if (!ECSNode.isKeyInRange(entry.getKey(), hashRange)) {
+                            remainRaf.write(readRaw(in, entry));
+                        }
+                    });
+                    remainRaf.getFD().sync();
                 }
-                raf.close();
-                remainRaf.close();
-
+                // the remain file takes the place of the original one in a single step
+                replaceStorageFile(remainFile);
+                logger.debug("successfully replaced the storage file by the remain file");
             } catch (IOException e) {
-                logger.error(prompt + "Unable to remove file", e);
-                e.printStackTrace();
+                logger.error(prompt + "Unable to remove data, storage file kept", e);
+                remainFile.delete();
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
 
-            // delete original file and rename the remain file
-            if (this.storageFile.delete()) {
-                logger.debug("Original file deleted");
+    }
+
+    /**
+     * The storage file is updated in place, so the snapshot is a copy of it. Open cursors
+     * only read the file and do not delay the copy
+     */
+    @Override
+    public KVSnapshot snapshot(File dir) throws IOException {
+        KVSnapshot.createDir(dir);
+        return KVSnapshot.ofFiles(dir, Collections.singletonList(copyStorageFile(dir)), true);
+    }
+
+    /**
+     * Writes wait for the lock held by the copy
+     */
+    @Override
+    public boolean isSnapshotConcurrent() {
+        return true;
+    }
+
+    /**
+     * Copy the storage file into the directory while no write is in progress
+     */
+    File copyStorageFile(File dir) throws IOException {
+        lock.readLock().lock();
+        try {
+            return KVSnapshot.copy(this.storageFile, dir);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Atomically rename a complete file over the storage file, a crash leaves either
+     * the old or the new storage file but never none
+     */
+    private void replaceStorageFile(File source) throws IOException {
+        Files.move(source.toPath(), this.storageFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        storageFileReplaced();
+    }
+
+    /**
+     * Make renames in the storage directory durable, not supported on every platform
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(Paths.get(this.dir), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug(prompt + "Unable to sync directory " + this.dir);
+        }
+    }
+
+    private File manifestFile() {
+        return new File(getfileName() + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Atomically write the manifest recording the state of a data move
+     *
+     * @param state MOVE_PREPARED or MOVE_COMMITTED
+     */
+    private void writeManifest(String state, String range) throws IOException {
+        File manifest = manifestFile();
+        File temp = new File(manifest.getPath() + "~");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write((state + " " + range + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), manifest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * @return state and range of the manifest, null if there is none or it is unreadable
+     */
+    private String[] readManifest() {
+        File manifest = manifestFile();
+        if (!manifest.exists()) return null;
+        try {
+            String record = new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8).trim();
+            String[] parts = record.split(" ", 2);
+            return parts.length == 2 ? parts : null;
+        } catch (IOException e) {
+            logger.warn(prompt + "Unable to read the manifest", e);
+            return null;
+        }
+    }
+
+    /**
+     * Finish or roll back a data move interrupted by a crash and remove files of
+     * unfinished rewrites, called before the storage file is opened
+     */
+    private void recover() {
+        File manifest = manifestFile();
+        File moveFile = new File(getfileName() + MOVE_SUFFIX);
+        File remainFile = new File(getfileName() + REMAIN_SUFFIX);
+        String[] record = readManifest();
+        if (record != null && remainFile.exists()) {
+            if (MOVE_COMMITTED.equals(record[0])) {
+                // the data was sent, the remain file is durable and replaces the storage file
+                logger.warn(prompt + "Rolling forward interrupted move of range " + record[1]);
+                try {
+                    Files.move(remainFile.toPath(), this.storageFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    syncDirectory();
+                } catch (IOException e) {
+                    logger.error(prompt + "Unable to replace the storage file, moved data kept", e);
+                }
             } else {
-                logger.error("Unable to delete the original file");
+                // the receiver may not have the data, the storage file still holds every key
+                logger.warn(prompt + "Rolling back interrupted move of range " + record[1]);
             }
-            if (remainFile.renameTo(new File(getfileName()))) {
-                logger.debug("successfully rename the remain file");
-            } else {
-                logger.error("Unable to rename the remain file");
+        } else if (record != null) {
+            logger.info(prompt + "Storage file of the move of range " + record[1] + " already replaced");
+        }
+        for (File file : new File[]{moveFile, remainFile, new File(getfileName() + REWRITE_SUFFIX)}) {
+            if (file.delete()) {
+                logger.info(prompt + "Removed leftover file " + file.getName());
             }
         }
-
+        manifest.delete();
     }
 
+    @Override
     public void preMoveData(String[] hashRange) {
-        synchronized (this) {
+        lock.readLock().lock();
+        try {
             File moveFile = new File(getfileName() + MOVE_SUFFIX);
             File remainFile = new File(getfileName() + REMAIN_SUFFIX);
 
-            try {
-                moveFile.createNewFile();
-                remainFile.createNewFile();
-
-                RandomAccessFile moveRaf = new RandomAccessFile(moveFile, "rw");
-                RandomAccessFile remainRaf = new RandomAccessFile(remainFile, "rw");
-                RandomAccessFile raf = new RandomAccessFile(this.storageFile, "r");
-
-                // read original file line by line
-                String line, curKey, curValue;
-                while ((line = raf.readLine()) != null) {
-                    // convert line from ISO to UTF-8
-                    line = new String(line.getBytes("ISO-8859-1"), "UTF-8");
-                    if (line.isEmpty()) {
-                        System.out.println("how could it be");
-                        continue;
-                    }
-                    String[] strs = line.split(DELIM);
-                    if (strs.length != 2) {
-                        raf.close();
-                        throw new IOException(prompt + "Invalid Entry found when moving data: " + line);
+            try (RandomAccessFile moveRaf = createWithHeader(moveFile);
+                 RandomAccessFile remainRaf = createWithHeader(remainFile)) {
+                scan(this.storageFile, format, 0, false, (in, entry) -> {
+                    if (ECSNode.isKeyInRange(entry.getKey(), hashRange)) {
+                        moveRaf.write(readRaw(in, entry));
+                    } else {
+                        remainRaf.write(readRaw(in, entry));
                     }
-                    curKey = strs[0];
-                    curValue = strs[1];
-                    byte[] stringBytes = (curKey + DELIM + curValue + "\r\n").getBytes("UTF-8");
-                    String oriKey = decodeValue(curKey);
-                    // append to move file
-                    if (ECSNode.isKeyInRange(oriKey, hashRange)) {
-                        long offset = moveRaf.length();
-                        moveRaf.seek(offset);
-                        moveRaf.write(stringBytes);
-                    }
-                    // append to remain file
-                    else {
-                        long offset = remainRaf.length();
-                        remainRaf.seek(offset);
-                        remainRaf.write(stringBytes);
-                    }
-
-                }
-                raf.close();
-                moveRaf.close();
-                remainRaf.close();
-
+                });
+                remainRaf.getFD().sync();
+                writeManifest(MOVE_PREPARED, hashRange[0] + " " + hashRange[1]);
             } catch (IOException e) {
                 logger.error(prompt + "Unable to create move and remain file", e);
             }
+        } finally {
+            lock.readLock().unlock();
         }
 
     }
@@ -432,8 +1101,11 @@ public class KVIterateStore implements KVPersistentStore {
         this.afterMoveData(true);
     }
 
+    @Override
     public void afterMoveData(boolean shouldDelete) {
-        synchronized (this) {
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
             File moveFile = new File(getfileName() + MOVE_SUFFIX);
             File remainFile = new File(getfileName() + REMAIN_SUFFIX);
 
@@ -443,17 +1115,18 @@ public class KVIterateStore implements KVPersistentStore {
                 logger.error("Unable to delete the move file");
             }
 
-            // delete the original file and rename the remain file
+            // replace the original file by the remain file
             if (shouldDelete) {
-                if (this.storageFile.delete()) {
-                    logger.debug("Original file deleted");
-                } else {
-                    logger.error("Unable to delete the original file");
-                }
-                if (remainFile.renameTo(new File(getfileName()))) {
-                    logger.debug("successfully rename the remain file");
-                } else {
-                    logger.error("Unable to rename the remain file");
+                try {
+                    String[] record = readManifest();
+                    if (record != null) {
+                        writeManifest(MOVE_COMMITTED, record[1]);
+                    }
+                    replaceStorageFile(remainFile);
+                    logger.debug("successfully replaced the storage file by the remain file");
+                } catch (IOException e) {
+                    logger.error(prompt + "Unable to replace the storage file, moved data kept", e);
+                    remainFile.delete();
                 }
             } else {
                 // delete the remain file
@@ -463,9 +1136,73 @@ public class KVIterateStore implements KVPersistentStore {
                     logger.error("Unable to delete the remain file");
                 }
             }
+            // the move is finished once the manifest is gone
+            manifestFile().delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    }
 
+    /**
+     * Append all entries in a data file received from another server to the storage file
+     *
+     * @param dataFile file in storage format, deleted after merging
+     */
+    @Override
+    public void mergeData(File dataFile) throws IOException {
+        lock.writeLock().lock();
+        try {
+            awaitCursors();
+            KVRecordFormat dataFormat = KVRecordFormat.detect(dataFile, format);
+            RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw");
+            long sourceFileSize = raf.length();
+            if (dataFormat == format) {
+                RandomAccessFile rTemp = new RandomAccessFile(dataFile, "rw");
+                long headerLength = Math.min(format.headerLength(), rTemp.length());
+                long targetFileSize = rTemp.length() - headerLength;
+                FileChannel sourceChannel = raf.getChannel();
+                FileChannel targetChannel = rTemp.getChannel();
+
+                targetChannel.position(headerLength);
+                sourceChannel.transferFrom(targetChannel, sourceFileSize, targetFileSize);
+                // clean the target_file
+                targetChannel.truncate(0);
+                sourceChannel.close();
+                targetChannel.close();
+                rTemp.close();
+            } else {
+                // sender runs another format, re-encode every entry
+                logger.info(prompt + "Converting received data to " + format.getClass().getSimpleName());
+                raf.seek(sourceFileSize);
+                scan(dataFile, dataFormat, 0, true, (in, entry) ->
+                        raf.write(format.encode(entry.getKey(), entry.getValue())));
+            }
+            raf.close();
+            dataFile.delete();
+
+            if (index != null) {
+                indexFrom(sourceFileSize, KVParallelLoader.NO_PROGRESS);
+            }
+            if (bloomFilter != null) {
+                scan(this.storageFile, format, sourceFileSize, false,
+                        (in, entry) -> addToBloomFilter(entry.getKey()));
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
+    @Override
+    public void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(this.storageFile, "rw")) {
+                raf.getFD().sync();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     private void openFile() {
@@ -481,6 +1218,7 @@ public class KVIterateStore implements KVPersistentStore {
                 }
             }
             this.storageFile = new File(this.dir + "/" + this.fileName);
+            recover();
             try {
                 fileNotExist = this.storageFile.createNewFile();
                 if (fileNotExist) {
@@ -488,6 +1226,10 @@ public class KVIterateStore implements KVPersistentStore {
                 } else {
                     logger.info(prompt + "Storage file found");
                 }
+                this.format = KVRecordFormat.detect(this.storageFile, defaultFormat);
+                if (this.storageFile.length() == 0 && format.headerLength() > 0) {
+                    createWithHeader(this.storageFile).close();
+                }
             } catch (IOException e) {
                 logger.error(prompt + "Error when trying to initialize file instance", e);
             }
@@ -0,0 +1,624 @@
+package server;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.IntConsumer;
+
+/**
+ * Log structured persistent store
+ * <p>
+ * Entries are only ever appended to the active segment file, a delete ("null" value)
+ * is written as a tombstone. The location of the latest record of every key is kept
+ * in memory, so a get is a single positioned read and a put is a single append.
+ * <p>
+ * Once the active segment reaches the segment size a new one is started. A background
+ * compactor rewrites all sealed segments into one when the share of garbage
+ * (overwritten records and tombstones) exceeds the garbage ratio.
+ * <p>
+ * Segments hold records in KVBinaryFormat without the file header.
+ */
+public class KVLogStore implements KVPersistentStore {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final String SEGMENT_SUFFIX = ".log";
+    public static final String COMPACT_SUFFIX = ".compact";
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final double DEFAULT_GARBAGE_RATIO = 0.5;
+
+    private static final KVBinaryFormat FORMAT = KVBinaryFormat.INSTANCE;
+    /**
+     * A record with an empty key marks the segment as compaction output,
+     * which supersedes every segment with a lower id
+     */
+    private static final String COMPACTION_MARKER = "";
+
+    private String dir = "./res";
+    private String fileName = "logDatabase";
+    private String prompt;
+    private long segmentSize;
+    private double garbageRatio;
+
+    /**
+     * Segment id to segment file, the highest id is the active segment
+     */
+    private TreeMap<Integer, File> segments = new TreeMap<>();
+    private Map<Integer, RandomAccessFile> readers = new HashMap<>();
+    private Map<String, Location> index = new HashMap<>();
+    /**
+     * Bytes of dead records per segment
+     */
+    private Map<Integer, Long> garbage = new HashMap<>();
+    private RandomAccessFile activeRaf;
+    private int activeId;
+    /**
+     * Bumped whenever segments are replaced outside of compaction,
+     * a running compaction is abandoned if it changes
+     */
+    private int generation = 0;
+
+    private String[] moveRange;
+    private final Object compactionLock = new Object();
+    private final Object compactorSignal = new Object();
+    private boolean compactionRequested = false;
+    private volatile boolean closed = false;
+    private Thread compactor;
+
+    private static class Location {
+        int segment;
+        long offset;
+        int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public KVLogStore() {
+        this("logDatabase");
+    }
+
+    public KVLogStore(String fileName) {
+        this(fileName, "./res", DEFAULT_SEGMENT_SIZE, DEFAULT_GARBAGE_RATIO);
+    }
+
+    /**
+     * @param fileName     prefix of the segment files
+     * @param dir          directory holding the segment files
+     * @param segmentSize  size in bytes after which the active segment is sealed
+     * @param garbageRatio share of garbage in the store that triggers compaction
+     */
+    public KVLogStore(String fileName, String dir, long segmentSize, double garbageRatio) {
+        this(fileName, dir, segmentSize, garbageRatio, KVParallelLoader.NO_PROGRESS);
+    }
+
+    /**
+     * Segments are read in parallel and replayed into the index in order
+     *
+     * @param loadProgress called with the share of segments read so far in percent
+     */
+    public KVLogStore(String fileName, String dir, long segmentSize, double garbageRatio,
+                      IntConsumer loadProgress) {
+        this.fileName = fileName;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.garbageRatio = garbageRatio;
+        this.prompt = "KVLogStore(" + fileName + "):";
+        try {
+            openStore(loadProgress);
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to open log store", e);
+        }
+        startCompactor();
+    }
+
+    private File segmentFile(int id) {
+        return new File(this.dir + "/" + this.fileName + "_" + id + SEGMENT_SUFFIX);
+    }
+
+    private void openStore(IntConsumer loadProgress) throws IOException {
+        File storeDir = new File(this.dir);
+        if (!storeDir.exists() && !storeDir.mkdirs()) {
+            throw new IOException("Unable to create dir " + this.dir);
+        }
+
+        String prefix = this.fileName + "_";
+        File[] files = storeDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX + COMPACT_SUFFIX)) {
+                    // unfinished compaction output
+                    file.delete();
+                } else if (name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        int id = Integer.parseInt(name.substring(prefix.length(),
+                                name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(id, file);
+                    } catch (NumberFormatException e) {
+                        // belongs to another store sharing the prefix
+                    }
+                }
+            }
+        }
+
+        // a finished compaction output supersedes all segments before it
+        for (Integer id : new ArrayList<>(segments.descendingKeySet())) {
+            if (isCompactionOutput(segments.get(id))) {
+                for (Integer older : new ArrayList<>(segments.headMap(id).keySet())) {
+                    logger.info(prompt + "Remove segment " + older + " superseded by compaction");
+                    segments.remove(older).delete();
+                }
+                break;
+            }
+        }
+
+        List<Callable<List<KVIterateStore.KVEntry>>> tasks = new ArrayList<>();
+        for (Map.Entry<Integer, File> segment : segments.entrySet()) {
+            int id = segment.getKey();
+            boolean isLast = segment.getKey().equals(segments.lastKey());
+            tasks.add(() -> readSegment(id, segment.getValue(), isLast));
+        }
+        // later records of a key supersede earlier ones, so replay in segment order
+        Iterator<List<KVIterateStore.KVEntry>> loaded = KVParallelLoader.loadAll(tasks, loadProgress).iterator();
+        for (Integer id : segments.keySet()) {
+            for (KVIterateStore.KVEntry entry : loaded.next()) {
+                applyToIndex(id, entry);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(1, segmentFile(1));
+        }
+        activeId = segments.lastKey();
+        activeRaf = new RandomAccessFile(segments.get(activeId), "rw");
+        activeRaf.seek(activeRaf.length());
+        logger.info(prompt + "Opened " + segments.size() + " segments with " + index.size() + " entries");
+    }
+
+    private boolean isCompactionOutput(File file) {
+        try (KVRecordInput in = new KVFileInput(file)) {
+            KVIterateStore.KVEntry first = FORMAT.read(in, false);
+            return first != null && COMPACTION_MARKER.equals(first.getKey());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the keys and locations of all records of one segment
+     *
+     * @param isLast a torn record at the end of the last segment is truncated
+     */
+    private List<KVIterateStore.KVEntry> readSegment(int id, File file, boolean isLast) throws IOException {
+        List<KVIterateStore.KVEntry> entries = new ArrayList<>();
+        long validLength = 0;
+        try (KVRecordInput in = new KVFileInput(file)) {
+            KVIterateStore.KVEntry entry;
+            while ((entry = FORMAT.read(in, false)) != null) {
+                entries.add(entry);
+                validLength = entry.endOffset;
+            }
+        } catch (IOException e) {
+            if (isLast) {
+                logger.warn(prompt + "Torn record found at the end of segment " + id + ", truncating");
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.setLength(validLength);
+                raf.close();
+            } else {
+                logger.error(prompt + "Corrupted record found in segment " + id
+                        + " at offset " + validLength, e);
+            }
+        }
+        return entries;
+    }
+
+    private void addGarbage(int segment, long bytes) {
+        garbage.merge(segment, bytes, Long::sum);
+    }
+
+    private void applyToIndex(int segment, KVIterateStore.KVEntry entry) {
+        int length = (int) (entry.endOffset - entry.startOffset);
+        if (COMPACTION_MARKER.equals(entry.getKey())) {
+            addGarbage(segment, length);
+            return;
+        }
+        Location old = index.get(entry.getKey());
+        if (old != null) {
+            addGarbage(old.segment, old.length);
+        }
+        if (entry.tombstone) {
+            index.remove(entry.getKey());
+            addGarbage(segment, length);
+        } else {
+            index.put(entry.getKey(), new Location(segment, entry.startOffset, length));
+        }
+    }
+
+    /**
+     * Append a record to the active segment and update the index
+     */
+    private void append(String key, String value) throws IOException {
+        byte[] bytes = FORMAT.encode(key, value);
+        long offset = activeRaf.length();
+        activeRaf.seek(offset);
+        activeRaf.write(bytes);
+        KVIterateStore.KVEntry entry = new KVIterateStore.KVEntry(offset, offset + bytes.length, key, value);
+        entry.tombstone = value == null;
+        applyToIndex(activeId, entry);
+
+        if (activeRaf.length() >= segmentSize) {
+            rollSegment();
+        }
+    }
+
+    /**
+     * Seal the active segment and start a new one
+     */
+    private void rollSegment() throws IOException {
+        // sealed segments are only synced once, sync covers the active segment
+        activeRaf.getFD().sync();
+        activeRaf.close();
+        activeId = activeId + 1;
+        segments.put(activeId, segmentFile(activeId));
+        activeRaf = new RandomAccessFile(segments.get(activeId), "rw");
+        logger.debug(prompt + "Start new segment " + activeId);
+    }
+
+    private RandomAccessFile reader(int segment) throws IOException {
+        if (segment == activeId) return activeRaf;
+        RandomAccessFile raf = readers.get(segment);
+        if (raf == null) {
+            raf = new RandomAccessFile(segments.get(segment), "r");
+            readers.put(segment, raf);
+        }
+        return raf;
+    }
+
+    private byte[] readRaw(Location location) throws IOException {
+        RandomAccessFile raf = reader(location.segment);
+        byte[] bytes = new byte[location.length];
+        raf.seek(location.offset);
+        raf.readFully(bytes);
+        return bytes;
+    }
+
+    private KVIterateStore.KVEntry readRecord(Location location) throws IOException {
+        return FORMAT.read(new KVBufferInput(readRaw(location)), true);
+    }
+
+    @Override
+    public synchronized PutResult upsert(String key, String value) throws Exception {
+        boolean exists = index.containsKey(key);
+        PutResult result;
+        if (value.equals("null")) {
+            if (!exists) {
+                logger.info(prompt + "Try to delete an entry with non-exist key: " + key);
+                return PutResult.NOT_FOUND;
+            }
+            append(key, null);
+            result = PutResult.DELETED;
+            logger.info(prompt + "Delete entry (" + key + ") successfully");
+        } else {
+            append(key, value);
+            result = exists ? PutResult.UPDATED : PutResult.INSERTED;
+            logger.info(prompt + "Put entry: (" + key + "=" + value + ") successfully");
+        }
+        requestCompactionIfNeeded();
+        return result;
+    }
+
+    @Override
+    public synchronized String get(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null) return null;
+        return readRecord(location).getValue();
+    }
+
+    @Override
+    public synchronized boolean inStorage(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized void clearStorage() {
+        try {
+            closeFiles();
+            for (File segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            index.clear();
+            garbage.clear();
+            generation++;
+            openStore(KVParallelLoader.NO_PROGRESS);
+            logger.info(prompt + "Storage cleared");
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to clear storage", e);
+        }
+    }
+
+    @Override
+    public String getfileName() {
+        return this.dir + "/" + this.fileName;
+    }
+
+    @Override
+    public synchronized void deleteData(String[] hashRange) {
+        try {
+            for (String key : keysInRange(hashRange)) {
+                append(key, null);
+            }
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to delete data", e);
+        }
+        requestCompactionIfNeeded();
+    }
+
+    private List<String> keysInRange(String[] hashRange) {
+        List<String> keys = new ArrayList<>();
+        for (String key : index.keySet()) {
+            if (ECSNode.isKeyInRange(key, hashRange)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public synchronized void preMoveData(String[] hashRange) {
+        this.moveRange = hashRange;
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(moveFile))) {
+            out.write(FORMAT.fileHeader());
+            for (String key : keysInRange(hashRange)) {
+                // live records are copied as is
+                out.write(readRaw(index.get(key)));
+            }
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to create move file", e);
+        }
+    }
+
+    @Override
+    public synchronized void afterMoveData(boolean shouldDelete) {
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        if (moveFile.delete()) {
+            logger.debug("Move file deleted");
+        } else {
+            logger.error("Unable to delete the move file");
+        }
+        if (shouldDelete && moveRange != null) {
+            deleteData(moveRange);
+        }
+        moveRange = null;
+    }
+
+    @Override
+    public synchronized void mergeData(File dataFile) throws IOException {
+        // move files start with the binary header, snapshot segments are plain records
+        boolean header = dataFile.length() > 0 && KVRecordFormat.detect(dataFile, FORMAT) == FORMAT;
+        try (KVRecordInput in = new KVFileInput(dataFile)) {
+            in.seek(header ? FORMAT.headerLength() : 0);
+            KVIterateStore.KVEntry entry;
+            while ((entry = FORMAT.read(in, true)) != null) {
+                if (!entry.tombstone || index.containsKey(entry.getKey())) {
+                    append(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        dataFile.delete();
+        requestCompactionIfNeeded();
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        activeRaf.getFD().sync();
+    }
+
+    /**
+     * Segments are append-only and compaction writes new files, so the snapshot links the
+     * segment files and copies the index. Records appended after the snapshot are past the
+     * indexed ones and never read by it
+     */
+    @Override
+    public synchronized KVSnapshot snapshot(File dir) throws IOException {
+        KVSnapshot.createDir(dir);
+        Map<Integer, File> links = new HashMap<>();
+        for (Map.Entry<Integer, File> segment : segments.entrySet()) {
+            links.put(segment.getKey(), KVSnapshot.link(segment.getValue(), dir));
+        }
+        Map<String, KVSnapshot.Record> records = new HashMap<>();
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            records.put(entry.getKey(),
+                    new KVSnapshot.Record(links.get(location.segment), location.offset, location.length));
+        }
+        // move files of this store have no file header
+        return KVSnapshot.ofIndex(dir, records, false);
+    }
+
+    public synchronized long getGarbageSize() {
+        long total = 0;
+        for (Long bytes : garbage.values()) total += bytes;
+        return total;
+    }
+
+    public synchronized long getStorageSize() {
+        long total = 0;
+        for (File segment : segments.values()) total += segment.length();
+        return total;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private boolean shouldCompact() {
+        long garbageSize = getGarbageSize();
+        return garbageSize >= segmentSize / 4 && garbageSize >= garbageRatio * getStorageSize();
+    }
+
+    private void requestCompactionIfNeeded() {
+        if (!shouldCompact()) return;
+        synchronized (compactorSignal) {
+            compactionRequested = true;
+            compactorSignal.notify();
+        }
+    }
+
+    private void startCompactor() {
+        compactor = new Thread(() -> {
+            while (true) {
+                synchronized (compactorSignal) {
+                    while (!compactionRequested && !closed) {
+                        try {
+                            compactorSignal.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed) return;
+                    compactionRequested = false;
+                }
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.error(prompt + "Compaction failed", e);
+                }
+            }
+        }, "KVLogStore-compactor-" + fileName);
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Seal the active segment and rewrite all sealed segments into a single one holding
+     * only live records. Records are copied without holding the store lock, the index
+     * is switched over to the new segment at the end.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            int targetId;
+            int startGeneration;
+            Map<String, Location> live = new HashMap<>();
+            synchronized (this) {
+                if (closed) return;
+                if (activeRaf.length() > 0) {
+                    rollSegment();
+                }
+                targetId = segments.lowerKey(activeId) == null ? -1 : segments.lowerKey(activeId);
+                if (targetId < 0) return;
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    if (entry.getValue().segment <= targetId) {
+                        live.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                startGeneration = generation;
+            }
+            logger.info(prompt + "Compacting segments up to " + targetId + " with " + live.size() + " live entries");
+
+            File output = new File(segmentFile(targetId).getPath() + COMPACT_SUFFIX);
+            Map<String, Location> moved = new HashMap<>();
+            Map<Integer, RandomAccessFile> sources = new HashMap<>();
+            try (RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+                out.setLength(0);
+                out.write(FORMAT.encode(COMPACTION_MARKER, ""));
+                for (Map.Entry<String, Location> entry : live.entrySet()) {
+                    Location location = entry.getValue();
+                    RandomAccessFile source = sources.get(location.segment);
+                    if (source == null) {
+                        source = new RandomAccessFile(segmentFile(location.segment), "r");
+                        sources.put(location.segment, source);
+                    }
+                    byte[] bytes = new byte[location.length];
+                    source.seek(location.offset);
+                    source.readFully(bytes);
+                    moved.put(entry.getKey(), new Location(targetId, out.getFilePointer(), bytes.length));
+                    out.write(bytes);
+                }
+                out.getFD().sync();
+            } finally {
+                for (RandomAccessFile source : sources.values()) {
+                    source.close();
+                }
+            }
+
+            synchronized (this) {
+                if (closed || generation != startGeneration) {
+                    logger.info(prompt + "Storage closed or changed during compaction, abandon compaction");
+                    output.delete();
+                    return;
+                }
+                for (Integer id : new ArrayList<>(segments.headMap(targetId, true).keySet())) {
+                    RandomAccessFile raf = readers.remove(id);
+                    if (raf != null) raf.close();
+                }
+                // the output supersedes every segment up to the target id
+                Files.move(output.toPath(), segmentFile(targetId).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                for (Integer id : new ArrayList<>(segments.headMap(targetId).keySet())) {
+                    segments.remove(id).delete();
+                    garbage.remove(id);
+                }
+                garbage.put(targetId, (long) FORMAT.encode(COMPACTION_MARKER, "").length);
+
+                for (Map.Entry<String, Location> entry : moved.entrySet()) {
+                    // skip keys overwritten or deleted while compacting
+                    if (index.get(entry.getKey()) == live.get(entry.getKey())) {
+                        index.put(entry.getKey(), entry.getValue());
+                    } else {
+                        addGarbage(targetId, entry.getValue().length);
+                    }
+                }
+                logger.info(prompt + "Compaction finished, " + segments.size() + " segments left");
+            }
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        for (RandomAccessFile raf : readers.values()) {
+            raf.close();
+        }
+        readers.clear();
+        if (activeRaf != null) {
+            activeRaf.close();
+        }
+    }
+
+    /**
+     * Stop the compactor and release all file handles. Waits for a running compaction,
+     * which then leaves the segment files as they are.
+     */
+    @Override
+    public void close() {
+        synchronized (compactorSignal) {
+            closed = true;
+            compactorSignal.notify();
+        }
+        if (compactor != null && compactor != Thread.currentThread()) {
+            try {
+                compactor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // not nested in the store lock, compaction takes the locks in this order
+        synchronized (compactionLock) {
+            synchronized (this) {
+                try {
+                    closeFiles();
+                } catch (IOException e) {
+                    logger.error(prompt + "Unable to close segment files", e);
+                }
+            }
+        }
+    }
+}
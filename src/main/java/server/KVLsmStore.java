@@ -0,0 +1,666 @@
+package server;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Log-structured merge tree storage engine keeping entries sorted by key.
+ * <p>
+ * Writes go to a sorted in-memory memtable which is flushed to an immutable KVSSTable
+ * in level 0 once it reaches the memtable size. Level 0 tables may overlap and are merged
+ * into level 1 once there are L0_COMPACTION_TRIGGER of them. Tables of level 1 and below
+ * never overlap within a level, a level exceeding its size limit (ten times the previous
+ * level) merges one of its tables into the overlapping tables of the next level.
+ * Compactions run synchronously when a memtable is flushed.
+ * <p>
+ * The set of live tables is recorded in a manifest which is replaced atomically, tables
+ * not listed in it are leftovers of an interrupted flush or compaction and removed on
+ * startup. The memtable is only persisted by flushing it, the server's write-ahead log
+ * covers it between two syncs.
+ */
+public class KVLsmStore implements KVSortedStore {
+    public static final long DEFAULT_MEMTABLE_SIZE = 1024 * 1024;
+    public static final long DEFAULT_TABLE_SIZE = 2 * 1024 * 1024;
+    public static final int L0_COMPACTION_TRIGGER = 4;
+    public static final int LEVEL_SIZE_MULTIPLIER = 10;
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final KVBinaryFormat FORMAT = KVBinaryFormat.INSTANCE;
+    /**
+     * Approximate memory used by a memtable entry besides its key and value
+     */
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private static Logger logger = Logger.getRootLogger();
+    private String prompt;
+    private String dir;
+    private String fileName;
+    private long memtableSize;
+    private long tableSize;
+
+    /**
+     * Newest writes, a null value is a delete
+     */
+    private TreeMap<String, String> memtable = new TreeMap<>();
+    private long memtableBytes = 0;
+    /**
+     * Level 0 ordered from the newest table, other levels ordered by key
+     */
+    private List<List<KVSSTable>> levels = new ArrayList<>();
+    /**
+     * Last key of the table compacted most recently per level, so compactions rotate through the key space
+     */
+    private List<String> compactPointers = new ArrayList<>();
+    private long nextSeq = 1;
+    private String[] movingRange = null;
+
+    public KVLsmStore(String fileName) {
+        this(fileName, "./res", DEFAULT_MEMTABLE_SIZE, DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     * @param memtableSize bytes of memtable entries after which the memtable is flushed
+     * @param tableSize    size after which a compaction starts a new output table,
+     *                     level 1 holds up to five tables
+     */
+    public KVLsmStore(String fileName, String dir, long memtableSize, long tableSize) {
+        this.fileName = fileName;
+        this.dir = dir;
+        this.memtableSize = memtableSize;
+        this.tableSize = tableSize;
+        this.prompt = "KVLsmStore(" + fileName + "): ";
+        File directory = new File(dir);
+        if (!directory.exists() && !directory.mkdirs()) {
+            logger.error(prompt + "Unable to create dir " + dir);
+        }
+        try {
+            loadManifest();
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to load the manifest, starting empty", e);
+            levels.clear();
+        }
+        logger.info(prompt + "Opened with " + getTableCount() + " tables in " + levels.size() + " levels");
+    }
+
+    private File tableFile(long seq) {
+        return new File(dir + "/" + fileName + "_" + seq + TABLE_SUFFIX);
+    }
+
+    private File manifestFile() {
+        return new File(dir + "/" + fileName + MANIFEST_SUFFIX);
+    }
+
+    private List<KVSSTable> level(int level) {
+        while (levels.size() <= level) {
+            levels.add(new ArrayList<>());
+            compactPointers.add(null);
+        }
+        return levels.get(level);
+    }
+
+    private void loadManifest() throws IOException {
+        Set<String> live = new HashSet<>();
+        File manifest = manifestFile();
+        if (manifest.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) continue;
+                    String[] parts = line.trim().split(" ");
+                    int level = Integer.parseInt(parts[0]);
+                    long seq = Long.parseLong(parts[1]);
+                    File file = tableFile(seq);
+                    level(level).add(KVSSTable.open(file, seq));
+                    live.add(file.getName());
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                }
+            }
+        }
+
+        // remove tables of an interrupted flush or compaction
+        String prefix = fileName + "_";
+        File[] files = new File(dir).listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(TABLE_SUFFIX)
+                && name.substring(prefix.length(), name.length() - TABLE_SUFFIX.length()).matches("\\d+"));
+        if (files != null) {
+            for (File file : files) {
+                if (!live.contains(file.getName())) {
+                    logger.warn(prompt + "Removing table not in the manifest: " + file.getName());
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int level = 0; level < levels.size(); level++) {
+            for (KVSSTable table : levels.get(level)) {
+                sb.append(level).append(' ').append(table.getSeq()).append('\n');
+            }
+        }
+        File manifest = manifestFile();
+        File temp = new File(manifest.getPath() + "~");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), manifest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteTables(List<KVSSTable> tables) {
+        for (KVSSTable table : tables) {
+            if (!table.getFile().delete()) {
+                logger.warn("KVLsmStore: Unable to delete table " + table.getFile().getName());
+            }
+        }
+    }
+
+    /**
+     * Newest version of a key, with the tombstone flag set for deletes, or null if never written
+     */
+    private KVIterateStore.KVEntry lookup(String key) throws IOException {
+        if (memtable.containsKey(key)) {
+            return memEntry(key, memtable.get(key));
+        }
+        for (List<KVSSTable> level : levels) {
+            for (KVSSTable table : level) {
+                KVIterateStore.KVEntry entry = table.get(key);
+                if (entry != null) return entry;
+            }
+        }
+        return null;
+    }
+
+    private static KVIterateStore.KVEntry memEntry(String key, String value) {
+        KVIterateStore.KVEntry entry = new KVIterateStore.KVEntry(key, value);
+        entry.tombstone = value == null;
+        return entry;
+    }
+
+    /**
+     * @param value null to write a delete
+     */
+    private void write(String key, String value) throws IOException {
+        // a tombstone maps the key to null, the key is counted already
+        boolean known = memtable.containsKey(key);
+        String previous = memtable.put(key, value);
+        if (previous != null) {
+            memtableBytes -= previous.length();
+        }
+        if (!known) {
+            memtableBytes += key.length() + ENTRY_OVERHEAD;
+        }
+        memtableBytes += value == null ? 0 : value.length();
+        if (memtableBytes >= memtableSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the memtable to a new level 0 table and compact if needed
+     */
+    private void flush() throws IOException {
+        if (memtable.isEmpty()) return;
+        List<KVSSTable> tables = writeTables(memEntries(memtable).iterator(), false, Long.MAX_VALUE);
+        level(0).addAll(0, tables);
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        writeManifest();
+        logger.debug(prompt + "Memtable flushed");
+        maybeCompact();
+    }
+
+    private static List<KVIterateStore.KVEntry> memEntries(TreeMap<String, String> entries) {
+        List<KVIterateStore.KVEntry> result = new ArrayList<>(entries.size());
+        entries.forEach((k, v) -> result.add(memEntry(k, v)));
+        return result;
+    }
+
+    /**
+     * Write sorted entries to new tables of at most maxSize bytes each
+     *
+     * @param dropTombstones whether deletes can be dropped as no older version remains below
+     */
+    private List<KVSSTable> writeTables(Iterator<KVIterateStore.KVEntry> entries, boolean dropTombstones,
+                                        long maxSize) throws IOException {
+        List<KVSSTable> tables = new ArrayList<>();
+        KVSSTable.Writer writer = null;
+        try {
+            while (entries.hasNext()) {
+                KVIterateStore.KVEntry entry = entries.next();
+                if (dropTombstones && entry.tombstone) continue;
+                if (writer == null) {
+                    long seq = nextSeq++;
+                    writer = new KVSSTable.Writer(tableFile(seq), seq);
+                }
+                writer.add(entry.getKey(), entry.tombstone ? null : entry.getValue());
+                if (writer.size() >= maxSize) {
+                    tables.add(writer.finish());
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                tables.add(writer.finish());
+            }
+            return tables;
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) writer.abort();
+            deleteTables(tables);
+            throw e;
+        }
+    }
+
+    private long levelBytes(int level) {
+        long total = 0;
+        for (KVSSTable table : level(level)) total += table.size();
+        return total;
+    }
+
+    private long maxLevelBytes(int level) {
+        long limit = tableSize * 5;
+        for (int i = 1; i < level; i++) limit *= LEVEL_SIZE_MULTIPLIER;
+        return limit;
+    }
+
+    private void maybeCompact() throws IOException {
+        boolean compacted = true;
+        while (compacted) {
+            compacted = false;
+            if (level(0).size() >= L0_COMPACTION_TRIGGER) {
+                compactLevel(0);
+                compacted = true;
+                continue;
+            }
+            for (int level = 1; level < levels.size(); level++) {
+                if (levelBytes(level) > maxLevelBytes(level)) {
+                    compactLevel(level);
+                    compacted = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge level 0 as a whole, or one table of a deeper level, into the overlapping
+     * tables of the next level
+     */
+    private void compactLevel(int level) throws IOException {
+        List<KVSSTable> upper;
+        if (level == 0) {
+            upper = new ArrayList<>(level(0));
+        } else {
+            upper = Collections.singletonList(pickTable(level));
+        }
+        String from = null, to = null;
+        for (KVSSTable table : upper) {
+            if (table.isEmpty()) continue;
+            if (from == null || table.getFirstKey().compareTo(from) < 0) from = table.getFirstKey();
+            if (to == null || table.getLastKey().compareTo(to) > 0) to = table.getLastKey();
+        }
+        List<KVSSTable> lower = new ArrayList<>();
+        for (KVSSTable table : level(level + 1)) {
+            if (from != null && table.overlaps(from, to)) lower.add(table);
+        }
+        boolean bottom = true;
+        for (int i = level + 2; i < levels.size(); i++) {
+            if (!levels.get(i).isEmpty()) bottom = false;
+        }
+
+        List<Iterator<KVIterateStore.KVEntry>> sources = new ArrayList<>();
+        for (KVSSTable table : upper) sources.add(table.iterator(null));
+        for (KVSSTable table : lower) sources.add(table.iterator(null));
+        List<KVSSTable> outputs = writeTables(new MergeIterator(sources, null, false), bottom, tableSize);
+
+        level(level).removeAll(upper);
+        List<KVSSTable> next = level(level + 1);
+        next.removeAll(lower);
+        next.addAll(outputs);
+        next.sort(Comparator.comparing(KVSSTable::getFirstKey));
+        writeManifest();
+        deleteTables(upper);
+        deleteTables(lower);
+        logger.debug(prompt + "Compacted " + upper.size() + " tables of level " + level + " with "
+                + lower.size() + " tables of level " + (level + 1));
+    }
+
+    private KVSSTable pickTable(int level) {
+        List<KVSSTable> tables = level(level);
+        String pointer = compactPointers.get(level);
+        KVSSTable picked = tables.get(0);
+        if (pointer != null) {
+            for (KVSSTable table : tables) {
+                if (table.getFirstKey().compareTo(pointer) > 0) {
+                    picked = table;
+                    break;
+                }
+            }
+        }
+        compactPointers.set(level, picked.getLastKey());
+        return picked;
+    }
+
+    /**
+     * Sources of all entries from the newest to the oldest
+     */
+    private List<Iterator<KVIterateStore.KVEntry>> sources(String fromKey, String toKey) throws IOException {
+        List<Iterator<KVIterateStore.KVEntry>> sources = new ArrayList<>();
+        TreeMap<String, String> snapshot = new TreeMap<>(
+                fromKey == null && toKey == null ? memtable
+                        : fromKey == null ? memtable.headMap(toKey)
+                        : toKey == null ? memtable.tailMap(fromKey)
+                        : memtable.subMap(fromKey, toKey));
+        sources.add(memEntries(snapshot).iterator());
+        for (List<KVSSTable> level : levels) {
+            for (KVSSTable table : level) {
+                if (table.overlaps(fromKey, toKey)) {
+                    sources.add(table.iterator(fromKey));
+                }
+            }
+        }
+        return sources;
+    }
+
+    @Override
+    public synchronized Iterator<KVIterateStore.KVEntry> scan(String fromKey, String toKey) throws IOException {
+        return new MergeIterator(sources(fromKey, toKey), toKey, true);
+    }
+
+    /**
+     * Tables are immutable, so the snapshot links the table files and copies the memtable.
+     * Entries of the snapshot are returned in key order
+     */
+    @Override
+    public synchronized KVSnapshot snapshot(File dir) throws IOException {
+        KVSnapshot.createDir(dir);
+        TreeMap<String, String> memtableCopy = new TreeMap<>(memtable);
+        List<KVSSTable> tables = new ArrayList<>();
+        for (List<KVSSTable> level : levels) {
+            for (KVSSTable table : level) {
+                tables.add(table.linkTo(dir));
+            }
+        }
+        return new KVSnapshot(dir, true) {
+            @Override
+            public Iterator<KVIterateStore.KVEntry> iterator() throws IOException {
+                List<Iterator<KVIterateStore.KVEntry>> sources = new ArrayList<>();
+                sources.add(memEntries(memtableCopy).iterator());
+                for (KVSSTable table : tables) {
+                    sources.add(table.iterator(null));
+                }
+                return new MergeIterator(sources, null, true);
+            }
+        };
+    }
+
+    @Override
+    public synchronized PutResult upsert(String key, String value) throws Exception {
+        KVIterateStore.KVEntry current = lookup(key);
+        boolean exists = current != null && !current.tombstone;
+        if (value.equals("null")) {
+            if (!exists) {
+                logger.info(prompt + "Try to delete an entry with non-exist key: " + key);
+                return PutResult.NOT_FOUND;
+            }
+            write(key, null);
+            return PutResult.DELETED;
+        }
+        write(key, value);
+        return exists ? PutResult.UPDATED : PutResult.INSERTED;
+    }
+
+    @Override
+    public synchronized String get(String key) throws IOException {
+        KVIterateStore.KVEntry entry = lookup(key);
+        return entry == null || entry.tombstone ? null : entry.getValue();
+    }
+
+    @Override
+    public boolean inStorage(String key) throws IOException {
+        return get(key) != null;
+    }
+
+    @Override
+    public synchronized void clearStorage() {
+        for (List<KVSSTable> level : levels) {
+            deleteTables(level);
+        }
+        levels.clear();
+        compactPointers.clear();
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        try {
+            writeManifest();
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to write the manifest", e);
+        }
+    }
+
+    @Override
+    public String getfileName() {
+        return this.dir + "/" + this.fileName;
+    }
+
+    /**
+     * Replace all tables and the memtable by tables holding only the live entries to keep
+     */
+    private void rewrite(Predicate<String> keep) throws IOException {
+        Iterator<KVIterateStore.KVEntry> merged = new MergeIterator(sources(null, null), null, true);
+        Iterator<KVIterateStore.KVEntry> kept = new Iterator<KVIterateStore.KVEntry>() {
+            private KVIterateStore.KVEntry next = advance();
+
+            private KVIterateStore.KVEntry advance() {
+                while (merged.hasNext()) {
+                    KVIterateStore.KVEntry entry = merged.next();
+                    if (keep.test(entry.getKey())) return entry;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public KVIterateStore.KVEntry next() {
+                if (next == null) throw new NoSuchElementException();
+                KVIterateStore.KVEntry result = next;
+                next = advance();
+                return result;
+            }
+        };
+        List<KVSSTable> outputs = writeTables(kept, true, tableSize);
+
+        List<KVSSTable> old = new ArrayList<>();
+        levels.forEach(old::addAll);
+        int target = Math.max(1, levels.size() - 1);
+        levels.clear();
+        compactPointers.clear();
+        level(target).addAll(outputs);
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        writeManifest();
+        deleteTables(old);
+    }
+
+    @Override
+    public synchronized void deleteData(String[] hashRange) {
+        try {
+            rewrite(key -> !ECSNode.isKeyInRange(key, hashRange));
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to remove the hash range", e);
+        }
+    }
+
+    @Override
+    public synchronized void preMoveData(String[] hashRange) {
+        movingRange = hashRange;
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        try (RandomAccessFile moveRaf = new RandomAccessFile(moveFile, "rw")) {
+            moveRaf.setLength(0);
+            moveRaf.write(FORMAT.fileHeader());
+            Iterator<KVIterateStore.KVEntry> entries = scan(null, null);
+            while (entries.hasNext()) {
+                KVIterateStore.KVEntry entry = entries.next();
+                if (ECSNode.isKeyInRange(entry.getKey(), hashRange)) {
+                    moveRaf.write(FORMAT.encode(entry.getKey(), entry.getValue()));
+                }
+            }
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to create move file", e);
+        }
+    }
+
+    @Override
+    public synchronized void afterMoveData(boolean shouldDelete) {
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        if (!moveFile.delete()) {
+            logger.error(prompt + "Unable to delete the move file");
+        }
+        if (shouldDelete && movingRange != null) {
+            deleteData(movingRange);
+        }
+        movingRange = null;
+    }
+
+    @Override
+    public synchronized void mergeData(File dataFile) throws IOException {
+        KVRecordFormat dataFormat = KVRecordFormat.detect(dataFile, FORMAT);
+        try (KVRecordInput in = new KVFileInput(dataFile)) {
+            in.seek(dataFormat.headerLength());
+            KVIterateStore.KVEntry entry;
+            while ((entry = dataFormat.read(in, true)) != null) {
+                if (!entry.tombstone) {
+                    write(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        dataFile.delete();
+    }
+
+    /**
+     * Flush the memtable, so every entry written so far is in a synced table
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to flush the memtable", e);
+        }
+    }
+
+    public synchronized int getLevelCount() {
+        return levels.size();
+    }
+
+    public synchronized int getTableCount(int level) {
+        return level < levels.size() ? levels.get(level).size() : 0;
+    }
+
+    public synchronized int getTableCount() {
+        int count = 0;
+        for (List<KVSSTable> level : levels) count += level.size();
+        return count;
+    }
+
+    /**
+     * Merge sorted sources, for equal keys only the entry of the earliest source is returned
+     */
+    private static class MergeIterator implements Iterator<KVIterateStore.KVEntry> {
+        private static class Head {
+            KVIterateStore.KVEntry entry;
+            final int rank;
+            final Iterator<KVIterateStore.KVEntry> source;
+
+            Head(int rank, Iterator<KVIterateStore.KVEntry> source) {
+                this.rank = rank;
+                this.source = source;
+            }
+        }
+
+        private final PriorityQueue<Head> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+            return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+        });
+        private final String toKey;
+        private final boolean skipTombstones;
+        private KVIterateStore.KVEntry next;
+
+        MergeIterator(List<Iterator<KVIterateStore.KVEntry>> sources, String toKey, boolean skipTombstones) {
+            this.toKey = toKey;
+            this.skipTombstones = skipTombstones;
+            for (int i = 0; i < sources.size(); i++) {
+                refill(new Head(i, sources.get(i)));
+            }
+            next = advance();
+        }
+
+        private void refill(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                queue.add(head);
+            }
+        }
+
+        private KVIterateStore.KVEntry advance() {
+            while (!queue.isEmpty()) {
+                Head head = queue.poll();
+                KVIterateStore.KVEntry entry = head.entry;
+                refill(head);
+                // drop older versions of the same key
+                while (!queue.isEmpty() && queue.peek().entry.getKey().equals(entry.getKey())) {
+                    refill(queue.poll());
+                }
+                if (toKey != null && entry.getKey().compareTo(toKey) >= 0) {
+                    queue.clear();
+                    return null;
+                }
+                if (skipTombstones && entry.tombstone) continue;
+                return entry;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public KVIterateStore.KVEntry next() {
+            if (next == null) throw new NoSuchElementException();
+            KVIterateStore.KVEntry result = next;
+            next = advance();
+            return result;
+        }
+    }
+}
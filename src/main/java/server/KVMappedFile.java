@@ -0,0 +1,63 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a storage file shared by all readers of a store,
+ * so reads are served from the page cache without a system call per read.
+ * <p>
+ * The file is remapped whenever its length differs from the mapped length, a caller
+ * replacing the file with another one of the same length must call invalidate.
+ * Callers must not modify the file while an input returned by open is in use.
+ */
+public class KVMappedFile {
+    private File file;
+    private MappedByteBuffer buffer = null;
+    private long mappedLength = -1;
+
+    public KVMappedFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return whether a file of the given length fits in a single mapping
+     */
+    public static boolean canMap(long length) {
+        return length <= Integer.MAX_VALUE;
+    }
+
+    private void remap(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mappedLength = length;
+        }
+    }
+
+    /**
+     * @return an input over the current content of the file with its own position
+     * @throws IOException if the file is too large to be mapped
+     */
+    public synchronized KVRecordInput open() throws IOException {
+        long length = file.length();
+        if (!canMap(length)) {
+            throw new IOException("File too large to be mapped: " + file.getPath());
+        }
+        if (buffer == null || length != mappedLength) {
+            remap(length);
+        }
+        return new KVBufferInput(buffer.duplicate());
+    }
+
+    /**
+     * Drop the mapping, the next open maps the file again
+     */
+    public synchronized void invalidate() {
+        buffer = null;
+        mappedLength = -1;
+    }
+}
@@ -0,0 +1,81 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the independent parts of opening a store (one per segment file) on a pool of
+ * threads, so startup reads several files at once instead of one after the other
+ */
+public class KVParallelLoader {
+    /**
+     * Threads used for loading, loading is mostly waiting for the disk so this may
+     * exceed the number of cores
+     */
+    public static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Ignores progress
+     */
+    public static final IntConsumer NO_PROGRESS = percent -> {
+    };
+
+    /**
+     * Run all tasks and wait for them
+     *
+     * @param progress called with the share of finished tasks in percent, from the loading threads
+     * @return results in the order of the tasks
+     * @throws IOException the first failure of a task, after all tasks have finished
+     */
+    public static <T> List<T> loadAll(List<Callable<T>> tasks, IntConsumer progress) throws IOException {
+        if (tasks.isEmpty()) {
+            progress.accept(100);
+            return new ArrayList<>();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, tasks.size()));
+        AtomicInteger finished = new AtomicInteger();
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (Callable<T> task : tasks) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        return task.call();
+                    } finally {
+                        // reported under a lock so the reported share never goes back
+                        synchronized (finished) {
+                            progress.accept(finished.incrementAndGet() * 100 / tasks.size());
+                        }
+                    }
+                }));
+            }
+            List<T> results = new ArrayList<>();
+            IOException failure = null;
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(null);
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException("Loading failed", e.getCause());
+                    }
+                }
+            }
+            if (failure != null) throw failure;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -1,8 +1,35 @@
 package server;
 
+import java.io.File;
+import java.io.IOException;
+
 public interface KVPersistentStore {
 
-    void put(String key, String value) throws Exception;
+    /**
+     * State of a key before an upsert
+     */
+    enum PutResult {
+        INSERTED,   /* key was absent and is stored now */
+        UPDATED,    /* value of an existing key replaced */
+        DELETED,    /* existing key removed by a "null" value */
+        NOT_FOUND   /* "null" value for an absent key, nothing changed */
+    }
+
+    /**
+     * Insert, update or delete ("null" value) a key with a single lookup
+     *
+     * @return state of the key before the call
+     */
+    PutResult upsert(String key, String value) throws Exception;
+
+    /**
+     * Same as upsert, but deleting an absent key is an error
+     */
+    default void put(String key, String value) throws Exception {
+        if (upsert(key, value) == PutResult.NOT_FOUND) {
+            throw new IOException("Try to delete an entry with non-exist key: " + key);
+        }
+    }
 
     String get(String key) throws Exception;
 
@@ -12,4 +39,70 @@ public interface KVPersistentStore {
 
     String getfileName();
 
+    /**
+     * Remove all entries whose key falls in the hash range
+     *
+     * @param hashRange hash range to remove
+     */
+    void deleteData(String[] hashRange);
+
+    /**
+     * Prepare the move file (getfileName() + MOVE_SUFFIX) containing all entries
+     * in the hash range, in the format accepted by mergeData of the same store type
+     *
+     * @param hashRange hash range to move
+     */
+    void preMoveData(String[] hashRange);
+
+    /**
+     * Clean up after the move file is sent
+     *
+     * @param shouldDelete whether the moved entries should be removed from this store
+     */
+    void afterMoveData(boolean shouldDelete);
+
+    /**
+     * Add all entries in a data file received from another server
+     *
+     * @param dataFile file produced by preMoveData, deleted after merging
+     */
+    void mergeData(File dataFile) throws IOException;
+
+    /**
+     * Flush all entries written so far to the disk
+     */
+    void sync() throws IOException;
+
+    /**
+     * @return raw value bytes divided by stored value bytes of the values written since
+     * the store was opened, 1 if the store does not compress values
+     */
+    default double getCompressionRatio() {
+        return 1;
+    }
+
+    /**
+     * Take a point-in-time snapshot of all entries. The caller must keep writes out
+     * while this runs unless isSnapshotConcurrent, the returned snapshot stays valid
+     * while the store changes
+     *
+     * @param dir directory for the files of the snapshot, created by the store
+     */
+    default KVSnapshot snapshot(File dir) throws IOException {
+        throw new UnsupportedOperationException("Store " + getClass().getSimpleName() + " does not support snapshots");
+    }
+
+    /**
+     * @return whether snapshot may run alongside writes, keeping them out itself where needed
+     */
+    default boolean isSnapshotConcurrent() {
+        return false;
+    }
+
+    /**
+     * Stop background work and release file handles, the store is not used afterwards
+     */
+    default void close() {
+    }
+
 }
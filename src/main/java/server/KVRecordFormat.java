@@ -0,0 +1,56 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * On-disk encoding of the entries in a storage file
+ */
+public interface KVRecordFormat {
+
+    /**
+     * Bytes written at the beginning of a new file, entries start right after them
+     */
+    byte[] fileHeader();
+
+    byte[] encode(String key, String value) throws IOException;
+
+    /**
+     * Read the entry starting at the current position of the input
+     *
+     * @param in        input positioned at the start of an entry
+     * @param readValue whether the value should be decoded, value of the
+     *                  returned entry is null otherwise
+     * @return the entry with its start and end offset, null at the end of file
+     * @throws IOException if the entry is invalid or truncated
+     */
+    KVIterateStore.KVEntry read(KVRecordInput in, boolean readValue) throws IOException;
+
+    default int headerLength() {
+        return fileHeader().length;
+    }
+
+    /**
+     * Detect the format of an existing file by its header
+     *
+     * @param file          storage file
+     * @param defaultFormat format used when the file is empty or does not exist, also
+     *                      returned for a binary file if it is a binary format itself
+     */
+    static KVRecordFormat detect(File file, KVRecordFormat defaultFormat) throws IOException {
+        if (!file.exists() || file.length() == 0) return defaultFormat;
+        byte[] magic = KVBinaryFormat.MAGIC;
+        byte[] header = new byte[magic.length];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = in.read(header);
+            if (read == magic.length && Arrays.equals(header, magic)) {
+                // keep the compression setting of the caller
+                return defaultFormat instanceof KVBinaryFormat ? defaultFormat : KVBinaryFormat.INSTANCE;
+            }
+        }
+        return KVTextFormat.INSTANCE;
+    }
+}
@@ -0,0 +1,37 @@
+package server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Random access input over a storage file used by KVRecordFormat to read entries
+ */
+public interface KVRecordInput extends Closeable {
+
+    long position() throws IOException;
+
+    void seek(long position) throws IOException;
+
+    long length() throws IOException;
+
+    /**
+     * @return next byte, or -1 at the end of file
+     */
+    int read() throws IOException;
+
+    /**
+     * @return number of bytes read, less than len only at the end of file
+     */
+    int read(byte[] b, int off, int len) throws IOException;
+
+    default void readFully(byte[] b) throws IOException {
+        if (read(b, 0, b.length) < b.length) {
+            throw new EOFException("Unexpected end of file at " + position());
+        }
+    }
+
+    default void skip(long n) throws IOException {
+        seek(position() + n);
+    }
+}
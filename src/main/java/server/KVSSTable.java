@@ -0,0 +1,333 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted table of KVLsmStore.
+ * <p>
+ * File layout: MAGIC | records in key order (KVBinaryFormat, deletes kept as tombstones) |
+ * sparse index of count(4) and keyLen(4) | key | offset(8) for the first record of every
+ * block | last key, keyLen(4) | key | footer of indexOffset(8)
+ * <p>
+ * The sparse index and a Bloom filter over the keys are kept in memory, a lookup reads
+ * at most one block. Tables are mapped read-only, so readers holding an input keep
+ * working after the file is removed by a compaction.
+ */
+public class KVSSTable {
+    /**
+     * Bytes of records between two sparse index entries
+     */
+    public static final int BLOCK_SIZE = 4 * 1024;
+    private static final int FOOTER_SIZE = 8;
+    private static final KVBinaryFormat FORMAT = KVBinaryFormat.INSTANCE;
+
+    private final File file;
+    private final long seq;
+    private final long dataEnd;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final String lastKey;
+    private final KVMappedFile mappedFile;
+    private KVBloomFilter bloomFilter;
+
+    private KVSSTable(File file, long seq, long dataEnd, String[] indexKeys, long[] indexOffsets, String lastKey) {
+        this.file = file;
+        this.seq = seq;
+        this.dataEnd = dataEnd;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.lastKey = lastKey;
+        this.mappedFile = new KVMappedFile(file);
+    }
+
+    /**
+     * Writes records in strictly increasing key order to a new table file
+     */
+    public static class Writer {
+        private final File file;
+        private final long seq;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> indexKeys = new ArrayList<>();
+        private final List<Long> indexOffsets = new ArrayList<>();
+        private long position;
+        private long blockStart = -BLOCK_SIZE;
+        private String lastKey = null;
+
+        public Writer(File file, long seq) throws IOException {
+            this.file = file;
+            this.seq = seq;
+            this.fileOut = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            byte[] header = FORMAT.fileHeader();
+            out.write(header);
+            position = header.length;
+        }
+
+        /**
+         * @param value null to write a tombstone
+         */
+        public void add(String key, String value) throws IOException {
+            if (lastKey != null && key.compareTo(lastKey) <= 0) {
+                throw new IllegalArgumentException("Keys must be added in increasing order: " + key);
+            }
+            if (position - blockStart >= BLOCK_SIZE) {
+                indexKeys.add(key);
+                indexOffsets.add(position);
+                blockStart = position;
+            }
+            byte[] record = FORMAT.encode(key, value);
+            out.write(record);
+            position += record.length;
+            keys.add(key);
+            lastKey = key;
+        }
+
+        /**
+         * @return bytes written so far
+         */
+        public long size() {
+            return position;
+        }
+
+        public boolean isEmpty() {
+            return lastKey == null;
+        }
+
+        /**
+         * Write the index, sync the file and open it as a table
+         */
+        public KVSSTable finish() throws IOException {
+            long indexOffset = position;
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                writeKey(indexKeys.get(i));
+                out.writeLong(indexOffsets.get(i));
+            }
+            writeKey(lastKey == null ? "" : lastKey);
+            out.writeLong(indexOffset);
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+
+            KVSSTable table = new KVSSTable(file, seq, indexOffset,
+                    indexKeys.toArray(new String[0]), toArray(indexOffsets), lastKey);
+            table.bloomFilter = new KVBloomFilter(keys.size());
+            keys.forEach(table.bloomFilter::put);
+            return table;
+        }
+
+        /**
+         * Close and delete an unfinished table
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            file.delete();
+        }
+
+        private void writeKey(String key) throws IOException {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] result = new long[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Open an existing table file, reading its index and filling its Bloom filter
+     */
+    public static KVSSTable open(File file, long seq) throws IOException {
+        KVMappedFile mapped = new KVMappedFile(file);
+        try (KVRecordInput in = mapped.open()) {
+            long length = in.length();
+            if (length < FORMAT.headerLength() + FOOTER_SIZE) {
+                throw new EOFException("Table file too short: " + file.getPath());
+            }
+            in.seek(length - FOOTER_SIZE);
+            long indexOffset = readLong(in);
+            in.seek(indexOffset);
+            int count = readInt(in);
+            String[] indexKeys = new String[count];
+            long[] indexOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                indexKeys[i] = readKey(in);
+                indexOffsets[i] = readLong(in);
+            }
+            String lastKey = count == 0 ? null : readKey(in);
+
+            KVSSTable table = new KVSSTable(file, seq, indexOffset, indexKeys, indexOffsets, lastKey);
+            List<String> keys = new ArrayList<>();
+            Iterator<KVIterateStore.KVEntry> it = table.iterator(null);
+            while (it.hasNext()) {
+                keys.add(it.next().getKey());
+            }
+            table.bloomFilter = new KVBloomFilter(keys.size());
+            keys.forEach(table.bloomFilter::put);
+            return table;
+        }
+    }
+
+    /**
+     * Hard link the table file into a snapshot directory, the linked table shares the
+     * index and Bloom filter of this one
+     */
+    public KVSSTable linkTo(File dir) throws IOException {
+        KVSSTable linked = new KVSSTable(KVSnapshot.link(file, dir), seq, dataEnd, indexKeys, indexOffsets, lastKey);
+        linked.bloomFilter = bloomFilter;
+        return linked;
+    }
+
+    private static int readInt(KVRecordInput in) throws IOException {
+        byte[] bytes = new byte[4];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    private static long readLong(KVRecordInput in) throws IOException {
+        byte[] bytes = new byte[8];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    private static String readKey(KVRecordInput in) throws IOException {
+        byte[] bytes = new byte[readInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long size() {
+        return file.length();
+    }
+
+    public boolean isEmpty() {
+        return indexKeys.length == 0;
+    }
+
+    public String getFirstKey() {
+        return isEmpty() ? null : indexKeys[0];
+    }
+
+    public String getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return whether the table may hold keys in [fromKey, toKey], null for no bound
+     */
+    public boolean overlaps(String fromKey, String toKey) {
+        if (isEmpty()) return false;
+        return (fromKey == null || lastKey.compareTo(fromKey) >= 0)
+                && (toKey == null || indexKeys[0].compareTo(toKey) <= 0);
+    }
+
+    /**
+     * @return offset of the block that would hold the key
+     */
+    private long blockOffset(String key) {
+        int pos = Arrays.binarySearch(indexKeys, key);
+        if (pos < 0) {
+            pos = Math.max(-pos - 2, 0);
+        }
+        return indexOffsets[pos];
+    }
+
+    private KVRecordInput openInput() throws IOException {
+        if (KVMappedFile.canMap(file.length())) {
+            return mappedFile.open();
+        }
+        return new KVFileInput(file);
+    }
+
+    /**
+     * @return the record of the key with the tombstone flag set for deletes, null if absent
+     */
+    public KVIterateStore.KVEntry get(String key) throws IOException {
+        if (isEmpty() || key.compareTo(indexKeys[0]) < 0 || key.compareTo(lastKey) > 0
+                || !bloomFilter.mightContain(key)) {
+            return null;
+        }
+        try (KVRecordInput in = openInput()) {
+            in.seek(blockOffset(key));
+            while (in.position() < dataEnd) {
+                KVIterateStore.KVEntry entry = FORMAT.read(in, true);
+                int cmp = entry.getKey().compareTo(key);
+                if (cmp == 0) return entry;
+                if (cmp > 0) return null;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Iterate over the records in key order, tombstones included
+     *
+     * @param fromKey first key to return, null to start at the beginning
+     */
+    public Iterator<KVIterateStore.KVEntry> iterator(String fromKey) throws IOException {
+        KVRecordInput in = openInput();
+        in.seek(isEmpty() ? dataEnd : (fromKey == null ? indexOffsets[0] : blockOffset(fromKey)));
+        return new Iterator<KVIterateStore.KVEntry>() {
+            private KVIterateStore.KVEntry next = advance();
+
+            private KVIterateStore.KVEntry advance() {
+                try {
+                    while (in.position() < dataEnd) {
+                        KVIterateStore.KVEntry entry = FORMAT.read(in, true);
+                        if (fromKey == null || entry.getKey().compareTo(fromKey) >= 0) {
+                            return entry;
+                        }
+                    }
+                    in.close();
+                    return null;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to read table " + file.getPath(), e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public KVIterateStore.KVEntry next() {
+                if (next == null) throw new NoSuchElementException();
+                KVIterateStore.KVEntry result = next;
+                next = advance();
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,345 @@
+package server;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.IntConsumer;
+
+/**
+ * Storage engine splitting the MD5 ring of ECSNode.calcHash into 2^bits buckets of
+ * equal size, each bucket kept in its own indexed KVIterateStore segment file.
+ * <p>
+ * Handing off a hash range copies and unlinks the segments fully covered by the range,
+ * only the segments at the two ends of the range are scanned and rewritten.
+ */
+public class KVSegmentedStore implements KVPersistentStore {
+    public static final int DEFAULT_BITS = 4;
+    private static final int HASH_BITS = 128;
+    private static Logger logger = Logger.getRootLogger();
+    private String prompt;
+    private String dir;
+    private String fileName;
+    private int bits;
+    private KVBinaryFormat format;
+    private KVIterateStore[] segments;
+
+    // segments handed off by the last preMoveData, as a whole or split
+    private List<Integer> movedWhole = new ArrayList<>();
+    private List<Integer> movedSplit = new ArrayList<>();
+
+    public KVSegmentedStore(String fileName) {
+        this(fileName, "./res", DEFAULT_BITS);
+    }
+
+    /**
+     * @param fileName base name of the segment files
+     * @param dir      directory of the segment files
+     * @param bits     log2 of the number of segments
+     */
+    public KVSegmentedStore(String fileName, String dir, int bits) {
+        this(fileName, dir, bits, KVBinaryFormat.INSTANCE);
+    }
+
+    /**
+     * @param format binary format of the segments, shared so its compression ratio covers all of them
+     */
+    public KVSegmentedStore(String fileName, String dir, int bits, KVBinaryFormat format) {
+        this(fileName, dir, bits, format, KVParallelLoader.NO_PROGRESS);
+    }
+
+    /**
+     * Segments are opened and indexed in parallel
+     *
+     * @param loadProgress called with the share of segments opened so far in percent
+     */
+    public KVSegmentedStore(String fileName, String dir, int bits, KVBinaryFormat format, IntConsumer loadProgress) {
+        if (bits < 0 || bits > 16) {
+            throw new IllegalArgumentException("Segment bits out of range: " + bits);
+        }
+        this.fileName = fileName;
+        this.dir = dir;
+        this.bits = bits;
+        this.format = format;
+        this.prompt = "KVSegmentedStore(" + fileName + "): ";
+        List<Callable<KVIterateStore>> tasks = new ArrayList<>();
+        for (int i = 0; i < 1 << bits; i++) {
+            String name = segmentName(i);
+            tasks.add(() -> new KVIterateStore(name, dir, true, format));
+        }
+        try {
+            this.segments = KVParallelLoader.loadAll(tasks, loadProgress).toArray(new KVIterateStore[0]);
+        } catch (IOException e) {
+            // opening a segment logs its own failures instead of throwing
+            throw new IllegalStateException(prompt + "Unable to open segments", e);
+        }
+        logger.info(prompt + "Opened " + segments.length + " segments");
+    }
+
+    private String segmentName(int bucket) {
+        return fileName + "_seg" + bucket;
+    }
+
+    /**
+     * Enable or disable the memory mapped read path of every segment
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        for (KVIterateStore segment : segments) {
+            segment.setMemoryMapped(memoryMapped);
+        }
+    }
+
+    /**
+     * Enable or disable the Bloom filter of every segment, filters are built in parallel
+     */
+    public void setBloomFilter(boolean enabled) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (KVIterateStore segment : segments) {
+            tasks.add(() -> {
+                segment.setBloomFilter(enabled);
+                return null;
+            });
+        }
+        try {
+            KVParallelLoader.loadAll(tasks, KVParallelLoader.NO_PROGRESS);
+        } catch (IOException e) {
+            throw new IllegalStateException(prompt + "Unable to build Bloom filters", e);
+        }
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return format.getCompressionRatio();
+    }
+
+    /**
+     * @return observed share of lookups of missing keys passed by the Bloom filters of all segments
+     */
+    public double getBloomFalsePositiveRate() {
+        long falsePositives = 0, negatives = 0;
+        for (KVIterateStore segment : segments) {
+            falsePositives += segment.getBloomFalsePositives();
+            negatives += segment.getBloomNegatives();
+        }
+        long total = falsePositives + negatives;
+        return total == 0 ? 0 : (double) falsePositives / total;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return index of the segment holding the key
+     */
+    public int bucketOf(String key) {
+        BigInteger hash = new BigInteger(ECSNode.calcHash(key), 16);
+        return hash.shiftRight(HASH_BITS - bits).intValue();
+    }
+
+    private BigInteger bucketFrom(int bucket) {
+        return BigInteger.valueOf(bucket).shiftLeft(HASH_BITS - bits);
+    }
+
+    private BigInteger bucketTo(int bucket) {
+        return BigInteger.valueOf(bucket + 1).shiftLeft(HASH_BITS - bits).subtract(BigInteger.ONE);
+    }
+
+    @Override
+    public PutResult upsert(String key, String value) throws Exception {
+        return segments[bucketOf(key)].upsert(key, value);
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return segments[bucketOf(key)].get(key);
+    }
+
+    @Override
+    public synchronized void clearStorage() {
+        for (KVIterateStore segment : segments) {
+            segment.clearStorage();
+        }
+    }
+
+    @Override
+    public boolean inStorage(String key) throws Exception {
+        return segments[bucketOf(key)].inStorage(key);
+    }
+
+    @Override
+    public String getfileName() {
+        return this.dir + "/" + this.fileName;
+    }
+
+    @Override
+    public synchronized void deleteData(String[] hashRange) {
+        ECSNode.HashRange range = new ECSNode.HashRange(hashRange);
+        int cleared = 0, split = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (range.covers(bucketFrom(i), bucketTo(i))) {
+                segments[i].clearStorage();
+                cleared++;
+            } else if (range.overlaps(bucketFrom(i), bucketTo(i))) {
+                segments[i].deleteData(hashRange);
+                split++;
+            }
+        }
+        logger.info(prompt + "Deleted range, " + cleared + " segments cleared, " + split + " rewritten");
+    }
+
+    @Override
+    public synchronized void preMoveData(String[] hashRange) {
+        ECSNode.HashRange range = new ECSNode.HashRange(hashRange);
+        movedWhole.clear();
+        movedSplit.clear();
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        try (RandomAccessFile moveRaf = new RandomAccessFile(moveFile, "rw")) {
+            moveRaf.setLength(0);
+            moveRaf.write(format.fileHeader());
+            for (int i = 0; i < segments.length; i++) {
+                KVIterateStore segment = segments[i];
+                if (range.covers(bucketFrom(i), bucketTo(i))) {
+                    synchronized (segment) {
+                        appendRecords(moveRaf, new File(segment.getfileName()));
+                    }
+                    movedWhole.add(i);
+                } else if (range.overlaps(bucketFrom(i), bucketTo(i))) {
+                    segment.preMoveData(hashRange);
+                    appendRecords(moveRaf, new File(segment.getfileName() + KVIterateStore.MOVE_SUFFIX));
+                    movedSplit.add(i);
+                }
+            }
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to create move file", e);
+        }
+        logger.info(prompt + "Prepared move file, " + movedWhole.size() + " whole segments, "
+                + movedSplit.size() + " split");
+    }
+
+    /**
+     * Append all records of a storage file to a binary move file,
+     * segment files already in binary format are copied without decoding
+     */
+    private void appendRecords(RandomAccessFile moveRaf, File file) throws IOException {
+        KVRecordFormat fileFormat = KVRecordFormat.detect(file, format);
+        if (fileFormat == format) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                FileChannel source = raf.getChannel();
+                FileChannel target = moveRaf.getChannel();
+                target.position(target.size());
+                long end = raf.length();
+                long position = Math.min(fileFormat.headerLength(), end);
+                while (position < end) {
+                    position += source.transferTo(position, end - position, target);
+                }
+            }
+        } else {
+            moveRaf.seek(moveRaf.length());
+            try (KVRecordInput in = new KVFileInput(file)) {
+                in.seek(fileFormat.headerLength());
+                KVIterateStore.KVEntry entry;
+                while ((entry = fileFormat.read(in, true)) != null) {
+                    moveRaf.write(format.encode(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void afterMoveData(boolean shouldDelete) {
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        if (!moveFile.delete()) {
+            logger.error(prompt + "Unable to delete the move file");
+        }
+        for (int i : movedWhole) {
+            if (shouldDelete) {
+                segments[i].clearStorage();
+            }
+        }
+        for (int i : movedSplit) {
+            segments[i].afterMoveData(shouldDelete);
+        }
+        movedWhole.clear();
+        movedSplit.clear();
+    }
+
+    /**
+     * Distribute the entries of a received data file to the segments they belong to
+     *
+     * @param dataFile file in KVBinaryFormat or the legacy text format, deleted after merging
+     */
+    @Override
+    public synchronized void mergeData(File dataFile) throws IOException {
+        KVRecordFormat dataFormat = KVRecordFormat.detect(dataFile, format);
+        RandomAccessFile[] parts = new RandomAccessFile[segments.length];
+        try (KVRecordInput in = new KVFileInput(dataFile)) {
+            in.seek(dataFormat.headerLength());
+            KVIterateStore.KVEntry entry;
+            while ((entry = dataFormat.read(in, true)) != null) {
+                if (entry.tombstone) {
+                    continue;
+                }
+                int bucket = bucketOf(entry.getKey());
+                if (parts[bucket] == null) {
+                    parts[bucket] = new RandomAccessFile(partFile(bucket), "rw");
+                    parts[bucket].setLength(0);
+                    parts[bucket].write(format.fileHeader());
+                }
+                parts[bucket].write(format.encode(entry.getKey(), entry.getValue()));
+            }
+        } finally {
+            for (RandomAccessFile part : parts) {
+                if (part != null) {
+                    part.close();
+                }
+            }
+        }
+        for (int i = 0; i < segments.length; i++) {
+            if (parts[i] != null) {
+                segments[i].mergeData(partFile(i));
+            }
+        }
+        if (!dataFile.delete()) {
+            logger.error(prompt + "Unable to delete the received data file");
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (KVIterateStore segment : segments) {
+            segment.sync();
+        }
+    }
+
+    /**
+     * Copies the segment files one at a time, only writes to the segment being copied
+     * wait meanwhile. Each segment is captured at its own point in time, so every key
+     * holds a value it had while the snapshot was taken
+     */
+    @Override
+    public synchronized KVSnapshot snapshot(File dir) throws IOException {
+        KVSnapshot.createDir(dir);
+        List<File> files = new ArrayList<>();
+        for (KVIterateStore segment : segments) {
+            files.add(segment.copyStorageFile(dir));
+        }
+        return KVSnapshot.ofFiles(dir, files, true);
+    }
+
+    @Override
+    public boolean isSnapshotConcurrent() {
+        return true;
+    }
+
+    private File partFile(int bucket) {
+        return new File(segments[bucket].getfileName() + "~");
+    }
+}
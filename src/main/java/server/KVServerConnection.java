@@ -176,9 +176,6 @@ public class KVServerConnection extends AbstractKVConnection implements Runnable
                 res.setKey(m.getKey());
                 res.setValue(m.getValue());
 
-                boolean keyExist =
-                        kvServer.inCache(m.getKey()) || kvServer.inStorage(m.getKey());
-
                 if ("".equals(m.getKey()) ||
                         "".equals(m.getValue()) ||
                         // Empty string is not allowed as key or value on server side
@@ -192,10 +189,12 @@ public class KVServerConnection extends AbstractKVConnection implements Runnable
                     break;
                 }
 
+                KVPersistentStore.PutResult result;
                 try {
-                    kvServer.putKV(m.getKey(), m.getValue());
-                    // Forward the message if its coordinator
-                    if (KVMessage.StatusType.PUT.equals(m.getStatus())) {
+                    result = kvServer.upsertKV(m.getKey(), m.getValue());
+                    // Forward the message if its coordinator and the store changed
+                    if (KVMessage.StatusType.PUT.equals(m.getStatus())
+                            && result != KVPersistentStore.PutResult.NOT_FOUND) {
                         forwarderManager.forward(m);
                     }
                 } catch (Exception e) {
@@ -208,12 +207,18 @@ public class KVServerConnection extends AbstractKVConnection implements Runnable
                     break;
                 }
 
-                if ("null".equals(m.getValue())) {
-                    res.setStatus(KVMessage.StatusType.DELETE_SUCCESS);
-                } else if (keyExist) {
-                    res.setStatus(KVMessage.StatusType.PUT_UPDATE);
-                } else {
-                    res.setStatus(KVMessage.StatusType.PUT_SUCCESS);
+                switch (result) {
+                    case DELETED:
+                        res.setStatus(KVMessage.StatusType.DELETE_SUCCESS);
+                        break;
+                    case NOT_FOUND:
+                        res.setStatus(KVMessage.StatusType.DELETE_ERROR);
+                        break;
+                    case UPDATED:
+                        res.setStatus(KVMessage.StatusType.PUT_UPDATE);
+                        break;
+                    default:
+                        res.setStatus(KVMessage.StatusType.PUT_SUCCESS);
                 }
                 break;
             }
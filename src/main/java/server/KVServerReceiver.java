@@ -7,7 +7,6 @@ import org.apache.log4j.Logger;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.channels.FileChannel;
 
 public class KVServerReceiver implements Runnable {
     private ServerSocket receiverSocket;
@@ -48,23 +47,8 @@ public class KVServerReceiver implements Runnable {
             receiverSocket.close();
 
             // merge two files
-            File tempFile = new File(fileName + "~");
-            RandomAccessFile rTemp = new RandomAccessFile(tempFile, "rw");
-            RandomAccessFile raf = new RandomAccessFile(new File(fileName), "rw");
-            long sourceFileSize = raf.length();
-            long targetFileSize = rTemp.length();
-            FileChannel sourceChannel = raf.getChannel();
-            FileChannel targetChannel = rTemp.getChannel();
-
-            targetChannel.position(0L);
-            sourceChannel.transferFrom(targetChannel, sourceFileSize, targetFileSize);
-            // clean the target_file
-            targetChannel.truncate(0);
-            sourceChannel.close();
-            targetChannel.close();
-            rTemp.close();
-            raf.close();
-            tempFile.delete();
+            ((KVServer) this.kvServer).mergeData(new File(fileName + "~"));
+            ((KVServer) this.kvServer).checkpoint();
 
             // update the progress to 100
             ((KVServer)this.kvServer).updateTransferProgress(100);
@@ -0,0 +1,254 @@
+package server;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Point-in-time view of a persistent store
+ * <p>
+ * A snapshot is made of files that do not change after it is taken: hard links to the
+ * append-only or immutable files of the store, or copies of files the store updates in
+ * place. Writes to the store are only blocked while the snapshot is taken, reading it
+ * afterwards runs alongside them. The files are kept in the snapshot directory until
+ * the snapshot is closed.
+ */
+public abstract class KVSnapshot implements Closeable {
+    private static Logger logger = Logger.getRootLogger();
+    private static final KVBinaryFormat FORMAT = KVBinaryFormat.INSTANCE;
+
+    private final File dir;
+    private final boolean fileHeader;
+
+    /**
+     * @param dir        directory holding the files of the snapshot, removed by close
+     * @param fileHeader whether the data files accepted by mergeData of the store start
+     *                   with the KVBinaryFormat file header
+     */
+    protected KVSnapshot(File dir, boolean fileHeader) {
+        this.dir = dir;
+        this.fileHeader = fileHeader;
+    }
+
+    /**
+     * Create an empty snapshot directory
+     */
+    public static File createDir(File dir) throws IOException {
+        if (dir.exists()) {
+            deleteRecursively(dir);
+        }
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create snapshot dir " + dir.getPath());
+        }
+        return dir;
+    }
+
+    /**
+     * Hard link a file into the snapshot directory, or copy it where links are not supported.
+     * Only files that are never modified in place may be linked
+     */
+    public static File link(File source, File dir) throws IOException {
+        File target = new File(dir, source.getName());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to link " + source.getPath() + ", copying it");
+            Files.copy(source.toPath(), target.toPath());
+        }
+        return target;
+    }
+
+    /**
+     * Copy a file into the snapshot directory
+     */
+    public static File copy(File source, File dir) throws IOException {
+        File target = new File(dir, source.getName());
+        Files.copy(source.toPath(), target.toPath());
+        return target;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Iterate over the live entries of the snapshot, in no particular order
+     */
+    public abstract Iterator<KVIterateStore.KVEntry> iterator() throws IOException;
+
+    /**
+     * Write the entries in the hash range as a data file for mergeData of the same store type
+     *
+     * @param hashRange hash range to write, null for all entries
+     * @return number of entries written
+     */
+    public long writeTo(OutputStream out, String[] hashRange) throws IOException {
+        if (fileHeader) {
+            out.write(FORMAT.fileHeader());
+        }
+        long count = 0;
+        try {
+            Iterator<KVIterateStore.KVEntry> it = iterator();
+            while (it.hasNext()) {
+                KVIterateStore.KVEntry entry = it.next();
+                if (hashRange == null || ECSNode.isKeyInRange(entry.getKey(), hashRange)) {
+                    out.write(FORMAT.encode(entry.getKey(), entry.getValue()));
+                    count++;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return count;
+    }
+
+    /**
+     * Remove the files of the snapshot
+     */
+    @Override
+    public void close() {
+        try {
+            deleteRecursively(dir);
+        } catch (IOException e) {
+            logger.warn("Unable to remove snapshot dir " + dir.getPath(), e);
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file.getPath());
+        }
+    }
+
+    /**
+     * Snapshot of storage files holding every key at most once, e.g. copies of files
+     * updated in place. Tombstones are skipped
+     */
+    public static KVSnapshot ofFiles(File dir, List<File> files, boolean fileHeader) {
+        List<File> parts = new ArrayList<>(files);
+        return new KVSnapshot(dir, fileHeader) {
+            @Override
+            public Iterator<KVIterateStore.KVEntry> iterator() throws IOException {
+                return new Iterator<KVIterateStore.KVEntry>() {
+                    private final Iterator<File> remaining = parts.iterator();
+                    private KVRecordFormat format;
+                    private KVRecordInput in;
+                    private KVIterateStore.KVEntry next = advance();
+
+                    private KVIterateStore.KVEntry advance() {
+                        try {
+                            while (true) {
+                                if (in == null) {
+                                    if (!remaining.hasNext()) return null;
+                                    File file = remaining.next();
+                                    format = KVRecordFormat.detect(file, FORMAT);
+                                    in = new KVFileInput(file);
+                                    in.seek(format.headerLength());
+                                }
+                                KVIterateStore.KVEntry entry = format.read(in, true);
+                                if (entry == null) {
+                                    in.close();
+                                    in = null;
+                                } else {
+                                    in.seek(entry.endOffset);
+                                    if (!entry.tombstone) return entry;
+                                }
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public KVIterateStore.KVEntry next() {
+                        if (next == null) throw new NoSuchElementException();
+                        KVIterateStore.KVEntry result = next;
+                        next = advance();
+                        return result;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Location of a KVBinaryFormat record in a file of the snapshot
+     */
+    public static class Record {
+        final File file;
+        final long offset;
+        final int length;
+
+        public Record(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Snapshot of append-only files with a copy of the in-memory index of the store
+     * pointing at the live record of every key
+     */
+    public static KVSnapshot ofIndex(File dir, Map<String, Record> index, boolean fileHeader) {
+        return new KVSnapshot(dir, fileHeader) {
+            @Override
+            public Iterator<KVIterateStore.KVEntry> iterator() {
+                Iterator<Record> records = index.values().iterator();
+                Map<File, RandomAccessFile> readers = new HashMap<>();
+                return new Iterator<KVIterateStore.KVEntry>() {
+                    @Override
+                    public boolean hasNext() {
+                        if (records.hasNext()) return true;
+                        closeReaders();
+                        return false;
+                    }
+
+                    @Override
+                    public KVIterateStore.KVEntry next() {
+                        Record record = records.next();
+                        try {
+                            RandomAccessFile raf = readers.get(record.file);
+                            if (raf == null) {
+                                raf = new RandomAccessFile(record.file, "r");
+                                readers.put(record.file, raf);
+                            }
+                            byte[] bytes = new byte[record.length];
+                            raf.seek(record.offset);
+                            raf.readFully(bytes);
+                            return FORMAT.read(new KVBufferInput(bytes), true);
+                        } catch (IOException e) {
+                            closeReaders();
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+
+                    private void closeReaders() {
+                        for (RandomAccessFile raf : readers.values()) {
+                            try {
+                                raf.close();
+                            } catch (IOException e) {
+                                logger.warn("Unable to close snapshot file", e);
+                            }
+                        }
+                        readers.clear();
+                    }
+                };
+            }
+        };
+    }
+}
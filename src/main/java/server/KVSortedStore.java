@@ -0,0 +1,26 @@
+package server;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Storage engine keeping its entries in key order
+ */
+public interface KVSortedStore extends KVPersistentStore {
+
+    /**
+     * Iterate over the entries with fromKey <= key < toKey in key order. The iterator
+     * works on a snapshot, later writes to the store are not visible to it.
+     *
+     * @param fromKey first key, null for no lower bound
+     * @param toKey   key after the last one, null for no upper bound
+     */
+    Iterator<KVIterateStore.KVEntry> scan(String fromKey, String toKey) throws IOException;
+
+    /**
+     * Iterate over the entries whose key starts with the prefix in key order
+     */
+    default Iterator<KVIterateStore.KVEntry> scanPrefix(String prefix) throws IOException {
+        return scan(prefix, prefix + Character.MAX_VALUE);
+    }
+}
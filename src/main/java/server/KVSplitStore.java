@@ -0,0 +1,197 @@
+package server;
+
+import app_kvServer.KVServer;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+/**
+ * Store keeping the kv rows in any storage engine and the SQL rows (key longer than
+ * MAX_KEY) in an indexed KVIterateStore next to it, as SQL tables scan and update their
+ * rows through KVIterateStore.
+ * <p>
+ * Both stores hand off and receive hash ranges together: the move file holds the
+ * binary records of the engine followed by the SQL rows, a received file is split by
+ * key length. Point reads and writes only reach the engine.
+ */
+public class KVSplitStore implements KVPersistentStore {
+    public static final String SQL_SUFFIX = "_sqlDataBase";
+    private static Logger logger = Logger.getRootLogger();
+    private static final KVBinaryFormat FORMAT = KVBinaryFormat.INSTANCE;
+    private String prompt;
+    private KVPersistentStore engine;
+    private KVIterateStore sqlRows;
+
+    /**
+     * @param engine  store of the kv rows, move files must be in KVBinaryFormat
+     * @param sqlRows store of the SQL rows
+     */
+    public KVSplitStore(KVPersistentStore engine, KVIterateStore sqlRows) {
+        this.engine = engine;
+        this.sqlRows = sqlRows;
+        this.prompt = "KVSplitStore(" + engine.getfileName() + "): ";
+    }
+
+    public KVPersistentStore getEngine() {
+        return engine;
+    }
+
+    public KVIterateStore getSqlRows() {
+        return sqlRows;
+    }
+
+    @Override
+    public PutResult upsert(String key, String value) throws Exception {
+        return engine.upsert(key, value);
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return engine.get(key);
+    }
+
+    @Override
+    public boolean inStorage(String key) throws Exception {
+        return engine.inStorage(key);
+    }
+
+    @Override
+    public String getfileName() {
+        return engine.getfileName();
+    }
+
+    @Override
+    public synchronized void clearStorage() {
+        engine.clearStorage();
+        sqlRows.clearStorage();
+    }
+
+    @Override
+    public synchronized void deleteData(String[] hashRange) {
+        engine.deleteData(hashRange);
+        sqlRows.deleteData(hashRange);
+    }
+
+    @Override
+    public synchronized void preMoveData(String[] hashRange) {
+        engine.preMoveData(hashRange);
+        sqlRows.preMoveData(hashRange);
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        File sqlMoveFile = new File(sqlRows.getfileName() + KVIterateStore.MOVE_SUFFIX);
+        try (RandomAccessFile target = new RandomAccessFile(moveFile, "rw");
+             RandomAccessFile source = new RandomAccessFile(sqlMoveFile, "r")) {
+            // both files hold binary records, the SQL ones are copied after the header
+            FileChannel targetChannel = target.getChannel();
+            FileChannel sourceChannel = source.getChannel();
+            targetChannel.position(targetChannel.size());
+            long end = source.length();
+            long position = Math.min(FORMAT.headerLength(), end);
+            while (position < end) {
+                position += sourceChannel.transferTo(position, end - position, targetChannel);
+            }
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to add SQL rows to the move file", e);
+        }
+    }
+
+    @Override
+    public synchronized void afterMoveData(boolean shouldDelete) {
+        engine.afterMoveData(shouldDelete);
+        sqlRows.afterMoveData(shouldDelete);
+    }
+
+    /**
+     * Split a received data file by key length and merge the parts into their stores
+     *
+     * @param dataFile file in KVBinaryFormat or the legacy text format, deleted after merging
+     */
+    @Override
+    public synchronized void mergeData(File dataFile) throws IOException {
+        KVRecordFormat dataFormat = KVRecordFormat.detect(dataFile, FORMAT);
+        File kvPart = new File(dataFile.getPath() + "_kv");
+        File sqlPart = new File(dataFile.getPath() + "_sql");
+        try (KVRecordInput in = new KVFileInput(dataFile);
+             RandomAccessFile kvRaf = new RandomAccessFile(kvPart, "rw");
+             RandomAccessFile sqlRaf = new RandomAccessFile(sqlPart, "rw")) {
+            kvRaf.setLength(0);
+            kvRaf.write(FORMAT.fileHeader());
+            sqlRaf.setLength(0);
+            sqlRaf.write(FORMAT.fileHeader());
+            in.seek(dataFormat.headerLength());
+            KVIterateStore.KVEntry entry;
+            while ((entry = dataFormat.read(in, true)) != null) {
+                if (entry.tombstone) {
+                    continue;
+                }
+                RandomAccessFile part = entry.getKey().length() > KVServer.MAX_KEY ? sqlRaf : kvRaf;
+                part.write(FORMAT.encode(entry.getKey(), entry.getValue()));
+            }
+        }
+        engine.mergeData(kvPart);
+        sqlRows.mergeData(sqlPart);
+        if (!dataFile.delete()) {
+            logger.error(prompt + "Unable to delete the received data file");
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        engine.sync();
+        sqlRows.sync();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return engine.getCompressionRatio();
+    }
+
+    /**
+     * Snapshot of the engine followed by the SQL rows, each in a subdirectory of dir
+     */
+    @Override
+    public KVSnapshot snapshot(File dir) throws IOException {
+        KVSnapshot.createDir(dir);
+        KVSnapshot kvRows = engine.snapshot(new File(dir, "kv"));
+        KVSnapshot tableRows;
+        try {
+            tableRows = sqlRows.snapshot(new File(dir, "sql"));
+        } catch (IOException e) {
+            kvRows.close();
+            throw e;
+        }
+        // entries are re-encoded with the binary file header mergeData expects
+        return new KVSnapshot(dir, true) {
+            @Override
+            public Iterator<KVIterateStore.KVEntry> iterator() throws IOException {
+                Iterator<KVIterateStore.KVEntry> first = kvRows.iterator();
+                Iterator<KVIterateStore.KVEntry> second = tableRows.iterator();
+                return new Iterator<KVIterateStore.KVEntry>() {
+                    @Override
+                    public boolean hasNext() {
+                        return first.hasNext() || second.hasNext();
+                    }
+
+                    @Override
+                    public KVIterateStore.KVEntry next() {
+                        return first.hasNext() ? first.next() : second.next();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public boolean isSnapshotConcurrent() {
+        return engine.isSnapshotConcurrent();
+    }
+
+    @Override
+    public void close() {
+        engine.close();
+        sqlRows.close();
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * One-shot tool converting storage files of KVIterateStore from the legacy
+ * text format to KVBinaryFormat. Servers must be stopped while it runs.
+ * <p>
+ * Usage: KVStoreMigrator [dir], converts every *iterateDataBase file in dir (default ./res)
+ */
+public class KVStoreMigrator {
+    private static Logger logger = Logger.getRootLogger();
+    public static final String STORAGE_SUFFIX = "iterateDataBase";
+    private static final String TEMP_SUFFIX = ".migrating";
+
+    /**
+     * Convert a single storage file in place
+     *
+     * @param file storage file
+     * @return false if the file is already in binary format
+     */
+    public static boolean migrate(File file) throws IOException {
+        KVRecordFormat source = KVRecordFormat.detect(file, KVBinaryFormat.INSTANCE);
+        if (source == KVBinaryFormat.INSTANCE) {
+            return false;
+        }
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        int count = 0;
+        try (KVRecordInput in = new KVFileInput(file);
+             RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            out.write(KVBinaryFormat.INSTANCE.fileHeader());
+            KVIterateStore.KVEntry entry;
+            while ((entry = source.read(in, true)) != null) {
+                out.write(KVBinaryFormat.INSTANCE.encode(entry.getKey(), entry.getValue()));
+                count++;
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Migrated " + count + " entries in " + file.getPath());
+        return true;
+    }
+
+    public static void main(String[] args) {
+        try {
+            new LogSetup("logs/migrator.log", Level.INFO);
+        } catch (IOException e) {
+            System.err.println("Error! Unable to initialize logger!");
+        }
+        File dir = new File(args.length > 0 ? args[0] : "./res");
+        File[] files = dir.listFiles((d, name) -> name.endsWith(STORAGE_SUFFIX));
+        if (files == null) {
+            System.err.println("Error! " + dir.getPath() + " is not a directory!");
+            System.exit(1);
+        }
+        int failed = 0;
+        for (File file : files) {
+            try {
+                if (migrate(file)) {
+                    System.out.println("Converted " + file.getPath());
+                } else {
+                    System.out.println("Skipped " + file.getPath() + ", already in binary format");
+                }
+            } catch (IOException e) {
+                failed++;
+                System.err.println("Error! Unable to convert " + file.getPath() + ": " + e.getMessage());
+                logger.error("Unable to convert " + file.getPath(), e);
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Legacy line based format: escaped key and value separated by a delimiter,
+ * one entry per line
+ */
+public class KVTextFormat implements KVRecordFormat {
+    public static final KVTextFormat INSTANCE = new KVTextFormat();
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String ESCAPER = "-";
+    private static final String DELIM = ESCAPER + ",";
+    private static final String ESCAPED_ESCAPER = ESCAPER + "d";
+
+    private KVTextFormat() {
+    }
+
+    private static String encodeValue(String value) {
+        return value.replaceAll("\r", "\\\\r")
+                .replaceAll("\n", "\\\\n")
+                .replaceAll(ESCAPER, ESCAPED_ESCAPER);
+    }
+
+    private static String decodeValue(String value) {
+        return value.replaceAll("\\\\r", "\r")
+                .replaceAll("\\\\n", "\n")
+                .replaceAll(ESCAPED_ESCAPER, ESCAPER);
+    }
+
+    @Override
+    public byte[] fileHeader() {
+        return new byte[0];
+    }
+
+    @Override
+    public byte[] encode(String key, String value) throws IOException {
+        return (encodeValue(key) + DELIM + encodeValue(value) + "\r\n").getBytes("UTF-8");
+    }
+
+    @Override
+    public KVIterateStore.KVEntry read(KVRecordInput in, boolean readValue) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            long startOffset = in.position();
+            line.reset();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                line.write(c);
+            }
+            if (c == -1 && line.size() == 0) return null;
+
+            String str = line.toString("UTF-8");
+            if (str.endsWith("\r")) str = str.substring(0, str.length() - 1);
+            if (str.isEmpty()) {
+                logger.fatal("how could it be");
+                continue;
+            }
+            String[] strs = str.split(DELIM);
+            if (strs.length != 2) {
+                throw new IOException("Invalid Entry found: " + str);
+            }
+            return new KVIterateStore.KVEntry(startOffset, in.position(),
+                    decodeValue(strs[0]), readValue ? decodeValue(strs[1]) : null);
+        }
+    }
+}
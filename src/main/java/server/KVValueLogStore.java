@@ -0,0 +1,480 @@
+package server;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Persistent store keeping keys apart from values (WiscKey)
+ * <p>
+ * Values are appended to a value log of KVBinaryFormat records (key and value). A small
+ * key file holds, per put, the key and a pointer "offset,length" to its value record,
+ * a delete is a tombstone in the key file only. The key file is replayed into an in-memory
+ * index at startup, so existence checks and hash range partitioning never read a value,
+ * and a get is a single positioned read of the value log.
+ * <p>
+ * Once the dead values exceed the garbage ratio of the value log, live values are copied
+ * into a value log and key file of the next generation. Renaming the new key file into
+ * place commits the compaction, files of other generations are removed at startup.
+ */
+public class KVValueLogStore implements KVPersistentStore {
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final String KEY_SUFFIX = ".keys";
+    public static final String VALUE_SUFFIX = ".vlog";
+    public static final String COMPACT_SUFFIX = ".compact";
+    public static final long DEFAULT_MIN_GARBAGE = 16 * 1024 * 1024;
+    public static final double DEFAULT_GARBAGE_RATIO = 0.5;
+
+    private static final KVBinaryFormat KEY_FORMAT = KVBinaryFormat.INSTANCE;
+
+    private String dir = "./res";
+    private String fileName;
+    private String prompt;
+    private KVBinaryFormat valueFormat;
+    private long minGarbage;
+    private double garbageRatio;
+
+    private int generation;
+    private RandomAccessFile keyRaf;
+    private RandomAccessFile valueRaf;
+    private Map<String, Pointer> index = new HashMap<>();
+    /**
+     * Bytes of value records no longer referenced by the index
+     */
+    private long garbage = 0;
+    private String[] moveRange;
+
+    private static class Pointer {
+        long offset;
+        int length;
+
+        Pointer(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        static Pointer parse(String value) {
+            int comma = value.indexOf(',');
+            return new Pointer(Long.parseLong(value.substring(0, comma)),
+                    Integer.parseInt(value.substring(comma + 1)));
+        }
+
+        @Override
+        public String toString() {
+            return offset + "," + length;
+        }
+    }
+
+    public KVValueLogStore(String fileName) {
+        this(fileName, "./res", KVBinaryFormat.INSTANCE, DEFAULT_MIN_GARBAGE, DEFAULT_GARBAGE_RATIO);
+    }
+
+    /**
+     * @param fileName     prefix of the key and value files
+     * @param dir          directory holding the files
+     * @param valueFormat  format of the value records, may compress values
+     * @param minGarbage   bytes of dead values below which the value log is never compacted
+     * @param garbageRatio share of dead values in the value log that triggers compaction
+     */
+    public KVValueLogStore(String fileName, String dir, KVBinaryFormat valueFormat,
+                           long minGarbage, double garbageRatio) {
+        this.fileName = fileName;
+        this.dir = dir;
+        this.valueFormat = valueFormat;
+        this.minGarbage = minGarbage;
+        this.garbageRatio = garbageRatio;
+        this.prompt = "KVValueLogStore(" + fileName + "):";
+        try {
+            openStore();
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to open value log store", e);
+        }
+    }
+
+    private File keyFile(int generation) {
+        return new File(this.dir + "/" + this.fileName + "_" + generation + KEY_SUFFIX);
+    }
+
+    private File valueFile(int generation) {
+        return new File(this.dir + "/" + this.fileName + "_" + generation + VALUE_SUFFIX);
+    }
+
+    /**
+     * @return generation of a file of this store, -1 for files of other stores and unfinished output
+     */
+    private int generationOf(String name) {
+        String prefix = this.fileName + "_";
+        String suffix = name.endsWith(KEY_SUFFIX) ? KEY_SUFFIX : name.endsWith(VALUE_SUFFIX) ? VALUE_SUFFIX : null;
+        if (!name.startsWith(prefix) || suffix == null) return -1;
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private List<File> storeFiles() {
+        List<File> result = new ArrayList<>();
+        File[] files = new File(this.dir).listFiles();
+        if (files == null) return result;
+        String prefix = this.fileName + "_";
+        for (File file : files) {
+            String name = file.getName();
+            if (generationOf(name) >= 0
+                    || (name.startsWith(prefix) && name.endsWith(KEY_SUFFIX + COMPACT_SUFFIX))) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private void openStore() throws IOException {
+        File storeDir = new File(this.dir);
+        if (!storeDir.exists() && !storeDir.mkdirs()) {
+            throw new IOException("Unable to create dir " + this.dir);
+        }
+
+        // the newest committed key file decides the generation
+        generation = 0;
+        for (File file : storeFiles()) {
+            if (file.getName().endsWith(KEY_SUFFIX)) {
+                generation = Math.max(generation, generationOf(file.getName()));
+            }
+        }
+        for (File file : storeFiles()) {
+            if (generationOf(file.getName()) != generation) {
+                logger.info(prompt + "Remove file of another generation " + file.getName());
+                file.delete();
+            }
+        }
+
+        valueRaf = new RandomAccessFile(valueFile(generation), "rw");
+        if (valueRaf.length() == 0) {
+            valueRaf.write(valueFormat.fileHeader());
+        }
+        keyRaf = new RandomAccessFile(keyFile(generation), "rw");
+        if (keyRaf.length() == 0) {
+            keyRaf.write(KEY_FORMAT.fileHeader());
+        }
+        loadKeys();
+        valueRaf.seek(valueRaf.length());
+        keyRaf.seek(keyRaf.length());
+        logger.info(prompt + "Opened generation " + generation + " with " + index.size() + " entries");
+    }
+
+    /**
+     * Replay the key file into the index. A torn record at its end is truncated, pointers past
+     * the end of the value log are dropped as the value never reached the disk
+     */
+    private void loadKeys() throws IOException {
+        index.clear();
+        long valueLength = valueRaf.length();
+        long liveBytes = 0;
+        long validLength = KEY_FORMAT.headerLength();
+        try (KVRecordInput in = new KVFileInput(keyFile(generation))) {
+            in.seek(KEY_FORMAT.headerLength());
+            KVIterateStore.KVEntry entry;
+            while ((entry = KEY_FORMAT.read(in, true)) != null) {
+                validLength = entry.endOffset;
+                Pointer old = entry.tombstone ? index.remove(entry.getKey()) : null;
+                if (!entry.tombstone) {
+                    Pointer pointer = Pointer.parse(entry.getValue());
+                    if (pointer.offset + pointer.length > valueLength) {
+                        logger.warn(prompt + "Value of " + entry.getKey() + " missing from the value log");
+                        continue;
+                    }
+                    old = index.put(entry.getKey(), pointer);
+                    liveBytes += pointer.length;
+                }
+                if (old != null) liveBytes -= old.length;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn(prompt + "Torn record found at the end of the key file, truncating");
+            keyRaf.setLength(validLength);
+        }
+        garbage = valueLength - valueFormat.headerLength() - liveBytes;
+    }
+
+    private void appendKey(String key, Pointer pointer) throws IOException {
+        keyRaf.write(KEY_FORMAT.encode(key, pointer == null ? null : pointer.toString()));
+    }
+
+    private Pointer appendValue(byte[] record) throws IOException {
+        long offset = valueRaf.getFilePointer();
+        valueRaf.write(record);
+        return new Pointer(offset, record.length);
+    }
+
+    private byte[] readRaw(Pointer pointer) throws IOException {
+        byte[] bytes = new byte[pointer.length];
+        valueRaf.seek(pointer.offset);
+        valueRaf.readFully(bytes);
+        valueRaf.seek(valueRaf.length());
+        return bytes;
+    }
+
+    /**
+     * Point the key at a value record already in the value log
+     */
+    private void putPointer(String key, Pointer pointer) throws IOException {
+        appendKey(key, pointer);
+        Pointer old = index.put(key, pointer);
+        if (old != null) garbage += old.length;
+    }
+
+    private void remove(String key) throws IOException {
+        appendKey(key, null);
+        Pointer old = index.remove(key);
+        if (old != null) garbage += old.length;
+    }
+
+    @Override
+    public synchronized PutResult upsert(String key, String value) throws Exception {
+        boolean exists = index.containsKey(key);
+        PutResult result;
+        if (value.equals("null")) {
+            if (!exists) {
+                logger.info(prompt + "Try to delete an entry with non-exist key: " + key);
+                return PutResult.NOT_FOUND;
+            }
+            remove(key);
+            result = PutResult.DELETED;
+            logger.info(prompt + "Delete entry (" + key + ") successfully");
+        } else {
+            // value first, so a key never points past the value log
+            putPointer(key, appendValue(valueFormat.encode(key, value)));
+            result = exists ? PutResult.UPDATED : PutResult.INSERTED;
+            logger.info(prompt + "Put entry: (" + key + "=" + value + ") successfully");
+        }
+        compactIfNeeded();
+        return result;
+    }
+
+    @Override
+    public synchronized String get(String key) throws IOException {
+        Pointer pointer = index.get(key);
+        if (pointer == null) return null;
+        return valueFormat.read(new KVBufferInput(readRaw(pointer)), true).getValue();
+    }
+
+    @Override
+    public synchronized boolean inStorage(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized void clearStorage() {
+        try {
+            closeFiles();
+            for (File file : storeFiles()) {
+                file.delete();
+            }
+            index.clear();
+            garbage = 0;
+            openStore();
+            logger.info(prompt + "Storage cleared");
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to clear storage", e);
+        }
+    }
+
+    @Override
+    public String getfileName() {
+        return this.dir + "/" + this.fileName;
+    }
+
+    private List<String> keysInRange(String[] hashRange) {
+        List<String> keys = new ArrayList<>();
+        for (String key : index.keySet()) {
+            if (ECSNode.isKeyInRange(key, hashRange)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public synchronized void deleteData(String[] hashRange) {
+        try {
+            // only the key file is written, the values become garbage
+            for (String key : keysInRange(hashRange)) {
+                remove(key);
+            }
+            compactIfNeeded();
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to delete data", e);
+        }
+    }
+
+    @Override
+    public synchronized void preMoveData(String[] hashRange) {
+        this.moveRange = hashRange;
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(moveFile))) {
+            out.write(valueFormat.fileHeader());
+            for (String key : keysInRange(hashRange)) {
+                // value records are already in the move file format
+                out.write(readRaw(index.get(key)));
+            }
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to create move file", e);
+        }
+    }
+
+    @Override
+    public synchronized void afterMoveData(boolean shouldDelete) {
+        File moveFile = new File(getfileName() + KVIterateStore.MOVE_SUFFIX);
+        if (moveFile.delete()) {
+            logger.debug("Move file deleted");
+        } else {
+            logger.error("Unable to delete the move file");
+        }
+        if (shouldDelete && moveRange != null) {
+            deleteData(moveRange);
+        }
+        moveRange = null;
+    }
+
+    @Override
+    public synchronized void mergeData(File dataFile) throws IOException {
+        KVRecordFormat dataFormat = KVRecordFormat.detect(dataFile, valueFormat);
+        try (KVRecordInput in = new KVFileInput(dataFile)) {
+            in.seek(dataFormat.headerLength());
+            KVIterateStore.KVEntry entry;
+            while ((entry = dataFormat.read(in, dataFormat != valueFormat)) != null) {
+                if (entry.tombstone) continue;
+                byte[] record;
+                if (dataFormat == valueFormat) {
+                    // binary records are appended to the value log as they are
+                    record = new byte[(int) (entry.endOffset - entry.startOffset)];
+                    in.seek(entry.startOffset);
+                    in.readFully(record);
+                } else {
+                    record = valueFormat.encode(entry.getKey(), entry.getValue());
+                }
+                putPointer(entry.getKey(), appendValue(record));
+            }
+        }
+        dataFile.delete();
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        // values first, so the synced key file never points past the synced value log
+        valueRaf.getFD().sync();
+        keyRaf.getFD().sync();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return valueFormat.getCompressionRatio();
+    }
+
+    /**
+     * The value log is append-only and compaction writes a new one, so the snapshot links
+     * the value log and copies the index
+     */
+    @Override
+    public synchronized KVSnapshot snapshot(File dir) throws IOException {
+        KVSnapshot.createDir(dir);
+        File values = KVSnapshot.link(valueFile(generation), dir);
+        Map<String, KVSnapshot.Record> records = new HashMap<>();
+        for (Map.Entry<String, Pointer> entry : index.entrySet()) {
+            Pointer pointer = entry.getValue();
+            records.put(entry.getKey(), new KVSnapshot.Record(values, pointer.offset, pointer.length));
+        }
+        return KVSnapshot.ofIndex(dir, records, true);
+    }
+
+    public synchronized long getGarbageSize() {
+        return garbage;
+    }
+
+    public synchronized long getKeyFileSize() throws IOException {
+        return keyRaf.length();
+    }
+
+    public synchronized long getValueLogSize() throws IOException {
+        return valueRaf.length();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (garbage >= minGarbage && garbage >= garbageRatio * valueRaf.length()) {
+            compact();
+        }
+    }
+
+    /**
+     * Copy the live values into the value log of the next generation and write its key file.
+     * Runs in the writing thread holding the store lock
+     */
+    public synchronized void compact() throws IOException {
+        int next = generation + 1;
+        logger.info(prompt + "Compacting value log with " + index.size() + " live entries, "
+                + garbage + " bytes of garbage");
+        File newValues = valueFile(next);
+        File newKeysTemp = new File(keyFile(next).getPath() + COMPACT_SUFFIX);
+        Map<String, Pointer> moved = new HashMap<>();
+        try (RandomAccessFile values = new RandomAccessFile(newValues, "rw");
+             RandomAccessFile keys = new RandomAccessFile(newKeysTemp, "rw")) {
+            values.setLength(0);
+            values.write(valueFormat.fileHeader());
+            keys.setLength(0);
+            keys.write(KEY_FORMAT.fileHeader());
+            // copy in value log order, so the old log is read sequentially
+            List<Map.Entry<String, Pointer>> live = new ArrayList<>(index.entrySet());
+            live.sort(Comparator.comparingLong(e -> e.getValue().offset));
+            for (Map.Entry<String, Pointer> entry : live) {
+                byte[] record = readRaw(entry.getValue());
+                Pointer pointer = new Pointer(values.getFilePointer(), record.length);
+                values.write(record);
+                keys.write(KEY_FORMAT.encode(entry.getKey(), pointer.toString()));
+                moved.put(entry.getKey(), pointer);
+            }
+            values.getFD().sync();
+            keys.getFD().sync();
+        } catch (IOException e) {
+            newValues.delete();
+            newKeysTemp.delete();
+            throw e;
+        }
+
+        // the renamed key file commits the new generation
+        Files.move(newKeysTemp.toPath(), keyFile(next).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        closeFiles();
+        keyFile(generation).delete();
+        valueFile(generation).delete();
+        generation = next;
+        index = moved;
+        garbage = 0;
+        valueRaf = new RandomAccessFile(valueFile(generation), "rw");
+        valueRaf.seek(valueRaf.length());
+        keyRaf = new RandomAccessFile(keyFile(generation), "rw");
+        keyRaf.seek(keyRaf.length());
+        logger.info(prompt + "Compaction finished, value log is " + valueRaf.length() + " bytes");
+    }
+
+    private void closeFiles() throws IOException {
+        if (valueRaf != null) valueRaf.close();
+        if (keyRaf != null) keyRaf.close();
+    }
+
+    /**
+     * Release all file handles
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            closeFiles();
+        } catch (IOException e) {
+            logger.error(prompt + "Unable to close value log files", e);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package server;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write-ahead log in front of a KVPersistentStore. Puts are appended in the order they
+ * are applied to the store and the log is replayed into the store on startup.
+ * <p>
+ * In BATCH mode appended records are buffered, the first writer waiting for durability
+ * writes and fsyncs everything appended so far with a single write and a single fsync
+ * while later writers queue up for the next round (group commit).
+ * <p>
+ * The log only needs to cover puts not yet durable in the store, checkpoint truncates it
+ * once the store has been synced.
+ */
+public class KVWriteAheadLog {
+    public static final String WAL_SUFFIX = ".wal";
+    private static Logger logger = Logger.getRootLogger();
+    private static final KVBinaryFormat FORMAT = KVBinaryFormat.INSTANCE;
+
+    public enum Durability {
+        NONE,   /* written to the OS on every put, never fsynced */
+        BATCH,  /* concurrent puts share one write and one fsync */
+        SYNC    /* every put is written and fsynced on its own */
+    }
+
+    private String prompt;
+    private File file;
+    private Durability durability;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    /**
+     * Held while writing to or truncating the file, taken before the monitor of this
+     */
+    private final Object fileLock = new Object();
+
+    /* guarded by this */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedLsn = 0;
+    private long syncedLsn = 0;
+    private long checkpointLsn = 0;
+    private boolean syncing = false;
+    private long syncCount = 0;
+
+    public KVWriteAheadLog(File file, Durability durability) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        this.prompt = "KVWriteAheadLog(" + file.getName() + "): ";
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        if (raf.length() < FORMAT.headerLength()) {
+            resetFile();
+        }
+        channel.position(channel.size());
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    private void resetFile() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        writeFully(ByteBuffer.wrap(FORMAT.fileHeader()));
+        channel.force(false);
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Apply all complete records in the log to the store, a torn record
+     * at the end of the log is dropped
+     *
+     * @return number of records replayed
+     */
+    public int replay(KVPersistentStore store) throws IOException {
+        int count = 0;
+        long validLength = FORMAT.headerLength();
+        synchronized (fileLock) {
+            try (KVRecordInput in = new KVFileInput(file)) {
+                in.seek(FORMAT.headerLength());
+                KVIterateStore.KVEntry entry;
+                while ((entry = FORMAT.read(in, true)) != null) {
+                    validLength = entry.endOffset;
+                    try {
+                        // deleting a key which was never stored is a no-op
+                        store.upsert(entry.getKey(), entry.getValue());
+                    } catch (Exception e) {
+                        logger.warn(prompt + "Skip replayed put of " + entry.getKey() + ": " + e.getMessage());
+                    }
+                    count++;
+                }
+            } catch (IOException e) {
+                logger.warn(prompt + "Torn record found at offset " + validLength + ", truncating");
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+        }
+        logger.info(prompt + "Replayed " + count + " records");
+        return count;
+    }
+
+    /**
+     * Append a put to the log, callers must append the puts of a key in the order they are
+     * applied to the store, puts of different keys may be reordered
+     *
+     * @return log sequence number to pass to sync
+     */
+    public long append(String key, String value) throws IOException {
+        byte[] record = FORMAT.encode(key, value);
+        if (durability == Durability.BATCH) {
+            synchronized (this) {
+                pending.write(record, 0, record.length);
+                appendedLsn += record.length;
+                return appendedLsn;
+            }
+        }
+        synchronized (fileLock) {
+            writeFully(ByteBuffer.wrap(record));
+            synchronized (this) {
+                appendedLsn += record.length;
+                return appendedLsn;
+            }
+        }
+    }
+
+    /**
+     * Wait until the put with the given sequence number is durable in the sense of
+     * the durability mode, should be called without holding the lock of the store
+     */
+    public void sync(long lsn) throws IOException {
+        switch (durability) {
+            case NONE:
+                return;
+            case SYNC:
+                synchronized (fileLock) {
+                    channel.force(false);
+                    synchronized (this) {
+                        syncCount++;
+                        syncedLsn = Math.max(syncedLsn, lsn);
+                    }
+                }
+                return;
+            case BATCH:
+            default:
+                groupCommit(lsn);
+        }
+    }
+
+    private void groupCommit(long lsn) throws IOException {
+        synchronized (this) {
+            while (syncedLsn < lsn && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for log sync", e);
+                }
+            }
+            if (syncedLsn >= lsn) {
+                return;
+            }
+            // become the leader of the next group
+            syncing = true;
+        }
+
+        long target = 0;
+        try {
+            synchronized (fileLock) {
+                byte[] data;
+                long swapped;
+                synchronized (this) {
+                    data = pending.toByteArray();
+                    pending.reset();
+                    swapped = appendedLsn;
+                }
+                long start = channel.position();
+                try {
+                    writeFully(ByteBuffer.wrap(data));
+                    channel.force(false);
+                } catch (IOException e) {
+                    // drop a partial write and keep the records for the next leader
+                    channel.truncate(start);
+                    synchronized (this) {
+                        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+                        restored.write(data, 0, data.length);
+                        pending.writeTo(restored);
+                        pending = restored;
+                    }
+                    throw e;
+                }
+                target = swapped;
+            }
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (target > 0) {
+                    syncCount++;
+                }
+                syncedLsn = Math.max(syncedLsn, target);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Truncate the log, all appended puts must already be durable in the store
+     */
+    public void checkpoint() throws IOException {
+        synchronized (fileLock) {
+            synchronized (this) {
+                pending.reset();
+                syncedLsn = appendedLsn;
+                checkpointLsn = appendedLsn;
+                notifyAll();
+            }
+            resetFile();
+        }
+    }
+
+    /**
+     * @return bytes appended since the last checkpoint
+     */
+    public synchronized long size() {
+        return appendedLsn - checkpointLsn;
+    }
+
+    /**
+     * @return number of fsyncs issued for puts, lower than the number of puts when commits are grouped
+     */
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    public void close() throws IOException {
+        synchronized (fileLock) {
+            synchronized (this) {
+                writeFully(ByteBuffer.wrap(pending.toByteArray()));
+                pending.reset();
+            }
+            channel.force(false);
+            raf.close();
+        }
+    }
+}
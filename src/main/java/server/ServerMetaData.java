@@ -1,8 +1,14 @@
 package server;
 
+import server.cache.KVCacheStats;
+
 public class ServerMetaData {
     private String cacheStrategy;
     private Integer cacheSize;
+    /**
+     * Byte budget of the cache, bounding it instead of cacheSize, null for none
+     */
+    private Long cacheBytes;
 
     private Integer receivePort;
     private String host;
@@ -11,6 +17,27 @@ public class ServerMetaData {
      * If no data transfer happening, the value should be 100 always
      */
     private Integer transferProgress;
+    /**
+     * Storage engine, a StoreType name, null for Iterate
+     */
+    private String storeType;
+    /**
+     * Durability mode of the write-ahead log, null for the server default
+     */
+    private String durability;
+    /**
+     * Whether large values are stored deflated, null for off
+     */
+    private Boolean valueCompression;
+    /**
+     * Between 0 and 100 (inclusive), share of the storage loaded while the server starts.
+     * The server does not start serving before it reaches 100, null before loading begins
+     */
+    private Integer warmUpProgress;
+    /**
+     * Counters of the cache, published by the server every few seconds, null without a cache
+     */
+    private KVCacheStats cacheStats;
 
     public ServerMetaData(String cacheStrategy, Integer cacheSize) {
         this.cacheStrategy = cacheStrategy;
@@ -36,6 +63,14 @@ public class ServerMetaData {
         this.cacheSize = cacheSize;
     }
 
+    public Long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public void setCacheBytes(Long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+    }
+
     public String getCacheStrategy() {
         return cacheStrategy;
     }
@@ -63,4 +98,44 @@ public class ServerMetaData {
     public void setHost(String host) {
         this.host = host;
     }
+
+    public String getStoreType() {
+        return storeType;
+    }
+
+    public void setStoreType(String storeType) {
+        this.storeType = storeType;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public void setDurability(String durability) {
+        this.durability = durability;
+    }
+
+    public Boolean getValueCompression() {
+        return valueCompression;
+    }
+
+    public void setValueCompression(Boolean valueCompression) {
+        this.valueCompression = valueCompression;
+    }
+
+    public Integer getWarmUpProgress() {
+        return warmUpProgress;
+    }
+
+    public void setWarmUpProgress(Integer warmUpProgress) {
+        this.warmUpProgress = warmUpProgress;
+    }
+
+    public KVCacheStats getCacheStats() {
+        return cacheStats;
+    }
+
+    public void setCacheStats(KVCacheStats cacheStats) {
+        this.cacheStats = cacheStats;
+    }
 }
@@ -1,19 +1,39 @@
 package server.cache;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class AbstractKVCache implements KVCache {
+    /**
+     * Estimated heap bytes of a cached entry besides the characters of key and value:
+     * the map entry, two String objects and their arrays
+     */
+    public static final int ENTRY_OVERHEAD = 96;
+
     /**
      * Size of max entries the cache can hold
      */
     private int cacheSize;
 
+    /**
+     * Max estimated bytes of the cached entries, 0 to bound the cache by cacheSize instead
+     */
+    private long maxBytes = 0;
+
+    /**
+     * Estimated bytes of the cached entries
+     */
+    private long usedBytes = 0;
+
     /**
      * Map that holds all values
      * Different cache implementations might choose different Map implementations
      */
     protected Map<String, String> cacheMap;
 
+    private final KVCacheCounters counters = new KVCacheCounters();
+
     /**
      * Default constructor
      *
@@ -23,6 +43,13 @@ public class AbstractKVCache implements KVCache {
         this.cacheSize = cacheSize;
     }
 
+    /**
+     * Estimated heap bytes of a cached entry, 2 bytes per character of key and value
+     */
+    public static long weigh(String key, String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+
     /**
      * Default implementation of put
      *
@@ -32,9 +59,57 @@ public class AbstractKVCache implements KVCache {
     @Override
     public void put(String key, String value) {
         if ("null".equals(value)) {
-            cacheMap.remove(key);
+            removeEntry(key);
         } else {
-            cacheMap.put(key, value);
+            String old = cacheMap.put(key, value);
+            if (old != null) {
+                usedBytes -= weigh(key, old);
+            }
+            usedBytes += weigh(key, value);
+            evict(key);
+        }
+    }
+
+    /**
+     * Remove entries until the cache is within its bound
+     *
+     * @param keep key just put, only removed if it exceeds the bound on its own
+     */
+    protected void evict(String keep) {
+        while (isOverBound()) {
+            String victim = victim(keep);
+            removeEntry(victim == null ? keep : victim);
+            counters.recordEviction();
+        }
+    }
+
+    private boolean isOverBound() {
+        if (cacheMap.isEmpty()) {
+            return false;
+        }
+        return maxBytes > 0 ? usedBytes > maxBytes : cacheMap.size() > cacheSize;
+    }
+
+    /**
+     * Pick the entry to remove, by default the first in the iteration order of the map
+     *
+     * @param keep key that must not be picked
+     * @return null if there is no other entry
+     */
+    protected String victim(String keep) {
+        for (String key : cacheMap.keySet()) {
+            if (!key.equals(keep)) return key;
+        }
+        return null;
+    }
+
+    /**
+     * Remove an entry, keeping the byte count in line
+     */
+    protected void removeEntry(String key) {
+        String old = cacheMap.remove(key);
+        if (old != null) {
+            usedBytes -= weigh(key, old);
         }
     }
 
@@ -46,12 +121,15 @@ public class AbstractKVCache implements KVCache {
      */
     @Override
     public String get(String key) {
-        return cacheMap.get(key);
+        String value = cacheMap.get(key);
+        counters.recordGet(value != null);
+        return value;
     }
 
     @Override
     public void clear() {
         cacheMap.clear();
+        usedBytes = 0;
     }
 
     @Override
@@ -64,8 +142,47 @@ public class AbstractKVCache implements KVCache {
         this.cacheSize = size;
     }
 
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
     @Override
     public boolean containsKey(String key) {
         return cacheMap.containsKey(key);
     }
+
+    @Override
+    public void recordLoad(long nanos) {
+        counters.recordLoad(nanos);
+    }
+
+    @Override
+    public KVCacheStats getStats() {
+        return counters.snapshot(this);
+    }
+
+    @Override
+    public int invalidate(String[] hashRange) {
+        KVHashRangeFilter filter = new KVHashRangeFilter(hashRange);
+        List<String> keys = new ArrayList<>();
+        for (String key : cacheMap.keySet()) {
+            if (filter.matches(key)) keys.add(key);
+        }
+        for (String key : keys) {
+            removeEntry(key);
+        }
+        return keys.size();
+    }
 }
@@ -0,0 +1,69 @@
+package server.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of keys known to be missing from the store, so repeated gets of them do
+ * not read the store again. The least recently looked up key is dropped when it is full.
+ * <p>
+ * A miss is only remembered if the set was not cleared since the lookup started, which
+ * keeps a lookup racing with a merge of received data from remembering a key the merge
+ * just added.
+ */
+public class KVAbsentKeyCache {
+    public static final int DEFAULT_SIZE = 10000;
+
+    private final LinkedHashMap<String, Boolean> keys;
+    private long generation = 0;
+
+    public KVAbsentKeyCache(int size) {
+        this.keys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * @return number of clears so far, to pass to add once the store missed the key
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Remember a key the store does not hold
+     *
+     * @param generation generation read before the store was asked
+     */
+    public synchronized void add(String key, long generation) {
+        if (generation == this.generation) {
+            keys.put(key, Boolean.TRUE);
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return keys.get(key) != null;
+    }
+
+    /**
+     * Forget a key that was put
+     */
+    public synchronized void remove(String key) {
+        keys.remove(key);
+    }
+
+    /**
+     * Forget all keys, e.g. once the store received new data
+     */
+    public synchronized void clear() {
+        keys.clear();
+        generation++;
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+}
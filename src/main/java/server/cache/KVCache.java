@@ -38,5 +38,45 @@ public interface KVCache {
      */
     public void setCacheSize(int size);
 
+    /**
+     * @return max estimated bytes of key and value the cache holds, 0 if the cache
+     * is bounded by the cache size
+     */
+    public long getMaxBytes();
+
+    /**
+     * Bound the cache by the estimated bytes of its keys and values instead of the
+     * number of entries, evicting entries until it fits
+     *
+     * @param maxBytes byte budget, 0 to go back to the cache size
+     */
+    public void setMaxBytes(long maxBytes);
+
+    /**
+     * @return estimated bytes of the cached keys and values
+     */
+    public long getUsedBytes();
+
     public boolean containsKey(String key);
+
+    /**
+     * Count a value read from the store after a miss
+     *
+     * @param nanos time spent reading it
+     */
+    public void recordLoad(long nanos);
+
+    /**
+     * @return hits, misses, evictions and loads since the cache was created, with its
+     * current size
+     */
+    public KVCacheStats getStats();
+
+    /**
+     * Remove the cached keys whose hash is in the range, e.g. once the store moved or
+     * deleted that range
+     *
+     * @return number of keys removed
+     */
+    public int invalidate(String[] hashRange);
 }
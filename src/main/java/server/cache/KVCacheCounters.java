@@ -0,0 +1,46 @@
+package server.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of a cache, cheap to update from many threads
+ */
+public class KVCacheCounters {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    /**
+     * Count a get
+     */
+    public void recordGet(boolean hit) {
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+    }
+
+    public void recordEviction() {
+        evictions.increment();
+    }
+
+    public void recordLoad(long nanos) {
+        loads.increment();
+        loadNanos.add(nanos);
+    }
+
+    /**
+     * @return the counters along with the current size and bounds of the cache
+     */
+    public KVCacheStats snapshot(KVCache cache) {
+        return snapshot(cache.getUsedBytes(), cache.getMaxBytes(), cache.getCacheSize());
+    }
+
+    public KVCacheStats snapshot(long usedBytes, long maxBytes, int cacheSize) {
+        return new KVCacheStats(hits.sum(), misses.sum(), evictions.sum(), loads.sum(),
+                loadNanos.sum(), usedBytes, maxBytes, cacheSize);
+    }
+}
@@ -0,0 +1,89 @@
+package server.cache;
+
+/**
+ * Counters of a cache at one point in time, published with the metadata of the server
+ */
+public class KVCacheStats {
+    private long hits;
+    private long misses;
+    private long evictions;
+    /**
+     * Values read from the store after a miss, and the time spent reading them
+     */
+    private long loads;
+    private long loadNanos;
+    private long usedBytes;
+    private long maxBytes;
+    private int cacheSize;
+
+    public KVCacheStats(long hits, long misses, long evictions, long loads, long loadNanos,
+                        long usedBytes, long maxBytes, int cacheSize) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.loads = loads;
+        this.loadNanos = loadNanos;
+        this.usedBytes = usedBytes;
+        this.maxBytes = maxBytes;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return counters of both, the bounds are taken from this one
+     */
+    public KVCacheStats plus(KVCacheStats other) {
+        return new KVCacheStats(hits + other.hits, misses + other.misses,
+                evictions + other.evictions, loads + other.loads, loadNanos + other.loadNanos,
+                usedBytes + other.usedBytes, maxBytes, cacheSize);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return share of gets found in the cache, 0 before the first get
+     */
+    public double getHitRate() {
+        long gets = hits + misses;
+        return gets == 0 ? 0 : (double) hits / gets;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return average time of reading a missed value from the store in milliseconds
+     */
+    public double getAverageLoadMillis() {
+        return loads == 0 ? 0 : loadNanos / 1e6 / loads;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits %d, misses %d (hit rate %.3f), evictions %d, %d bytes, "
+                        + "%d loads (%.3f ms avg)", hits, misses, getHitRate(), evictions, usedBytes,
+                loads, getAverageLoadMillis());
+    }
+}
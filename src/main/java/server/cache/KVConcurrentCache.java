@@ -0,0 +1,8 @@
+package server.cache;
+
+/**
+ * KVCache that is safe to use from several threads without locking it, each call is
+ * atomic on its own
+ */
+public interface KVConcurrentCache extends KVCache {
+}
@@ -0,0 +1,220 @@
+package server.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free KVCache evicting keys in insertion order
+ * <p>
+ * Entries are kept in a ConcurrentHashMap, the insertion order in a ring of cacheSize
+ * slots. A new key takes the next slot by incrementing the tail counter and evicts the
+ * entry it finds there, so no lock is taken on any path. With a byte budget the oldest
+ * slots are emptied until the cache fits, the cache size still caps the number of entries.
+ * <p>
+ * A slot holds the entry object it was taken for and only removes that very entry, so a
+ * key deleted and put again keeps its new entry until its new slot comes around.
+ */
+public class KVConcurrentFIFOCache implements KVConcurrentCache {
+    private static class Entry {
+        final String key;
+        volatile String value;
+
+        Entry(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<Entry> ring;
+    /**
+     * Sequence number of the next slot taken, the slot is the sequence modulo the ring size
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Sequence number of the next slot emptied for the byte budget
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private volatile long maxBytes = 0;
+    private final KVCacheCounters counters = new KVCacheCounters();
+
+    public KVConcurrentFIFOCache(Integer cacheSize) {
+        this.ring = new AtomicReferenceArray<>(cacheSize);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        if ("null".equals(value)) {
+            Entry old = map.remove(key);
+            if (old != null) {
+                usedBytes.addAndGet(-AbstractKVCache.weigh(key, old.value));
+            }
+            return;
+        }
+        while (true) {
+            // an update keeps the entry and so its slot
+            Entry updated = map.computeIfPresent(key, (k, e) -> {
+                usedBytes.addAndGet(AbstractKVCache.weigh(k, value) - AbstractKVCache.weigh(k, e.value));
+                e.value = value;
+                return e;
+            });
+            if (updated != null) break;
+            Entry entry = new Entry(key, value);
+            if (map.putIfAbsent(key, entry) == null) {
+                usedBytes.addAndGet(AbstractKVCache.weigh(key, value));
+                takeSlot(entry);
+                break;
+            }
+        }
+        if (maxBytes > 0) {
+            evictToBudget();
+        }
+    }
+
+    /**
+     * Put a new entry in the next slot, evicting the entry found there
+     */
+    private void takeSlot(Entry entry) {
+        AtomicReferenceArray<Entry> slots = ring;
+        if (slots.length() == 0) {
+            remove(entry);
+            return;
+        }
+        long seq = tail.getAndIncrement();
+        Entry evicted = slots.getAndSet((int) (seq % slots.length()), entry);
+        if (evicted != null && remove(evicted)) {
+            counters.recordEviction();
+        }
+        if (slots != ring) {
+            // the ring was replaced meanwhile, the entry has no slot in the new one
+            remove(entry);
+        }
+    }
+
+    /**
+     * Empty the oldest slots until the cache is within the byte budget
+     */
+    private void evictToBudget() {
+        AtomicReferenceArray<Entry> slots = ring;
+        int n = slots.length();
+        while (usedBytes.get() > maxBytes) {
+            long t = tail.get();
+            long h = head.get();
+            // slots older than a full ring have been overwritten already
+            long oldest = Math.max(h, t - n);
+            if (oldest >= t) {
+                return;
+            }
+            if (head.compareAndSet(h, oldest + 1)) {
+                Entry victim = slots.getAndSet((int) (oldest % n), null);
+                if (victim != null && remove(victim)) {
+                    counters.recordEviction();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the entry if its key still maps to it
+     *
+     * @return whether the entry was removed
+     */
+    private boolean remove(Entry entry) {
+        if (map.remove(entry.key, entry)) {
+            usedBytes.addAndGet(-AbstractKVCache.weigh(entry.key, entry.value));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String get(String key) {
+        Entry entry = map.get(key);
+        String value = entry == null ? null : entry.value;
+        counters.recordGet(value != null);
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Remove all entries, slots still holding removed entries are harmless
+     */
+    @Override
+    public void clear() {
+        for (Entry entry : map.values()) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Slots still holding removed entries are harmless
+     */
+    @Override
+    public int invalidate(String[] hashRange) {
+        KVHashRangeFilter filter = new KVHashRangeFilter(hashRange);
+        int removed = 0;
+        for (Entry entry : map.values()) {
+            if (filter.matches(entry.key) && remove(entry)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return ring.length();
+    }
+
+    /**
+     * Replace the ring, which clears the cache
+     */
+    @Override
+    public synchronized void setCacheSize(int size) {
+        ring = new AtomicReferenceArray<>(size);
+        tail.set(0);
+        head.set(0);
+        clear();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (maxBytes > 0) {
+            evictToBudget();
+        }
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    @Override
+    public void recordLoad(long nanos) {
+        counters.recordLoad(nanos);
+    }
+
+    @Override
+    public KVCacheStats getStats() {
+        return counters.snapshot(this);
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    public int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,10 @@
+package server.cache;
+
+/**
+ * Concurrent KVCache evicting the least frequently used key of a segment
+ */
+public class KVConcurrentLFUCache extends KVSegmentedCache {
+    public KVConcurrentLFUCache(Integer cacheSize) {
+        super(cacheSize, KVLFUCache::new);
+    }
+}
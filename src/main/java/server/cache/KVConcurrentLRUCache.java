@@ -0,0 +1,10 @@
+package server.cache;
+
+/**
+ * Concurrent KVCache evicting the least recently used key of a segment
+ */
+public class KVConcurrentLRUCache extends KVSegmentedCache {
+    public KVConcurrentLRUCache(Integer cacheSize) {
+        super(cacheSize, KVLRUCache::new);
+    }
+}
@@ -0,0 +1,93 @@
+package server.cache;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch estimating how often keys were accessed, in a few bytes per key
+ * <p>
+ * Each key increments one counter in each of DEPTH rows, the estimate is the smallest of
+ * them, so collisions can only make a key look more frequent. Counters stop at MAX_COUNT.
+ * After sampleSize increments all counters are halved, so the estimates follow recent
+ * accesses rather than the whole history.
+ */
+public class KVFrequencySketch {
+    public static final int MAX_COUNT = 15;
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x97cb3127, 0xab7f6a87, 0x8b4f1c6d, 0xc3a5c85d};
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedKeys number of keys the cache holds, sizes the rows and the sample
+     */
+    public KVFrequencySketch(int expectedKeys) {
+        int keys = Math.max(16, expectedKeys);
+        int width = Integer.highestOneBit(keys - 1) << 1;
+        this.table = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * keys;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 15;
+        return h & mask;
+    }
+
+    private static int spread(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Count an access of the key
+     */
+    public void increment(String key) {
+        int hash = spread(key);
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+            if (table[row][i] < MAX_COUNT) {
+                table[row][i]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return estimated accesses of the key, at most MAX_COUNT
+     */
+    public int frequency(String key) {
+        int hash = spread(key);
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, table[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * Halve all counters
+     */
+    public void reset() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    public void clear() {
+        for (byte[] row : table) {
+            Arrays.fill(row, (byte) 0);
+        }
+        additions = 0;
+    }
+}
@@ -0,0 +1,59 @@
+package server.cache;
+
+import ecs.ECSNode;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Tells whether the ECSNode.calcHash of a key is in a hash range, for invalidating the
+ * keys of a range from a cache. Nothing is hashed while the cache is filled; invalidation
+ * hashes the cached keys with a digest of its own thread, so it does not take the lock
+ * of ECSNode.calcHash.
+ * <p>
+ * The ring is split into 256 buckets by the first digest byte. For buckets entirely in or
+ * out of the range that byte decides, only keys of the buckets the range ends in are
+ * compared as a whole number.
+ */
+public class KVHashRangeFilter {
+    private static final int HASH_BITS = 128;
+    private static final int BUCKETS = 256;
+    private static final byte OUT = 0, IN = 1, SPLIT = 2;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to find hashing algorithm", e);
+        }
+    });
+
+    private final ECSNode.HashRange range;
+    private final byte[] buckets = new byte[BUCKETS];
+
+    public KVHashRangeFilter(String[] hashRange) {
+        this.range = new ECSNode.HashRange(hashRange);
+        for (int i = 0; i < BUCKETS; i++) {
+            BigInteger from = BigInteger.valueOf(i).shiftLeft(HASH_BITS - 8);
+            BigInteger to = BigInteger.valueOf(i + 1).shiftLeft(HASH_BITS - 8).subtract(BigInteger.ONE);
+            if (range.covers(from, to)) {
+                buckets[i] = IN;
+            } else if (range.overlaps(from, to)) {
+                buckets[i] = SPLIT;
+            }
+        }
+    }
+
+    public boolean matches(String key) {
+        MessageDigest md = MD5.get();
+        md.reset();
+        // same bytes as ECSNode.calcHash
+        byte[] digest = md.digest(key.getBytes());
+        byte bucket = buckets[digest[0] & 0xff];
+        if (bucket != SPLIT) {
+            return bucket == IN;
+        }
+        return range.inRange(new BigInteger(1, digest));
+    }
+}
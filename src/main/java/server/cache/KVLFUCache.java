@@ -1,67 +1,246 @@
 package server.cache;
 
-
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
+/**
+ * KVCache that use the LFU(Least Frequently Used) logic to remove keys when cache is full
+ * <p>
+ * Keys are kept in buckets of equal access frequency, the buckets in a doubly linked list
+ * ordered by frequency and the keys of a bucket in a doubly linked list ordered by their
+ * last access. An access moves a key to the bucket of the next frequency and the victim
+ * is the least recently used key of the lowest bucket, so both take constant time.
+ * Among keys of equal frequency the least recently used one is evicted first.
+ * <p>
+ * Optionally the frequencies age: after every agingPeriod accesses all of them are
+ * halved, so keys that were hot once but are no longer used can be evicted again.
+ */
 public class KVLFUCache extends AbstractKVCache {
-	
-	private HashMap<String,Integer> LFUMap;
-	
-	public KVLFUCache(Integer cacheSize) {
-		super(cacheSize);
-		this.cacheMap = new HashMap<String, String>(this.getCacheSize());
-		this.LFUMap = new HashMap<String,Integer>(this.getCacheSize()); 
+
+    private static class Node {
+        final String key;
+        Bucket bucket;
+        Node prev;
+        Node next;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class Bucket {
+        int frequency;
+        /**
+         * Least recently used key of the bucket
+         */
+        Node head;
+        Node tail;
+        Bucket prev;
+        Bucket next;
+
+        Bucket(int frequency) {
+            this.frequency = frequency;
+        }
+
+        void append(Node node) {
+            node.bucket = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+
+        void unlink(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        boolean isEmpty() {
+            return head == null;
+        }
+    }
+
+    private final Map<String, Node> nodes;
+    /**
+     * Bucket of the lowest frequency, null if the cache is empty
+     */
+    private Bucket lowest;
+    /**
+     * Accesses between two agings, 0 if frequencies do not age
+     */
+    private long agingPeriod;
+    private long accesses = 0;
+
+    public KVLFUCache(Integer cacheSize) {
+        this(cacheSize, 0L);
+    }
+
+    /**
+     * @param agingPeriod halve all frequencies after this many accesses, 0 to never age them
+     */
+    public KVLFUCache(Integer cacheSize, Long agingPeriod) {
+        super(cacheSize);
+        this.cacheMap = new HashMap<String, String>(this.getCacheSize());
+        this.nodes = new HashMap<String, Node>(this.getCacheSize());
+        this.agingPeriod = agingPeriod;
+    }
+
+    /**
+     * Count an access of the key, adding it with frequency 1 if it is new
+     */
+    private void touch(String key) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            nodes.put(key, node);
+            if (lowest == null || lowest.frequency != 1) {
+                Bucket bucket = new Bucket(1);
+                bucket.next = lowest;
+                if (lowest != null) lowest.prev = bucket;
+                lowest = bucket;
+            }
+            lowest.append(node);
+        } else {
+            Bucket current = node.bucket;
+            if (current.frequency < Integer.MAX_VALUE) {
+                Bucket target = current.next;
+                if (target == null || target.frequency != current.frequency + 1) {
+                    target = new Bucket(current.frequency + 1);
+                    target.prev = current;
+                    target.next = current.next;
+                    if (current.next != null) current.next.prev = target;
+                    current.next = target;
+                }
+                current.unlink(node);
+                target.append(node);
+                if (current.isEmpty()) {
+                    removeBucket(current);
+                }
+            } else {
+                // refresh the position among the keys of the same frequency
+                current.unlink(node);
+                current.append(node);
+            }
+        }
+        if (agingPeriod > 0 && ++accesses >= agingPeriod) {
+            accesses = 0;
+            age();
+        }
+    }
+
+    private void removeBucket(Bucket bucket) {
+        if (bucket.prev == null) {
+            lowest = bucket.next;
+        } else {
+            bucket.prev.next = bucket.next;
+        }
+        if (bucket.next != null) {
+            bucket.next.prev = bucket.prev;
+        }
+    }
+
+    /**
+     * Halve all frequencies, merging buckets that end up with the same one
+     */
+    private void age() {
+        Bucket bucket = lowest;
+        while (bucket != null) {
+            Bucket next = bucket.next;
+            bucket.frequency = Math.max(1, bucket.frequency / 2);
+            Bucket prev = bucket.prev;
+            if (prev != null && prev.frequency == bucket.frequency) {
+                // the keys of the more frequent bucket count as more recent
+                for (Node node = bucket.head; node != null; ) {
+                    Node following = node.next;
+                    prev.append(node);
+                    node = following;
+                }
+                removeBucket(bucket);
+            }
+            bucket = next;
+        }
+    }
+
+    /**
+     * The least recently used key of the lowest frequency
+     */
+    @Override
+    protected String victim(String keep) {
+        for (Bucket bucket = lowest; bucket != null; bucket = bucket.next) {
+            for (Node node = bucket.head; node != null; node = node.next) {
+                if (!node.key.equals(keep)) return node.key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void removeEntry(String key) {
+        super.removeEntry(key);
+        Node node = nodes.remove(key);
+        if (node != null) {
+            Bucket bucket = node.bucket;
+            bucket.unlink(node);
+            if (bucket.isEmpty()) {
+                removeBucket(bucket);
+            }
+        }
+    }
+
+    /**
+     * @return access count of the key, after aging, 0 if it is not cached
+     */
+    public int getFrequency(String key) {
+        Node node = nodes.get(key);
+        return node == null ? 0 : node.bucket.frequency;
+    }
+
+    public long getAgingPeriod() {
+        return agingPeriod;
+    }
+
+    public void setAgingPeriod(long agingPeriod) {
+        this.agingPeriod = agingPeriod;
+        this.accesses = 0;
     }
-	
-	//apply this function before get and put for LFU strategy
-	public void LFUReplace(String key) {
-		int counter;
-		if (this.getCacheSize() == 0) {
-			return;
-		}
-		else if (this.cacheMap.containsKey(key)) {
-			//increment the counter of the key
-			counter = LFUMap.get(key);
-			counter += 1;
-			LFUMap.put(key, counter);
-			return;
-		}
-		else if (this.cacheMap.size() >= this.getCacheSize()) {
-		//remove the lfu entry
-			String keyToRemove;
-			Iterator itr = LFUMap.entrySet().iterator(); 
-			Map.Entry entry;
-			entry = (Map.Entry)itr.next();
-			counter = (int)entry.getValue();
-			keyToRemove = (String)entry.getKey();
-			while (itr.hasNext()) {
-				entry = (Map.Entry)itr.next();
-				if ((int)entry.getValue() < counter) {
-					counter = (int)entry.getValue();
-					keyToRemove = (String)entry.getKey();
-				}	
-			}
-			this.cacheMap.remove(keyToRemove);
-			LFUMap.remove(keyToRemove);
-		}
-		//record the counter of the new entry
-		//cache map entry is not inserted in this function
-		counter = 1;
-		LFUMap.put(key, counter);
-		return;
-	}
 
     @Override
     public void put(String key, String value) {
-	    LFUReplace(key);
+        if (!"null".equals(value)) {
+            // counted before the entry is added so eviction sees the key
+            touch(key);
+        }
         super.put(key, value);
     }
 
     @Override
     public String get(String key) {
-        LFUReplace(key);
-        return super.get(key);
+        String value = super.get(key);
+        if (value != null) {
+            touch(key);
+        }
+        return value;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        nodes.clear();
+        lowest = null;
+        accesses = 0;
     }
 }
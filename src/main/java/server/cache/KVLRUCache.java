@@ -1,7 +1,6 @@
 package server.cache;
 
 import java.util.LinkedHashMap;
-import java.util.Map;
 
 /**
  * KVCache that use the LRU(Least Recent Use) logic to remove keys when cache is full
@@ -14,11 +13,6 @@ public class KVLRUCache extends AbstractKVCache{
                 (float) 0.75,
                 true
                 // accessOrder - the ordering mode - true for access-order, false for insertion-order
-        ) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry eldest) {
-                return size() > getCacheSize();
-            }
-        };
+        );
     }
 }
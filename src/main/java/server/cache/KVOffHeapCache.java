@@ -0,0 +1,347 @@
+package server.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * KVCache keeping the values off the Java heap
+ * <p>
+ * Values are stored as UTF-8 bytes in direct ByteBuffer slabs of SLAB_SIZE bytes. A slab
+ * is cut into chunks of a single size class, a value takes a chunk of the smallest class
+ * it fits in. Only keys and chunk locations are on the heap, so cached values add nothing
+ * to the work of the garbage collector.
+ * <p>
+ * The cache size is the memory budget in kilobytes, rounded up to whole slabs. A value
+ * finding no free chunk of its class when no slab is left evicts the least recently used
+ * entry of its class; a class without entries takes over the slab holding the least
+ * recently used entry of all classes. Slabs emptied by removals go back to a shared pool.
+ * Values larger than a slab are not cached.
+ */
+public class KVOffHeapCache implements KVCache {
+    public static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int[] CHUNK_SIZES = chunkSizes();
+
+    private static class Slab {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        /**
+         * -1 while the slab is in the pool
+         */
+        int sizeClass = -1;
+        /**
+         * Key of the entry in every chunk, null for free chunks
+         */
+        String[] keys;
+        final ArrayDeque<Integer> freeChunks = new ArrayDeque<>();
+
+        void assign(int sizeClass) {
+            this.sizeClass = sizeClass;
+            this.keys = new String[SLAB_SIZE / CHUNK_SIZES[sizeClass]];
+            freeChunks.clear();
+            for (int i = 0; i < keys.length; i++) {
+                freeChunks.add(i);
+            }
+        }
+
+        boolean isEmpty() {
+            return freeChunks.size() == keys.length;
+        }
+    }
+
+    private static class Entry {
+        final Slab slab;
+        final int chunk;
+        final int length;
+        long lastAccess;
+
+        Entry(Slab slab, int chunk, int length) {
+            this.slab = slab;
+            this.chunk = chunk;
+            this.length = length;
+        }
+
+        int offset() {
+            return chunk * CHUNK_SIZES[slab.sizeClass];
+        }
+    }
+
+    private static class SizeClass {
+        /**
+         * Entries of the class in access order
+         */
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        final Set<Slab> slabsWithFreeChunks = new LinkedHashSet<>();
+    }
+
+    /**
+     * Memory budget in kilobytes
+     */
+    private int cacheSize;
+    private final List<Slab> slabs = new ArrayList<>();
+    private final ArrayDeque<Slab> pool = new ArrayDeque<>();
+    private final SizeClass[] classes = new SizeClass[CHUNK_SIZES.length];
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long clock = 0;
+    private long usedBytes = 0;
+    private final KVCacheCounters counters = new KVCacheCounters();
+
+    /**
+     * @param cacheSize memory budget for the values in kilobytes
+     */
+    public KVOffHeapCache(Integer cacheSize) {
+        this.cacheSize = cacheSize;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
+
+    private static int[] chunkSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < SLAB_SIZE) {
+            sizes.add(size);
+            // 8 byte aligned, growing by the factor
+            size = ((int) (size * GROWTH_FACTOR) + 7) & ~7;
+        }
+        sizes.add(SLAB_SIZE);
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return the smallest class holding values of the given length, -1 if there is none
+     */
+    private static int sizeClassOf(int length) {
+        for (int i = 0; i < CHUNK_SIZES.length; i++) {
+            if (CHUNK_SIZES[i] >= length) return i;
+        }
+        return -1;
+    }
+
+    private int maxSlabs() {
+        return Math.max(1, (int) (((long) cacheSize * 1024 + SLAB_SIZE - 1) / SLAB_SIZE));
+    }
+
+    @Override
+    public void put(String key, String value) {
+        remove(key);
+        if ("null".equals(value)) {
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int sizeClass = sizeClassOf(bytes.length);
+        if (sizeClass < 0) {
+            return;
+        }
+        Slab slab = allocate(sizeClass);
+        SizeClass cls = classes[sizeClass];
+        int chunk = slab.freeChunks.pop();
+        if (slab.freeChunks.isEmpty()) {
+            cls.slabsWithFreeChunks.remove(slab);
+        }
+        slab.keys[chunk] = key;
+
+        Entry entry = new Entry(slab, chunk, bytes.length);
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(entry.offset());
+        buffer.put(bytes);
+        entry.lastAccess = ++clock;
+        entries.put(key, entry);
+        cls.entries.put(key, entry);
+        usedBytes += bytes.length;
+    }
+
+    /**
+     * @return a slab of the class with a free chunk, evicting entries if needed
+     */
+    private Slab allocate(int sizeClass) {
+        SizeClass cls = classes[sizeClass];
+        while (true) {
+            if (!cls.slabsWithFreeChunks.isEmpty()) {
+                return cls.slabsWithFreeChunks.iterator().next();
+            }
+            Slab slab = pool.poll();
+            if (slab == null && slabs.size() < maxSlabs()) {
+                slab = new Slab();
+                slabs.add(slab);
+            }
+            if (slab != null) {
+                slab.assign(sizeClass);
+                cls.slabsWithFreeChunks.add(slab);
+            } else if (!cls.entries.isEmpty()) {
+                remove(cls.entries.keySet().iterator().next());
+                counters.recordEviction();
+            } else {
+                // emptying the slab returns it to the pool
+                for (String key : leastRecentlyUsed().slab.keys) {
+                    if (key != null) {
+                        remove(key);
+                        counters.recordEviction();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the least recently used entry of all classes
+     */
+    private Entry leastRecentlyUsed() {
+        Entry oldest = null;
+        for (SizeClass cls : classes) {
+            if (cls.entries.isEmpty()) continue;
+            Entry head = cls.entries.values().iterator().next();
+            if (oldest == null || head.lastAccess < oldest.lastAccess) {
+                oldest = head;
+            }
+        }
+        return oldest;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) return;
+        Slab slab = entry.slab;
+        SizeClass cls = classes[slab.sizeClass];
+        cls.entries.remove(key);
+        slab.keys[entry.chunk] = null;
+        slab.freeChunks.push(entry.chunk);
+        usedBytes -= entry.length;
+        if (slab.isEmpty()) {
+            cls.slabsWithFreeChunks.remove(slab);
+            slab.sizeClass = -1;
+            pool.add(slab);
+        } else {
+            cls.slabsWithFreeChunks.add(slab);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        Entry entry = entries.get(key);
+        counters.recordGet(entry != null);
+        if (entry == null) return null;
+        // refresh the position in the access order of the class
+        classes[entry.slab.sizeClass].entries.get(key);
+        entry.lastAccess = ++clock;
+
+        byte[] bytes = new byte[entry.length];
+        ByteBuffer buffer = entry.slab.buffer.duplicate();
+        buffer.position(entry.offset());
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int invalidate(String[] hashRange) {
+        KVHashRangeFilter filter = new KVHashRangeFilter(hashRange);
+        List<String> keys = new ArrayList<>();
+        for (String key : entries.keySet()) {
+            if (filter.matches(key)) keys.add(key);
+        }
+        for (String key : keys) {
+            remove(key);
+        }
+        return keys.size();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        for (SizeClass cls : classes) {
+            cls.entries.clear();
+            cls.slabsWithFreeChunks.clear();
+        }
+        pool.clear();
+        for (Slab slab : slabs) {
+            slab.sizeClass = -1;
+            pool.add(slab);
+        }
+        usedBytes = 0;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Change the memory budget, shrinking it below the slabs in use clears the cache
+     *
+     * @param size memory budget in kilobytes
+     */
+    @Override
+    public void setCacheSize(int size) {
+        this.cacheSize = size;
+        if (slabs.size() > maxSlabs()) {
+            clear();
+            while (slabs.size() > maxSlabs()) {
+                // the direct buffer is freed once the slab is collected
+                pool.remove(slabs.remove(slabs.size() - 1));
+            }
+        }
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    @Override
+    public long getMaxBytes() {
+        return (long) cacheSize * 1024;
+    }
+
+    /**
+     * The memory budget of this cache is in bytes already, this sets it in whole kilobytes
+     */
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes > 0) {
+            setCacheSize((int) Math.min(Integer.MAX_VALUE, (maxBytes + 1023) / 1024));
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public void recordLoad(long nanos) {
+        counters.recordLoad(nanos);
+    }
+
+    @Override
+    public KVCacheStats getStats() {
+        return counters.snapshot(this);
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return bytes of the cached values
+     */
+    @Override
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return bytes of direct memory held by the slabs
+     */
+    public long getAllocatedBytes() {
+        return (long) slabs.size() * SLAB_SIZE;
+    }
+}
@@ -0,0 +1,160 @@
+package server.cache;
+
+import java.util.function.IntFunction;
+
+/**
+ * Concurrent KVCache made of independent segments, each a single threaded cache behind
+ * its own lock. A key always maps to the same segment, so threads working on keys of
+ * different segments do not wait for each other.
+ * <p>
+ * The cache size and byte budget are split evenly over the segments and every segment
+ * evicts on its own, so the replacement strategy holds per segment rather than over the
+ * whole cache. Caches too small to give each segment MIN_SEGMENT_SIZE entries get fewer
+ * segments.
+ */
+public class KVSegmentedCache implements KVConcurrentCache {
+    public static final int MAX_SEGMENTS = 16;
+    public static final int MIN_SEGMENT_SIZE = 16;
+
+    private final KVCache[] segments;
+    private int cacheSize;
+    private long maxBytes = 0;
+    /**
+     * Only counts loads, the segments count the rest
+     */
+    private final KVCacheCounters counters = new KVCacheCounters();
+
+    /**
+     * @param factory creates a segment of the given cache size
+     */
+    public KVSegmentedCache(Integer cacheSize, IntFunction<KVCache> factory) {
+        this.cacheSize = cacheSize;
+        int count = Math.max(1, Math.min(MAX_SEGMENTS, cacheSize / MIN_SEGMENT_SIZE));
+        this.segments = new KVCache[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = factory.apply((int) share(cacheSize, i));
+        }
+    }
+
+    /**
+     * Part of a total that goes to a segment, the parts add up to the total
+     */
+    private long share(long total, int segment) {
+        return total / segments.length + (segment < total % segments.length ? 1 : 0);
+    }
+
+    private KVCache segmentOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        KVCache segment = segmentOf(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        KVCache segment = segmentOf(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        KVCache segment = segmentOf(key);
+        synchronized (segment) {
+            return segment.containsKey(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (KVCache segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getCacheSize() {
+        return cacheSize;
+    }
+
+    @Override
+    public synchronized void setCacheSize(int size) {
+        this.cacheSize = size;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                segments[i].setCacheSize((int) share(size, i));
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                // a budget of 0 would turn the byte bound off
+                segments[i].setMaxBytes(maxBytes > 0 ? Math.max(1, share(maxBytes, i)) : 0);
+            }
+        }
+    }
+
+    @Override
+    public void recordLoad(long nanos) {
+        counters.recordLoad(nanos);
+    }
+
+    /**
+     * @return the sum of the counters of all segments
+     */
+    @Override
+    public KVCacheStats getStats() {
+        KVCacheStats stats = counters.snapshot(0, getMaxBytes(), getCacheSize());
+        for (KVCache segment : segments) {
+            synchronized (segment) {
+                stats = stats.plus(segment.getStats());
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public int invalidate(String[] hashRange) {
+        int removed = 0;
+        for (KVCache segment : segments) {
+            synchronized (segment) {
+                removed += segment.invalidate(hashRange);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        long used = 0;
+        for (KVCache segment : segments) {
+            synchronized (segment) {
+                used += segment.getUsedBytes();
+            }
+        }
+        return used;
+    }
+}
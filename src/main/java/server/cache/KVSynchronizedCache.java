@@ -0,0 +1,82 @@
+package server.cache;
+
+/**
+ * Makes a KVCache safe for concurrent use by locking the whole cache for every call
+ */
+public class KVSynchronizedCache implements KVConcurrentCache {
+    private final KVCache cache;
+
+    public KVSynchronizedCache(KVCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cache itself if it is concurrent already, otherwise a synchronized view
+     */
+    public static KVConcurrentCache wrap(KVCache cache) {
+        if (cache instanceof KVConcurrentCache) {
+            return (KVConcurrentCache) cache;
+        }
+        return new KVSynchronizedCache(cache);
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        cache.put(key, value);
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    @Override
+    public synchronized int getCacheSize() {
+        return cache.getCacheSize();
+    }
+
+    @Override
+    public synchronized void setCacheSize(int size) {
+        cache.setCacheSize(size);
+    }
+
+    @Override
+    public synchronized long getMaxBytes() {
+        return cache.getMaxBytes();
+    }
+
+    @Override
+    public synchronized void setMaxBytes(long maxBytes) {
+        cache.setMaxBytes(maxBytes);
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return cache.getUsedBytes();
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) {
+        return cache.containsKey(key);
+    }
+
+    @Override
+    public synchronized void recordLoad(long nanos) {
+        cache.recordLoad(nanos);
+    }
+
+    @Override
+    public synchronized KVCacheStats getStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public synchronized int invalidate(String[] hashRange) {
+        return cache.invalidate(hashRange);
+    }
+}
@@ -0,0 +1,146 @@
+package server.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * KVCache with W-TinyLFU replacement, resisting scans that would flush an LRU cache
+ * <p>
+ * New keys enter a small LRU window of WINDOW_PERCENT of the cache. Keys pushed out of
+ * the window compete for the main area, an LRU split into a probation and a protected
+ * part: a key leaving the window is only admitted if a KVFrequencySketch estimates it
+ * more frequently used than the least recently used key of probation, which is evicted
+ * instead. A key hit again while on probation moves to the protected part. Keys of a
+ * one-off scan pass the window but lose against the frequent keys of the main area.
+ * <p>
+ * The shares of the areas are counted in entries of the cache size, also when the cache
+ * is bounded by bytes.
+ */
+public class KVTinyLFUCache extends AbstractKVCache {
+    public static final int WINDOW_PERCENT = 1;
+    public static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * Keys of the areas in access order, the eldest is the least recently used
+     */
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> protectedArea = new LinkedHashMap<>(16, 0.75f, true);
+    private final KVFrequencySketch sketch;
+
+    public KVTinyLFUCache(Integer cacheSize) {
+        super(cacheSize);
+        this.cacheMap = new HashMap<String, String>(this.getCacheSize());
+        this.sketch = new KVFrequencySketch(cacheSize);
+    }
+
+    private int windowSize() {
+        return Math.max(1, getCacheSize() * WINDOW_PERCENT / 100);
+    }
+
+    private int protectedSize() {
+        return (getCacheSize() - windowSize()) * PROTECTED_PERCENT / 100;
+    }
+
+    /**
+     * @return least recently used key of the area other than skip, null if there is none
+     */
+    private static String eldest(LinkedHashMap<String, Boolean> area, String skip) {
+        for (String key : area.keySet()) {
+            if (!key.equals(skip)) return key;
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        if ("null".equals(value)) {
+            super.put(key, value);
+            return;
+        }
+        sketch.increment(key);
+        if (cacheMap.containsKey(key)) {
+            onHit(key);
+        } else {
+            window.put(key, Boolean.TRUE);
+        }
+        super.put(key, value);
+        // the main area has room for what the window holds too many
+        while (window.size() > windowSize()) {
+            String candidate = eldest(window, null);
+            window.remove(candidate);
+            probation.put(candidate, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        // misses count as well, a key read often is admitted once it is put
+        sketch.increment(key);
+        String value = super.get(key);
+        if (value != null) {
+            onHit(key);
+        }
+        return value;
+    }
+
+    private void onHit(String key) {
+        if (probation.remove(key) != null) {
+            protectedArea.put(key, Boolean.TRUE);
+            if (protectedArea.size() > protectedSize()) {
+                String demoted = eldest(protectedArea, null);
+                protectedArea.remove(demoted);
+                probation.put(demoted, Boolean.TRUE);
+            }
+        } else if (window.get(key) == null) {
+            protectedArea.get(key);
+        }
+    }
+
+    /**
+     * Admission: the eldest key of the window replaces the eldest of the main area only
+     * if it is more frequent
+     */
+    @Override
+    protected String victim(String keep) {
+        String mainVictim = eldest(probation, keep);
+        if (mainVictim == null) {
+            mainVictim = eldest(protectedArea, keep);
+        }
+        if (window.size() > windowSize()) {
+            // at least two keys in the window, so the eldest is not the one just put
+            String candidate = eldest(window, null);
+            if (mainVictim == null || sketch.frequency(candidate) <= sketch.frequency(mainVictim)) {
+                return candidate;
+            }
+            window.remove(candidate);
+            probation.put(candidate, Boolean.TRUE);
+            return mainVictim;
+        }
+        return mainVictim != null ? mainVictim : eldest(window, keep);
+    }
+
+    @Override
+    protected void removeEntry(String key) {
+        super.removeEntry(key);
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedArea.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        window.clear();
+        probation.clear();
+        protectedArea.clear();
+        sketch.clear();
+    }
+
+    /**
+     * @return estimated recent accesses of the key
+     */
+    public int getFrequency(String key) {
+        return sketch.frequency(key);
+    }
+}
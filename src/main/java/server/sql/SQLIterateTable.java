@@ -10,11 +10,11 @@ import ecs.ECSNode;
 import server.KVIterateStore;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Type;
 import java.util.*;
 import java.util.function.BiPredicate;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 public class SQLIterateTable implements SQLTable {
     private static final String TABLE_COL_ID = "_table";
@@ -103,21 +103,36 @@ public class SQLIterateTable implements SQLTable {
     @Override
     public List<Map<String, Object>> query(List<String> selector,
                                            Predicate<Map<String, Object>> condition) throws SQLException, IOException {
-        List<Map<String, Object>> result = store.select(tableSelectWrapper(condition)).stream()
-                .map(kvEntry -> jsonToMap(kvEntry.getValue()))
-                .collect(Collectors.toList());
-        for (Map<String, Object> entry : result) {
-            sanityCheck(entry);
-        }
-        return result.stream().map(m -> {
-            HashMap<String, Object> ret = new HashMap<>();
-            for (Map.Entry<String, Object> e : m.entrySet()) {
-                if (selector.contains(e.getKey())) {
-                    ret.put(e.getKey(), e.getValue());
+        return query(selector, condition, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stream the rows of the table, each value is parsed once and only the selected
+     * columns of matching rows are kept
+     *
+     * @param limit stop reading after this many matching rows
+     */
+    private List<Map<String, Object>> query(List<String> selector, Predicate<Map<String, Object>> condition,
+                                            int limit) throws SQLException, IOException {
+        List<Map<String, Object>> result = new ArrayList<>();
+        // Distinguish with kv store rows by key before reading the value
+        try (KVIterateStore.KVCursor cursor = store.cursor((key, val) -> key.length() > KVServer.MAX_KEY)) {
+            while (result.size() < limit && cursor.hasNext()) {
+                Map<String, Object> row = jsonToMap(cursor.next().getValue());
+                if (!name.equals(row.get(TABLE_COL_ID)) || !condition.test(row)) continue;
+                sanityCheck(row);
+                HashMap<String, Object> ret = new HashMap<>();
+                for (Map.Entry<String, Object> e : row.entrySet()) {
+                    if (selector.contains(e.getKey())) {
+                        ret.put(e.getKey(), e.getValue());
+                    }
                 }
+                result.add(ret);
             }
-            return ret;
-        }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
     }
 
     @Override
@@ -127,17 +142,13 @@ public class SQLIterateTable implements SQLTable {
         if (newValue.keySet().contains(PRIMARY_KEY) || newValue.keySet().contains(TABLE_COL_ID)) {
             throw new SQLException("Cannot update reserved columns");
         }
-        List<KVIterateStore.KVEntry> selected = store.select(tableSelectWrapper(condition));
-        Collections.reverse(selected);
-        for (KVIterateStore.KVEntry entry : selected) {
-            Map<String, Object> row = jsonToMap(entry.getValue());
+        return store.updateWhere(tableSelectWrapper(condition), (key, val) -> {
+            Map<String, Object> row = jsonToMap(val);
             for (Map.Entry<String, Object> e : newValue.entrySet()) {
                 row.put(e.getKey(), e.getValue());
             }
-            entry.setValue(mapToJson(row));
-            store.updateEntry(entry);
-        }
-        return selected.size();
+            return mapToJson(row);
+        });
     }
 
     @Override
@@ -150,12 +161,7 @@ public class SQLIterateTable implements SQLTable {
 
     @Override
     public Integer delete(Predicate<Map<String, Object>> condition) throws SQLException, IOException {
-        List<KVIterateStore.KVEntry> selected = store.select(tableSelectWrapper(condition));
-        Collections.reverse(selected);
-        for (KVIterateStore.KVEntry kvEntry : selected) {
-            store.deleteEntry(kvEntry);
-        }
-        return selected.size();
+        return store.updateWhere(tableSelectWrapper(condition), (key, val) -> null);
     }
 
     @Override
@@ -169,7 +175,7 @@ public class SQLIterateTable implements SQLTable {
         Map<String, Map<String, Object>> result = new HashMap<>();
         for (Object value: valueList){
             Predicate<Map<String, Object>> predicateFunc = (obj) -> obj.get(colName).equals(value);
-            List<Map<String, Object>> ret = query(selector, predicateFunc);
+            List<Map<String, Object>> ret = query(selector, predicateFunc, 1);
             Map<String, Object> firstEntry = ret.iterator().next();
             result.put(value.toString(), firstEntry);
         }
@@ -4,11 +4,13 @@ import ecs.ECS;
 import ecs.RawECSNode;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
+import server.cache.KVCacheStats;
 import web_console.ResponseWrapper;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.PUT;
@@ -46,6 +48,26 @@ public class ServerController {
         return ecs.getNodeByName(name);
     }
 
+    /**
+     * @return cache statistics of the node, last published to ZooKeeper
+     */
+    @GetMapping("/node/{name}/cache")
+    public ResponseWrapper getCacheStats(@PathVariable("name") String name) {
+        KVCacheStats stats = ecs.getCacheStats(name);
+        if (stats == null) {
+            return new ResponseWrapper("No cache statistics for " + name, null);
+        }
+        return new ResponseWrapper(null, stats);
+    }
+
+    /**
+     * @return cache statistics of all nodes by name, to compare them
+     */
+    @GetMapping("/cache/all")
+    public Map<String, KVCacheStats> getAllCacheStats() {
+        return ecs.getAllCacheStats();
+    }
+
     @RequestMapping(value = "/node", method = PUT)
     public ResponseWrapper createNode(
             @RequestParam String name,
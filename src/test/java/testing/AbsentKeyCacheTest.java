@@ -0,0 +1,69 @@
+package testing;
+
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.KVBinaryFormat;
+import server.cache.KVAbsentKeyCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+public class AbsentKeyCacheTest extends TestCase {
+
+    @Test
+    public void testBoundAndGeneration() {
+        KVAbsentKeyCache absent = new KVAbsentKeyCache(3);
+        long generation = absent.getGeneration();
+        for (int i = 0; i < 4; i++) {
+            absent.add("key" + i, generation);
+        }
+        assertEquals(3, absent.size());
+        assertFalse(absent.contains("key0"));
+        assertTrue(absent.contains("key3"));
+
+        // a lookup that started before a clear is not remembered
+        absent.clear();
+        absent.add("key1", generation);
+        assertFalse(absent.contains("key1"));
+        absent.add("key1", absent.getGeneration());
+        assertTrue(absent.contains("key1"));
+        absent.remove("key1");
+        assertFalse(absent.contains("key1"));
+    }
+
+    @Test
+    public void testServerRemembersMisses() throws Exception {
+        KVServer server = new KVServer(0, 10, "LRU", "absentKeyTest");
+        server.clearStorage();
+        assertNull(server.getKV("missing"));
+        assertTrue(server.getAbsentKeys().contains("missing"));
+
+        // served from memory, a change behind the back of the server is not seen
+        server.getStore().put("missing", "direct");
+        assertNull(server.getKV("missing"));
+
+        // puts and deletes through the server keep it in line
+        server.putKV("missing", "value");
+        assertFalse(server.getAbsentKeys().contains("missing"));
+        assertEquals("value", server.getKV("missing"));
+        server.putKV("missing", "null");
+        assertTrue(server.getAbsentKeys().contains("missing"));
+        assertNull(server.getKV("missing"));
+
+        // received data makes remembered keys visible
+        assertNull(server.getKV("received"));
+        File dataFile = new File(server.getStorageName() + "~");
+        try (OutputStream out = new FileOutputStream(dataFile)) {
+            out.write(KVBinaryFormat.INSTANCE.fileHeader());
+            out.write(KVBinaryFormat.INSTANCE.encode("received", "data"));
+        }
+        server.mergeData(dataFile);
+        assertEquals("data", server.getKV("received"));
+
+        server.clearStorage();
+        assertEquals(0, server.getAbsentKeys().size());
+        server.close();
+    }
+}
@@ -34,7 +34,24 @@ public class AllTests {
                 FIFOCacheTest.class,
                 LFUCacheTest.class,
                 LRUCacheTest.class,
+                OffHeapCacheTest.class,
+                ConcurrentCacheTest.class,
+                TinyLFUCacheTest.class,
+                AbsentKeyCacheTest.class,
+                CacheStatsTest.class,
+                CacheInvalidationTest.class,
                 PersistentStoreTest.class,
+                IndexedStoreTest.class,
+                LogStoreTest.class,
+                RecordFormatTest.class,
+                MappedStoreTest.class,
+                SegmentedStoreTest.class,
+                WriteAheadLogTest.class,
+                BloomFilterTest.class,
+                LsmStoreTest.class,
+                ConcurrencyTest.class,
+                ValueLogStoreTest.class,
+                SnapshotTest.class,
                 HashRingTest.class,
                 ECSBasicTest.class,
                 ECSLoadTest.class,
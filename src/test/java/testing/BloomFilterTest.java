@@ -0,0 +1,85 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.KVBloomFilter;
+import server.KVIterateStore;
+
+import java.io.File;
+
+public class BloomFilterTest extends TestCase {
+    private static final String[] HASH_RANGE = new String[]{
+            "358343938402ebb5110716c6e836f5a2",
+            "a98109598267087dfc364fae4cf24578"
+    };
+
+    @Test
+    public void testFilter() {
+        KVBloomFilter filter = new KVBloomFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.put("key" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("key" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("missing" + i)) falsePositives++;
+        }
+        assertTrue(falsePositives < 300);
+        assertTrue(filter.expectedFalsePositiveRate() < 0.02);
+        assertFalse(filter.isOverloaded());
+        filter.put("one more");
+        assertTrue(filter.isOverloaded());
+    }
+
+    @Test
+    public void testStoreLookups() throws Exception {
+        KVIterateStore store = new KVIterateStore("bloomTest");
+        store.clearStorage();
+        store.setBloomFilter(true);
+        assertTrue(store.hasBloomFilter());
+
+        // grows past the initial capacity, forcing rebuilds on put
+        for (int i = 0; i < 200; i++) {
+            store.put("k" + i, "v" + i);
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("v" + i, store.get("k" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertNull(store.get("missing" + i));
+        }
+        assertTrue(store.getBloomNegatives() > 900);
+        assertTrue(store.getBloomFalsePositiveRate() < 0.1);
+
+        // keys moved away are dropped from the filter, received keys are added
+        KVIterateStore receiver = new KVIterateStore("bloomTestReceiver");
+        receiver.clearStorage();
+        receiver.setBloomFilter(true);
+        store.preMoveData(HASH_RANGE);
+        File received = new File(receiver.getfileName() + "~");
+        assertTrue(new File(store.getfileName() + KVIterateStore.MOVE_SUFFIX).renameTo(received));
+        receiver.mergeData(received);
+        store.afterMoveData(true);
+
+        long negatives = store.getBloomNegatives();
+        int moved = 0;
+        for (int i = 0; i < 200; i++) {
+            String key = "k" + i;
+            boolean inRange = ECSNode.isKeyInRange(key, HASH_RANGE);
+            assertEquals(inRange ? null : "v" + i, store.get(key));
+            assertEquals(inRange ? "v" + i : null, receiver.get(key));
+            if (inRange) moved++;
+        }
+        assertTrue(store.getBloomNegatives() - negatives > moved / 2);
+
+        store.clearStorage();
+        assertNull(store.get("k0"));
+        store.put("k0", "again");
+        assertEquals("again", store.get("k0"));
+        store.clearStorage();
+        receiver.clearStorage();
+    }
+}
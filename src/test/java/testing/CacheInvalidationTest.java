@@ -0,0 +1,93 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.cache.KVCache;
+import server.cache.KVConcurrentFIFOCache;
+import server.cache.KVConcurrentLRUCache;
+import server.cache.KVHashRangeFilter;
+import server.cache.KVLFUCache;
+import server.cache.KVLRUCache;
+import server.cache.KVOffHeapCache;
+import server.cache.KVTinyLFUCache;
+
+public class CacheInvalidationTest extends TestCase {
+    private static final int KEYS = 500;
+
+    /**
+     * Fill the cache, invalidate the range and check that exactly its keys are gone
+     */
+    private static void checkInvalidate(KVCache cache, String[] hashRange) {
+        for (int i = 0; i < KEYS; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        // admission and uneven segments may have evicted some keys already
+        int inRange = 0, outOfRange = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (!cache.containsKey("key" + i)) continue;
+            if (ECSNode.isKeyInRange("key" + i, hashRange)) inRange++;
+            else outOfRange++;
+        }
+        assertTrue(inRange > 0 && outOfRange > 0);
+
+        assertEquals(inRange, cache.invalidate(hashRange));
+        int left = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            if (cache.containsKey(key)) {
+                assertFalse(ECSNode.isKeyInRange(key, hashRange));
+                left++;
+            }
+        }
+        assertEquals(outOfRange, left);
+        assertEquals(0, cache.invalidate(hashRange));
+        cache.clear();
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    private static void checkRanges(KVCache cache) {
+        // a range inside the ring and one wrapping around its end
+        checkInvalidate(cache, new String[]{"3" + repeat('0', 31), "a" + repeat('0', 31)});
+        checkInvalidate(cache, new String[]{"e" + repeat('8', 31), "1" + repeat('4', 31)});
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testFilter() {
+        String[][] ranges = {
+                {"3" + repeat('0', 31), "a" + repeat('0', 31)},
+                {"e" + repeat('8', 31), "1" + repeat('4', 31)},
+                // both ends in the same bucket, once inside and once wrapping around
+                {"51" + repeat('0', 30), "51" + repeat('8', 30)},
+                {"51" + repeat('8', 30), "51" + repeat('0', 30)}
+        };
+        for (String[] range : ranges) {
+            KVHashRangeFilter filter = new KVHashRangeFilter(range);
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(ECSNode.isKeyInRange("key" + i, range), filter.matches("key" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testCachesOfMaps() {
+        checkRanges(new KVLRUCache(KEYS));
+        checkRanges(new KVLFUCache(KEYS));
+        checkRanges(new KVTinyLFUCache(KEYS));
+        checkRanges(new KVConcurrentLRUCache(KEYS));
+    }
+
+    @Test
+    public void testLockFreeAndOffHeapCaches() {
+        checkRanges(new KVConcurrentFIFOCache(KEYS));
+        checkRanges(new KVOffHeapCache(1024));
+    }
+}
@@ -0,0 +1,66 @@
+package testing;
+
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.cache.KVCacheStats;
+import server.cache.KVConcurrentLRUCache;
+import server.cache.KVLRUCache;
+
+public class CacheStatsTest extends TestCase {
+
+    @Test
+    public void testCounters() {
+        KVLRUCache cache = new KVLRUCache(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("c"));
+        cache.put("c", "3");
+        cache.recordLoad(2000000);
+
+        KVCacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(0.5, stats.getHitRate());
+        assertEquals(1, stats.getEvictions());
+        assertEquals(1, stats.getLoads());
+        assertEquals(2.0, stats.getAverageLoadMillis());
+        assertEquals(cache.getUsedBytes(), stats.getUsedBytes());
+        assertEquals(2, stats.getCacheSize());
+    }
+
+    @Test
+    public void testSegmentsAddUp() {
+        KVConcurrentLRUCache cache = new KVConcurrentLRUCache(256);
+        assertTrue(cache.getSegmentCount() > 1);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 200; i++) {
+            cache.get("key" + i);
+        }
+        KVCacheStats stats = cache.getStats();
+        assertEquals(100, stats.getHits());
+        assertEquals(100, stats.getMisses());
+        assertEquals(cache.getUsedBytes(), stats.getUsedBytes());
+        assertEquals(256, stats.getCacheSize());
+    }
+
+    @Test
+    public void testServerCountsLoads() throws Exception {
+        KVServer server = new KVServer(0, 10, "LRU", "cacheStatsTest");
+        server.clearStorage();
+        server.putKV("key", "value");
+        server.clearCache();
+        assertEquals("value", server.getKV("key"));
+        assertEquals("value", server.getKV("key"));
+
+        KVCacheStats stats = server.getCacheStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getLoads());
+        server.clearStorage();
+        server.close();
+    }
+}
@@ -0,0 +1,84 @@
+package testing;
+
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ConcurrencyTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int SHARED_KEYS = 50;
+
+    private void runAll(List<Thread> threads, ConcurrentLinkedQueue<Throwable> failures) throws Exception {
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failures.add(e));
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+    }
+
+    @Test
+    public void testConcurrentGetsAndPuts() throws Exception {
+        // small cache so evictions and refills from the store race with puts
+        KVServer server = new KVServer(0, 20, "LRU", "concurrencyTest");
+        server.clearStorage();
+        for (int k = 0; k < SHARED_KEYS; k++) {
+            server.putKV("shared" + k, "0");
+        }
+
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int id = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(id);
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        // keys of this thread only, read back what was just written
+                        String own = "t" + id + "_" + (i % 10);
+                        server.putKV(own, "v" + i);
+                        assertEquals("v" + i, server.getKV(own));
+
+                        // shared keys only ever grow, a get never sees a missing key
+                        String shared = "shared" + random.nextInt(SHARED_KEYS);
+                        if (id % 2 == 0) {
+                            server.putKV(shared, String.valueOf(i));
+                        } else {
+                            assertNotNull(server.getKV(shared));
+                        }
+                    }
+                    for (int i = 0; i < 10; i += 2) {
+                        server.putKV("t" + id + "_" + i, "null");
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        runAll(threads, failures);
+
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < 10; i++) {
+                String key = "t" + t + "_" + i;
+                String expected = i % 2 == 0 ? null : "v" + (190 + i);
+                assertEquals(expected, server.getKV(key));
+                assertEquals(expected, server.getStore().get(key));
+            }
+        }
+        // the cache never holds a value older than the store
+        for (int k = 0; k < SHARED_KEYS; k++) {
+            assertEquals(server.getStore().get("shared" + k), server.getKV("shared" + k));
+        }
+        server.clearStorage();
+        server.close();
+    }
+}
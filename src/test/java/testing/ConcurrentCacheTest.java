@@ -0,0 +1,161 @@
+package testing;
+
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.cache.AbstractKVCache;
+import server.cache.KVConcurrentCache;
+import server.cache.KVConcurrentFIFOCache;
+import server.cache.KVConcurrentLFUCache;
+import server.cache.KVConcurrentLRUCache;
+import server.cache.KVSegmentedCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ConcurrentCacheTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int CACHE_SIZE = 500;
+    private static final int KEY_SPACE = 2000;
+
+    /**
+     * Hammer the cache from several threads, every hit must return the value of its key
+     */
+    private void stress(KVConcurrentCache cache) throws Exception {
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long seed = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 20000; i++) {
+                    int k = random.nextInt(KEY_SPACE);
+                    int op = random.nextInt(10);
+                    if (op == 0) {
+                        cache.put("key" + k, "null");
+                    } else if (op < 4) {
+                        cache.put("key" + k, "value" + k);
+                    } else {
+                        String value = cache.get("key" + k);
+                        assertTrue(value == null || value.equals("value" + k));
+                    }
+                }
+            });
+            thread.setUncaughtExceptionHandler((th, e) -> failures.add(e));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+    }
+
+    /**
+     * @return number of cached keys, checking that the byte count matches them
+     */
+    private int checkContent(KVConcurrentCache cache) {
+        int count = 0;
+        long bytes = 0;
+        for (int k = 0; k < KEY_SPACE; k++) {
+            if (cache.containsKey("key" + k)) {
+                count++;
+                bytes += AbstractKVCache.weigh("key" + k, "value" + k);
+            }
+        }
+        assertEquals(bytes, cache.getUsedBytes());
+        return count;
+    }
+
+    private void checkCache(KVConcurrentCache cache) throws Exception {
+        stress(cache);
+        int count = checkContent(cache);
+        assertTrue(count > 0);
+        assertTrue(count <= CACHE_SIZE);
+
+        long budget = 100 * AbstractKVCache.weigh("key1000", "value1000");
+        cache.setMaxBytes(budget);
+        assertTrue(cache.getUsedBytes() <= budget);
+        stress(cache);
+        checkContent(cache);
+        assertTrue(cache.getUsedBytes() <= budget);
+
+        cache.clear();
+        assertEquals(0, checkContent(cache));
+    }
+
+    @Test
+    public void testConcurrentLRU() throws Exception {
+        KVConcurrentLRUCache cache = new KVConcurrentLRUCache(CACHE_SIZE);
+        assertEquals(KVSegmentedCache.MAX_SEGMENTS, cache.getSegmentCount());
+        checkCache(cache);
+        // too small to split
+        assertEquals(1, new KVConcurrentLRUCache(10).getSegmentCount());
+    }
+
+    @Test
+    public void testConcurrentLFU() throws Exception {
+        checkCache(new KVConcurrentLFUCache(CACHE_SIZE));
+    }
+
+    @Test
+    public void testConcurrentFIFO() throws Exception {
+        KVConcurrentFIFOCache cache = new KVConcurrentFIFOCache(CACHE_SIZE);
+        // single threaded it is an exact FIFO
+        for (int i = 0; i < CACHE_SIZE + 1; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.put("key1", "changed");
+        assertFalse(cache.containsKey("key0"));
+        assertEquals("changed", cache.get("key1"));
+        cache.put("key1", "value1");
+        assertEquals(CACHE_SIZE, cache.size());
+        checkCache(cache);
+
+        cache.setCacheSize(10);
+        assertEquals(0, cache.size());
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testFIFOReinsert() {
+        KVConcurrentFIFOCache cache = new KVConcurrentFIFOCache(3);
+        cache.put("a", "1");
+        cache.put("a", "null");
+        cache.put("a", "2");
+        cache.put("b", "3");
+        // wraps to the slot of the deleted entry of a, which must not evict the new one
+        cache.put("c", "4");
+        assertEquals("2", cache.get("a"));
+        assertEquals(3, cache.size());
+        assertEquals(0, cache.getStats().getEvictions());
+        cache.put("d", "5");
+        assertFalse(cache.containsKey("a"));
+        assertEquals(3, cache.size());
+        assertEquals(AbstractKVCache.weigh("b", "3") + AbstractKVCache.weigh("c", "4")
+                + AbstractKVCache.weigh("d", "5"), cache.getUsedBytes());
+    }
+
+    @Test
+    public void testServerWithConcurrentCache() throws Exception {
+        KVServer server = new KVServer(0, 20, "ConcurrentFIFO", "concurrentCacheTest");
+        server.clearStorage();
+        server.putKV("a", "1");
+        assertTrue(server.inCache("a"));
+        server.clearCache();
+        assertFalse(server.inCache("a"));
+        assertEquals("1", server.getKV("a"));
+        assertTrue(server.inCache("a"));
+        server.putKV("a", "null");
+        assertFalse(server.inCache("a"));
+        server.clearStorage();
+        server.close();
+    }
+}
@@ -0,0 +1,309 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import server.KVIterateStore;
+import server.KVLogStore;
+import server.KVPersistentStore;
+import server.KVPersistentStore.PutResult;
+import server.KVSegmentedStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class IndexedStoreTest extends TestCase {
+    private static final String STORE_NAME = "indexedStoreTest";
+    private KVIterateStore store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        store = new KVIterateStore(STORE_NAME, true);
+    }
+
+    @Test
+    public void test01PutGet() throws Exception {
+        store.clearStorage();
+        assertTrue(store.isIndexed());
+
+        for (int i = 0; i < 50; i++) {
+            store.put("k" + i, "v" + i);
+        }
+        // long keys are sql rows and live outside of the index
+        store.appendEntry(new KVIterateStore.KVEntry(ECSNode.calcHash("table"), "{\"a\":1}"));
+        store.put("multi", "line\r\nvalue-with-dash");
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals("v" + i, store.get("k" + i));
+        }
+        assertEquals("line\r\nvalue-with-dash", store.get("multi"));
+        assertNull(store.get("missing"));
+        assertFalse(store.inStorage("missing"));
+    }
+
+    @Test
+    public void test02UpdateDelete() throws Exception {
+        // growing and shrinking entries shift the tail of the file
+        for (int i = 0; i < 50; i += 3) {
+            store.put("k" + i, "a much longer value than before " + i);
+        }
+        for (int i = 1; i < 50; i += 3) {
+            store.put("k" + i, "null");
+        }
+        store.put("k2", "s");
+
+        for (int i = 0; i < 50; i++) {
+            String value = store.get("k" + i);
+            if (i == 2) {
+                assertEquals("s", value);
+            } else if (i % 3 == 0) {
+                assertEquals("a much longer value than before " + i, value);
+            } else if (i % 3 == 1) {
+                assertNull(value);
+            } else {
+                assertEquals("v" + i, value);
+            }
+        }
+        assertEquals(1, store.select((k, v) -> k.equals(ECSNode.calcHash("table"))).size());
+    }
+
+    @Test
+    public void test03Reopen() throws Exception {
+        // a fresh instance rebuilds the same index from the file
+        KVIterateStore plain = new KVIterateStore(STORE_NAME);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(plain.get("k" + i), store.get("k" + i));
+        }
+        assertEquals("line\r\nvalue-with-dash", store.get("multi"));
+    }
+
+    @Test
+    public void test04DeleteData() throws Exception {
+        String[] hashRange = new String[]{
+                "358343938402ebb5110716c6e836f5a2",
+                "a98109598267087dfc364fae4cf24578"
+        };
+        store.deleteData(hashRange);
+        for (int i = 0; i < 50; i++) {
+            String key = "k" + i;
+            if (ECSNode.isKeyInRange(key, hashRange)) {
+                assertNull(store.get(key));
+            } else if (i % 3 != 1) {
+                assertNotNull(store.get(key));
+            }
+        }
+        store.clearStorage();
+    }
+
+    private void checkUpsert(KVPersistentStore target) throws Exception {
+        target.clearStorage();
+        assertEquals(PutResult.INSERTED, target.upsert("key", "first"));
+        assertEquals(PutResult.UPDATED, target.upsert("key", "second"));
+        assertEquals("second", target.get("key"));
+        assertEquals(PutResult.DELETED, target.upsert("key", "null"));
+        assertEquals(PutResult.NOT_FOUND, target.upsert("key", "null"));
+        assertNull(target.get("key"));
+        try {
+            target.put("key", "null");
+            fail("Deleting an absent key with put should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        target.clearStorage();
+    }
+
+    @Test
+    public void test05Upsert() throws Exception {
+        checkUpsert(store);
+        checkUpsert(new KVIterateStore(STORE_NAME + "Scan"));
+        checkUpsert(new KVSegmentedStore(STORE_NAME + "Segmented", "./res", 2));
+        KVLogStore logStore = new KVLogStore(STORE_NAME + "Log");
+        checkUpsert(logStore);
+        logStore.close();
+    }
+
+    @Test
+    public void test06Cursor() throws Exception {
+        store.clearStorage();
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "value" + i);
+        }
+
+        // stops early, the rest of the file is never read
+        try (KVIterateStore.KVCursor cursor = store.cursor((k, v) -> v.endsWith("5"))) {
+            assertEquals("key5", cursor.next().getKey());
+            assertEquals("key15", cursor.next().getKey());
+        }
+
+        // keys and offsets only
+        try (KVIterateStore.KVCursor cursor = store.keyCursor(k -> k.startsWith("key9"))) {
+            int count = 0;
+            while (cursor.hasNext()) {
+                KVIterateStore.KVEntry entry = cursor.next();
+                assertNull(entry.getValue());
+                assertTrue(entry.getEndOffset() > entry.getStartOffset());
+                count++;
+            }
+            assertEquals(11, count);
+        }
+
+        try (Stream<KVIterateStore.KVEntry> stream = store.cursor((k, v) -> true).stream()) {
+            assertEquals(100, stream.count());
+        }
+
+        // writes of other threads wait until the cursor is closed
+        KVIterateStore.KVCursor cursor = store.cursor((k, v) -> true);
+        Thread writer = new Thread(() -> {
+            try {
+                store.put("key0", "changed");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        assertEquals("value0", cursor.next().getValue());
+        try {
+            store.put("key1", "same thread");
+            fail("Write while owning an open cursor must fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        cursor.close();
+        writer.join();
+        assertEquals("changed", store.get("key0"));
+        store.clearStorage();
+    }
+
+    @Test
+    public void test07UpdateWhere() throws Exception {
+        store.clearStorage();
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        // delete odd keys and lengthen the values of even ones in a single pass
+        int changed = store.updateWhere((k, v) -> Integer.parseInt(k.substring(3)) % 2 == 1 || k.endsWith("0"),
+                (k, v) -> Integer.parseInt(k.substring(3)) % 2 == 1 ? null : v + " updated");
+        assertEquals(60, changed);
+        assertEquals(0, store.updateWhere((k, v) -> false, (k, v) -> null));
+
+        // the index follows the new offsets
+        for (int i = 0; i < 100; i++) {
+            String expected = i % 2 == 1 ? null : (i % 10 == 0 ? "value" + i + " updated" : "value" + i);
+            assertEquals(expected, store.get("key" + i));
+        }
+        store.put("key1", "back");
+        assertEquals("back", store.get("key1"));
+        assertEquals(51, store.select((k, v) -> true).size());
+        store.clearStorage();
+    }
+
+    @Test
+    public void test08MoveRecovery() throws Exception {
+        String[] hashRange = new String[]{
+                "358343938402ebb5110716c6e836f5a2",
+                "a98109598267087dfc364fae4cf24578"
+        };
+        File manifest = new File(store.getfileName() + KVIterateStore.MANIFEST_SUFFIX);
+        File moveFile = new File(store.getfileName() + KVIterateStore.MOVE_SUFFIX);
+        File remainFile = new File(store.getfileName() + KVIterateStore.REMAIN_SUFFIX);
+        store.clearStorage();
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "value" + i);
+        }
+
+        // crash during the transfer: the storage file still holds every key
+        store.preMoveData(hashRange);
+        assertTrue(manifest.exists());
+        store = new KVIterateStore(STORE_NAME, true);
+        assertFalse(manifest.exists() || moveFile.exists() || remainFile.exists());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, store.get("key" + i));
+        }
+
+        // crash after the remain file replaced the storage file
+        store.preMoveData(hashRange);
+        Files.move(remainFile.toPath(), new File(store.getfileName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        store = new KVIterateStore(STORE_NAME, true);
+        assertFalse(manifest.exists() || moveFile.exists());
+        for (int i = 0; i < 100; i++) {
+            String key = "key" + i;
+            assertEquals(ECSNode.isKeyInRange(key, hashRange) ? null : "value" + i, store.get(key));
+        }
+        store.clearStorage();
+    }
+
+    @Test
+    public void test10ConcurrentReads() throws Exception {
+        store.clearStorage();
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + i, "old" + i);
+        }
+        // readers share the lock, the writer shifts offsets under them
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int round = 0; round < 5; round++) {
+                        for (int i = 0; i < 200; i++) {
+                            String value = store.get("key" + i);
+                            assertTrue(("old" + i).equals(value) || ("new value " + i).equals(value));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + i, "new value " + i);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals("new value 7", store.get("key7"));
+        store.clearStorage();
+    }
+
+    @Test
+    public void test09MoveRollForward() throws Exception {
+        String[] hashRange = new String[]{
+                "358343938402ebb5110716c6e836f5a2",
+                "a98109598267087dfc364fae4cf24578"
+        };
+        File manifest = new File(store.getfileName() + KVIterateStore.MANIFEST_SUFFIX);
+        File remainFile = new File(store.getfileName() + KVIterateStore.REMAIN_SUFFIX);
+        store.clearStorage();
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "value" + i);
+        }
+
+        // crash after the data was sent, before the remain file replaced the storage file
+        store.preMoveData(hashRange);
+        Files.write(manifest.toPath(), (KVIterateStore.MOVE_COMMITTED + " "
+                + hashRange[0] + " " + hashRange[1] + "\n").getBytes(StandardCharsets.UTF_8));
+        store = new KVIterateStore(STORE_NAME, true);
+        assertFalse(manifest.exists() || remainFile.exists());
+        for (int i = 0; i < 100; i++) {
+            String key = "key" + i;
+            assertEquals(ECSNode.isKeyInRange(key, hashRange) ? null : "value" + i, store.get(key));
+        }
+        store.clearStorage();
+    }
+}
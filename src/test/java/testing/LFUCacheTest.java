@@ -55,5 +55,41 @@ public class LFUCacheTest extends TestCase{
 		}
 		
 	}
-		
+
+	/**
+	 * Equal frequencies evict the least recently used key, aging lets once hot keys go
+	 */
+	@Test
+	public void testAging() {
+		KVLFUCache cache = new KVLFUCache(3, 8L);
+		cache.put("hot", "v");
+		for (int i = 0; i < 5; i++) {
+			cache.get("hot");
+		}
+		assertEquals(6, cache.getFrequency("hot"));
+		cache.put("a", "v");
+		cache.put("b", "v");
+		// the 8th access halves all frequencies
+		assertEquals(3, cache.getFrequency("hot"));
+		assertEquals(1, cache.getFrequency("a"));
+
+		cache.put("c", "v");
+		assertFalse(cache.containsKey("a"));
+		assertTrue(cache.containsKey("b"));
+		for (int i = 0; i < 4; i++) {
+			cache.get("b");
+			cache.get("c");
+		}
+		// hot is not used any more and ages below the others
+		assertEquals(1, cache.getFrequency("hot"));
+		cache.put("d", "v");
+		assertFalse(cache.containsKey("hot"));
+		assertTrue(cache.containsKey("b"));
+		assertTrue(cache.containsKey("c"));
+
+		cache.clear();
+		assertEquals(0, cache.getFrequency("b"));
+		cache.put("e", "v");
+		assertEquals(1, cache.getFrequency("e"));
+	}
 }
@@ -2,6 +2,7 @@ package testing;
 import junit.framework.TestCase;
 import org.apache.zookeeper.ZooKeeper;
 import org.junit.Test;
+import server.cache.AbstractKVCache;
 import server.cache.KVLRUCache;
 
 public class LRUCacheTest extends TestCase{
@@ -36,4 +37,39 @@ public class LRUCacheTest extends TestCase{
         assertNotNull(cache.get("key0"));
         assertNull(cache.get("key1"));
     }
+
+    /**
+     * With a byte budget the number of entries depends on their size
+     */
+    @Test
+    public void testByteBudget() {
+        String large = new String(new char[1000]).replace('\0', 'x');
+        long budget = 10 * AbstractKVCache.weigh("key0", large);
+        cache.setMaxBytes(budget);
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            cache.put("key" + i, large);
+        }
+        assertTrue(cache.getUsedBytes() <= budget);
+        assertNull(cache.get("key0"));
+        assertNotNull(cache.get("key" + (CACHE_SIZE - 1)));
+
+        // small entries beyond the entry count fit in the same budget
+        cache.clear();
+        assertEquals(0, cache.getUsedBytes());
+        long used = 0;
+        for (int i = 0; i < CACHE_SIZE + 10; i++) {
+            cache.put("key" + i, "v");
+            used += AbstractKVCache.weigh("key" + i, "v");
+        }
+        assertNotNull(cache.get("key0"));
+        assertEquals(used, cache.getUsedBytes());
+
+        // an entry larger than the budget is not kept
+        cache.put("huge", new String(new char[(int) budget]));
+        assertFalse(cache.containsKey("huge"));
+        assertTrue(cache.getUsedBytes() <= budget);
+
+        cache.put("key1", "null");
+        assertFalse(cache.containsKey("key1"));
+    }
 }
@@ -0,0 +1,197 @@
+package testing;
+
+import app_kvServer.KVServer;
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import server.KVIterateStore;
+import server.KVLogStore;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class LogStoreTest extends TestCase {
+    private static final String DIR = "./res";
+    private static final String STORE_NAME = "logStoreTest";
+    private static final long SEGMENT_SIZE = 4 * 1024;
+    /**
+     * Garbage ratio never reached
+     */
+    private static final double NO_COMPACTION = 2.0;
+
+    private KVLogStore open(String name) {
+        return new KVLogStore(name, DIR, SEGMENT_SIZE, 0.5);
+    }
+
+    @Test
+    public void test01PutGetDelete() throws Exception {
+        KVLogStore store = open(STORE_NAME);
+        store.clearStorage();
+
+        store.put("hello", "world");
+        store.put("multi", "line\r\nvalue");
+        assertEquals("world", store.get("hello"));
+        assertEquals("line\r\nvalue", store.get("multi"));
+
+        store.put("hello", "again");
+        assertEquals("again", store.get("hello"));
+
+        store.put("hello", "null");
+        assertNull(store.get("hello"));
+        assertFalse(store.inStorage("hello"));
+
+        Exception ex = null;
+        try {
+            store.put("hello", "null");
+        } catch (Exception e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+        store.close();
+    }
+
+    @Test
+    public void test02Recovery() throws Exception {
+        KVLogStore store = open(STORE_NAME);
+        assertNull(store.get("hello"));
+        assertEquals("line\r\nvalue", store.get("multi"));
+
+        for (int i = 0; i < 200; i++) {
+            store.put("k" + i, "value " + i);
+        }
+        assertTrue(store.getSegmentCount() > 1);
+        store.close();
+
+        // simulate a torn write at the end of the last segment
+        int lastId = 0;
+        String prefix = STORE_NAME + "_";
+        for (String name : new File(DIR).list()) {
+            if (name.startsWith(prefix) && name.endsWith(KVLogStore.SEGMENT_SUFFIX)) {
+                lastId = Math.max(lastId, Integer.parseInt(
+                        name.substring(prefix.length(), name.length() - KVLogStore.SEGMENT_SUFFIX.length())));
+            }
+        }
+        File last = new File(DIR + "/" + prefix + lastId + KVLogStore.SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[]{0, 0, 0, 1, 0, 0});
+        raf.close();
+
+        store = open(STORE_NAME);
+        for (int i = 0; i < 200; i++) {
+            assertEquals("value " + i, store.get("k" + i));
+        }
+        store.close();
+    }
+
+    @Test
+    public void test03Compaction() throws Exception {
+        KVLogStore store = open(STORE_NAME);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 200; i++) {
+                store.put("k" + i, "round " + round + " value " + i);
+            }
+        }
+        for (int i = 0; i < 200; i += 2) {
+            store.put("k" + i, "null");
+        }
+        long before = store.getStorageSize();
+        store.compact();
+        assertTrue(store.getStorageSize() < before);
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 2 == 0 ? null : "round 4 value " + i, store.get("k" + i));
+        }
+        store.close();
+
+        // compacted state survives a restart
+        store = open(STORE_NAME);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 2 == 0 ? null : "round 4 value " + i, store.get("k" + i));
+        }
+        store.close();
+    }
+
+    @Test
+    public void test04MoveData() throws Exception {
+        String[] hashRange = new String[]{
+                "358343938402ebb5110716c6e836f5a2",
+                "a98109598267087dfc364fae4cf24578"
+        };
+        KVLogStore sender = open(STORE_NAME);
+        KVLogStore receiver = open(STORE_NAME + "Receiver");
+        receiver.clearStorage();
+
+        sender.preMoveData(hashRange);
+        File moveFile = new File(sender.getfileName() + KVIterateStore.MOVE_SUFFIX);
+        File received = new File(receiver.getfileName() + "~");
+        assertTrue(moveFile.renameTo(received));
+        receiver.mergeData(received);
+        sender.afterMoveData(true);
+
+        for (int i = 1; i < 200; i += 2) {
+            String key = "k" + i;
+            if (ECSNode.isKeyInRange(key, hashRange)) {
+                assertNull(sender.get(key));
+                assertEquals("round 4 value " + i, receiver.get(key));
+            } else {
+                assertEquals("round 4 value " + i, sender.get(key));
+                assertNull(receiver.get(key));
+            }
+        }
+        sender.clearStorage();
+        receiver.clearStorage();
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void test05ParallelLoad() throws Exception {
+        // no compaction, which would merge the segments at unpredictable times
+        KVLogStore store = new KVLogStore(STORE_NAME, DIR, SEGMENT_SIZE, NO_COMPACTION);
+        store.clearStorage();
+        // later segments overwrite and delete keys of earlier ones
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.put("k" + i, "round " + round);
+            }
+            store.put("k" + round, "null");
+        }
+        store.close();
+
+        List<Integer> progress = new ArrayList<>();
+        KVLogStore reopened = new KVLogStore(STORE_NAME, DIR, SEGMENT_SIZE, NO_COMPACTION, progress::add);
+        assertTrue(reopened.getSegmentCount() > 2);
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) >= progress.get(i - 1));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i == 4 ? null : "round 4", reopened.get("k" + i));
+        }
+        reopened.clearStorage();
+        reopened.close();
+    }
+
+    @Test
+    public void test06ServerClosesStore() throws Exception {
+        KVServer server = new KVServer(0, 10, "LRU", STORE_NAME + "Server", "Log");
+        server.clearStorage();
+        server.putKV("key", "value");
+        server.close();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().equals("KVLogStore-compactor-" + STORE_NAME + "Server")
+                    && thread.isAlive());
+        }
+
+        server = new KVServer(0, 10, "LRU", STORE_NAME + "Server", "Log");
+        assertEquals("value", server.getKV("key"));
+        server.clearStorage();
+        server.close();
+    }
+}
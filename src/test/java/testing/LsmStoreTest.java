@@ -0,0 +1,171 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import server.KVIterateStore;
+import server.KVLsmStore;
+import server.KVPersistentStore.PutResult;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class LsmStoreTest extends TestCase {
+    private static final String DIR = "./res";
+    private static final String STORE_NAME = "lsmStoreTest";
+    private static final String PADDING = new String(new char[60]).replace('\0', '-');
+
+    private KVLsmStore open(String name) {
+        // tiny memtable and tables to exercise flushes and compactions of several levels
+        return new KVLsmStore(name, DIR, 2 * 1024, 4 * 1024);
+    }
+
+    private static List<String> keys(Iterator<KVIterateStore.KVEntry> it, Map<String, String> expected) {
+        List<String> keys = new ArrayList<>();
+        while (it.hasNext()) {
+            KVIterateStore.KVEntry entry = it.next();
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    private void checkContent(KVLsmStore store, TreeMap<String, String> model) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            String key = String.format("key%04d", i);
+            assertEquals(model.get(key), store.get(key));
+        }
+        assertEquals(new ArrayList<>(model.keySet()), keys(store.scan(null, null), model));
+    }
+
+    @Test
+    public void test01RandomOperations() throws Exception {
+        KVLsmStore store = open(STORE_NAME);
+        store.clearStorage();
+        TreeMap<String, String> model = new TreeMap<>();
+        Random random = new Random(419);
+        for (int i = 0; i < 5000; i++) {
+            String key = String.format("key%04d", random.nextInt(500));
+            if (random.nextInt(4) == 0) {
+                PutResult result = store.upsert(key, "null");
+                assertEquals(model.containsKey(key) ? PutResult.DELETED : PutResult.NOT_FOUND, result);
+                model.remove(key);
+            } else {
+                String value = "value " + i + PADDING;
+                PutResult result = store.upsert(key, value);
+                assertEquals(model.containsKey(key) ? PutResult.UPDATED : PutResult.INSERTED, result);
+                model.put(key, value);
+            }
+        }
+        assertTrue(store.getLevelCount() > 2);
+        assertTrue(store.getTableCount(0) < KVLsmStore.L0_COMPACTION_TRIGGER);
+        checkContent(store, model);
+
+        // range and prefix scans see the memtable and every level
+        assertEquals(new ArrayList<>(model.subMap("key0100", "key0200").keySet()),
+                keys(store.scan("key0100", "key0200"), model));
+        assertEquals(new ArrayList<>(model.tailMap("key0450").keySet()),
+                keys(store.scan("key0450", null), model));
+        assertEquals(new ArrayList<>(model.subMap("key03", "key04").keySet()),
+                keys(store.scanPrefix("key03"), model));
+        assertFalse(store.scan("zzz", null).hasNext());
+
+        // reopening keeps everything flushed by close
+        store.close();
+        KVLsmStore reopened = open(STORE_NAME);
+        checkContent(reopened, model);
+    }
+
+    @Test
+    public void test02ScanSnapshot() throws Exception {
+        KVLsmStore store = open(STORE_NAME);
+        store.clearStorage();
+        for (int i = 0; i < 300; i++) {
+            store.put(String.format("key%04d", i), "v" + i);
+        }
+        Iterator<KVIterateStore.KVEntry> it = store.scan(null, null);
+        // writes and compactions after the scan started are not visible to it
+        for (int i = 0; i < 300; i++) {
+            store.put(String.format("key%04d", i), "changed value " + i);
+        }
+        int count = 0;
+        while (it.hasNext()) {
+            KVIterateStore.KVEntry entry = it.next();
+            assertEquals("v" + Integer.parseInt(entry.getKey().substring(3)), entry.getValue());
+            count++;
+        }
+        assertEquals(300, count);
+        store.clearStorage();
+    }
+
+    @Test
+    public void test03StrayTables() throws Exception {
+        KVLsmStore store = open(STORE_NAME);
+        store.clearStorage();
+        store.put("a", "b");
+        store.sync();
+        // left over by a compaction interrupted before the manifest was replaced
+        File stray = new File(DIR + "/" + STORE_NAME + "_99999.sst");
+        assertTrue(stray.createNewFile());
+
+        KVLsmStore reopened = open(STORE_NAME);
+        assertFalse(stray.exists());
+        assertEquals("b", reopened.get("a"));
+        reopened.clearStorage();
+    }
+
+    @Test
+    public void test04MoveData() throws Exception {
+        String[] hashRange = new String[]{
+                "358343938402ebb5110716c6e836f5a2",
+                "a98109598267087dfc364fae4cf24578"
+        };
+        KVLsmStore sender = open(STORE_NAME);
+        KVLsmStore receiver = open(STORE_NAME + "Receiver");
+        sender.clearStorage();
+        receiver.clearStorage();
+        for (int i = 0; i < 400; i++) {
+            sender.put("k" + i, "v" + i);
+        }
+
+        sender.preMoveData(hashRange);
+        File received = new File(receiver.getfileName() + "~");
+        assertTrue(new File(sender.getfileName() + KVIterateStore.MOVE_SUFFIX).renameTo(received));
+        receiver.mergeData(received);
+        sender.afterMoveData(true);
+
+        for (int i = 0; i < 400; i++) {
+            String key = "k" + i;
+            boolean moved = ECSNode.isKeyInRange(key, hashRange);
+            assertEquals(moved ? null : "v" + i, sender.get(key));
+            assertEquals(moved ? "v" + i : null, receiver.get(key));
+        }
+        receiver.deleteData(hashRange);
+        assertFalse(receiver.scan(null, null).hasNext());
+        sender.clearStorage();
+        receiver.clearStorage();
+    }
+
+    @Test
+    public void test05DeleteReinsert() throws Exception {
+        KVLsmStore store = open(STORE_NAME);
+        store.clearStorage();
+        // the memtable holds a single key all along, it must never fill up
+        for (int i = 0; i < 200; i++) {
+            store.put("key", "value" + i);
+            store.put("key", "null");
+        }
+        store.put("key", "value");
+        assertEquals(0, store.getTableCount());
+        assertEquals("value", store.get("key"));
+        store.clearStorage();
+    }
+}
@@ -0,0 +1,68 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.KVBinaryFormat;
+import server.KVIterateStore;
+import server.KVRecordFormat;
+import server.KVTextFormat;
+
+public class MappedStoreTest extends TestCase {
+    private static final String[] HASH_RANGE = new String[]{
+            "358343938402ebb5110716c6e836f5a2",
+            "a98109598267087dfc364fae4cf24578"
+    };
+
+    private void checkStore(KVRecordFormat format, boolean indexed) throws Exception {
+        KVIterateStore store = new KVIterateStore("mappedStoreTest", indexed, format);
+        store.clearStorage();
+        store.setMemoryMapped(true);
+        assertTrue(store.isMemoryMapped());
+
+        for (int i = 0; i < 100; i++) {
+            store.put("k" + i, "v" + i);
+        }
+        // grow, shrink and delete entries so the file is remapped in both directions
+        for (int i = 0; i < 100; i += 3) {
+            store.put("k" + i, "a longer value " + i);
+        }
+        for (int i = 1; i < 100; i += 3) {
+            store.put("k" + i, "null");
+        }
+        for (int i = 0; i < 100; i++) {
+            String expected = i % 3 == 0 ? "a longer value " + i : (i % 3 == 1 ? null : "v" + i);
+            assertEquals(expected, store.get("k" + i));
+        }
+        assertEquals(67, store.select((k, v) -> true).size());
+
+        store.preMoveData(HASH_RANGE);
+        store.afterMoveData(true);
+        for (int i = 0; i < 100; i++) {
+            String key = "k" + i;
+            if (ECSNode.isKeyInRange(key, HASH_RANGE) || i % 3 == 1) {
+                assertNull(store.get(key));
+            } else {
+                assertNotNull(store.get(key));
+            }
+        }
+
+        store.clearStorage();
+        assertNull(store.get("k0"));
+        store.put("k0", "after clear");
+        assertEquals("after clear", store.get("k0"));
+        store.clearStorage();
+    }
+
+    @Test
+    public void testTextFormat() throws Exception {
+        checkStore(KVTextFormat.INSTANCE, false);
+        checkStore(KVTextFormat.INSTANCE, true);
+    }
+
+    @Test
+    public void testBinaryFormat() throws Exception {
+        checkStore(KVBinaryFormat.INSTANCE, false);
+        checkStore(KVBinaryFormat.INSTANCE, true);
+    }
+}
@@ -0,0 +1,80 @@
+package testing;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.cache.KVOffHeapCache;
+
+public class OffHeapCacheTest extends TestCase {
+    private static final String PADDING = new String(new char[1000]).replace('\0', '-');
+
+    @Test
+    public void testPutGetRemove() {
+        KVOffHeapCache cache = new KVOffHeapCache(1024);
+        cache.put("ascii", "value");
+        cache.put("utf8", "\u00e4\u00f6\u00fc \u4e2d\u6587");
+        cache.put("empty", "");
+        assertEquals("value", cache.get("ascii"));
+        assertEquals("\u00e4\u00f6\u00fc \u4e2d\u6587", cache.get("utf8"));
+        assertEquals("", cache.get("empty"));
+
+        // a longer value moves to a larger chunk
+        cache.put("ascii", "value" + PADDING);
+        assertEquals("value" + PADDING, cache.get("ascii"));
+        cache.put("ascii", "null");
+        assertFalse(cache.containsKey("ascii"));
+        assertNull(cache.get("ascii"));
+
+        // values larger than a slab are not cached
+        cache.put("huge", new String(new char[KVOffHeapCache.SLAB_SIZE + 1]).replace('\0', 'x'));
+        assertFalse(cache.containsKey("huge"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testEvictionWithinBudget() {
+        // a single slab
+        KVOffHeapCache cache = new KVOffHeapCache(KVOffHeapCache.SLAB_SIZE / 1024);
+        for (int i = 0; i < 5000; i++) {
+            cache.put("key" + i, "value" + i + PADDING);
+            if (i == 100) {
+                // touched entries survive the eviction of older ones
+                assertNotNull(cache.get("key0"));
+            }
+            if (i > 100 && i % 100 == 0) {
+                assertNotNull(cache.get("key0"));
+            }
+        }
+        assertEquals(KVOffHeapCache.SLAB_SIZE, cache.getAllocatedBytes());
+        assertTrue(cache.size() < 5000);
+        assertEquals("value0" + PADDING, cache.get("key0"));
+        assertNull(cache.get("key1"));
+        assertEquals("value4999" + PADDING, cache.get("key4999"));
+    }
+
+    @Test
+    public void testSlabTakeOver() {
+        KVOffHeapCache cache = new KVOffHeapCache(2 * KVOffHeapCache.SLAB_SIZE / 1024);
+        // small values take both slabs
+        for (int i = 0; i < 100000; i++) {
+            cache.put("small" + i, "v" + i);
+        }
+        assertEquals(2L * KVOffHeapCache.SLAB_SIZE, cache.getAllocatedBytes());
+
+        // large values still find room by taking over the slab of the oldest small values
+        String large = new String(new char[100 * 1024]).replace('\0', 'x');
+        cache.put("large", large);
+        assertEquals(large, cache.get("large"));
+        assertNull(cache.get("small0"));
+        // only the small values of the taken over slab are gone
+        assertTrue(cache.size() > 10000);
+        assertEquals(2L * KVOffHeapCache.SLAB_SIZE, cache.getAllocatedBytes());
+
+        cache.setCacheSize(KVOffHeapCache.SLAB_SIZE / 1024);
+        assertEquals(KVOffHeapCache.SLAB_SIZE, cache.getAllocatedBytes());
+        cache.put("large", large);
+        assertEquals(large, cache.get("large"));
+    }
+}
@@ -0,0 +1,137 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import server.*;
+
+import java.io.File;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RecordFormatTest extends TestCase {
+    private static final String TEXT_STORE = "formatTest_iterateDataBase";
+    private static final String BINARY_STORE = "formatTestBinary";
+
+    @Test
+    public void test01BinaryPutGet() throws Exception {
+        KVIterateStore store = new KVIterateStore(BINARY_STORE, true, KVBinaryFormat.INSTANCE);
+        store.clearStorage();
+        assertSame(KVBinaryFormat.INSTANCE, store.getFormat());
+
+        store.put("dash-,key", "value-,with\r\nspecial-d chars");
+        store.put("utf8", "\u00e9t\u00e9 \u4e2d\u6587");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 120 * 1024; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        store.put("large", sb.toString());
+        store.put("utf8", "changed");
+
+        assertEquals("value-,with\r\nspecial-d chars", store.get("dash-,key"));
+        assertEquals("changed", store.get("utf8"));
+        assertEquals(sb.toString(), store.get("large"));
+
+        // the format is detected from the file header when reopened
+        KVIterateStore reopened = new KVIterateStore(BINARY_STORE);
+        assertSame(KVBinaryFormat.INSTANCE, reopened.getFormat());
+        assertEquals(sb.toString(), reopened.get("large"));
+        assertEquals(3, reopened.select((k, v) -> true).size());
+    }
+
+    @Test
+    public void test02Migration() throws Exception {
+        KVIterateStore text = new KVIterateStore(TEXT_STORE);
+        text.clearStorage();
+        assertSame(KVTextFormat.INSTANCE, text.getFormat());
+        for (int i = 0; i < 50; i++) {
+            text.put("k" + i, "line\r\n-" + i);
+        }
+
+        assertTrue(KVStoreMigrator.migrate(new File(text.getfileName())));
+        assertFalse(KVStoreMigrator.migrate(new File(text.getfileName())));
+
+        KVIterateStore migrated = new KVIterateStore(TEXT_STORE, true, KVTextFormat.INSTANCE);
+        assertSame(KVBinaryFormat.INSTANCE, migrated.getFormat());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("line\r\n-" + i, migrated.get("k" + i));
+        }
+        migrated.clearStorage();
+    }
+
+    @Test
+    public void test03MergeAcrossFormats() throws Exception {
+        String[] hashRange = new String[]{
+                "358343938402ebb5110716c6e836f5a2",
+                "a98109598267087dfc364fae4cf24578"
+        };
+        KVIterateStore text = new KVIterateStore(TEXT_STORE, true, KVTextFormat.INSTANCE);
+        text.clearStorage();
+        for (int i = 0; i < 50; i++) {
+            text.put("k" + i, "v" + i);
+        }
+        KVIterateStore binary = new KVIterateStore(BINARY_STORE, true, KVBinaryFormat.INSTANCE);
+        binary.clearStorage();
+
+        text.preMoveData(hashRange);
+        File received = new File(binary.getfileName() + "~");
+        assertTrue(new File(text.getfileName() + KVIterateStore.MOVE_SUFFIX).renameTo(received));
+        binary.mergeData(received);
+        text.afterMoveData(true);
+
+        for (int i = 0; i < 50; i++) {
+            String key = "k" + i;
+            boolean moved = ECSNode.isKeyInRange(key, hashRange);
+            assertEquals(moved ? "v" + i : null, binary.get(key));
+            assertEquals(moved ? null : "v" + i, text.get(key));
+        }
+        text.clearStorage();
+        binary.clearStorage();
+    }
+
+    @Test
+    public void test04Compression() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("Message-ID: <").append(i % 7).append(".JavaMail> To: someone@enron.com\n");
+        }
+        String large = sb.toString();
+
+        KVBinaryFormat format = new KVBinaryFormat(KVBinaryFormat.DEFAULT_COMPRESSION_THRESHOLD);
+        KVIterateStore store = new KVIterateStore(BINARY_STORE, true, format);
+        store.clearStorage();
+        store.put("large", large);
+        store.put("small", "short value");
+        store.put("gone", large);
+        store.put("gone", "null");
+        assertEquals(large, store.get("large"));
+        assertEquals("short value", store.get("small"));
+        assertNull(store.get("gone"));
+        assertTrue(new File(store.getfileName()).length() < large.length() / 10);
+        assertTrue(store.getCompressionRatio() > 10);
+
+        // any binary reader decodes compressed records, raw copies keep them compressed
+        KVIterateStore plain = new KVIterateStore(BINARY_STORE, true, KVBinaryFormat.INSTANCE);
+        assertEquals(large, plain.get("large"));
+        assertEquals(1.0, plain.getCompressionRatio());
+        KVIterateStore receiver = new KVIterateStore(BINARY_STORE + "Receiver", true, KVBinaryFormat.INSTANCE);
+        receiver.clearStorage();
+        String[] everything = new String[]{
+                "00000000000000000000000000000000",
+                "00000000000000000000000000000000"
+        };
+        store.preMoveData(everything);
+        File moveFile = new File(store.getfileName() + KVIterateStore.MOVE_SUFFIX);
+        assertTrue(moveFile.length() < large.length() / 10);
+        File received = new File(receiver.getfileName() + "~");
+        assertTrue(moveFile.renameTo(received));
+        receiver.mergeData(received);
+        store.afterMoveData(true);
+        assertEquals(large, receiver.get("large"));
+        assertEquals("short value", receiver.get("small"));
+        assertNull(store.get("large"));
+        receiver.clearStorage();
+        store.clearStorage();
+    }
+}
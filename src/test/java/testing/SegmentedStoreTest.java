@@ -0,0 +1,178 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.KVBinaryFormat;
+import server.KVIterateStore;
+import server.KVSegmentedStore;
+import server.KVSplitStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class SegmentedStoreTest extends TestCase {
+    private static final String DIR = "./res";
+    // spans several whole buckets and splits the buckets at both ends
+    private static final String[] HASH_RANGE = new String[]{
+            "358343938402ebb5110716c6e836f5a2",
+            "a98109598267087dfc364fae4cf24578"
+    };
+    // wraps around the end of the ring
+    private static final String[] WRAP_RANGE = new String[]{
+            "d0000000000000000000000000000000",
+            "2fffffffffffffffffffffffffffffff"
+    };
+
+    @Test
+    public void testHashRangeCoverage() {
+        ECSNode.HashRange range = new ECSNode.HashRange("10", "20");
+        assertTrue(range.covers(new BigInteger("11", 16), new BigInteger("20", 16)));
+        assertFalse(range.covers(new BigInteger("10", 16), new BigInteger("20", 16)));
+        assertTrue(range.overlaps(new BigInteger("0", 16), new BigInteger("11", 16)));
+        assertFalse(range.overlaps(new BigInteger("0", 16), new BigInteger("10", 16)));
+        assertTrue(range.overlaps(new BigInteger("12", 16), new BigInteger("13", 16)));
+        assertFalse(range.covers(new BigInteger("0", 16), new BigInteger("30", 16)));
+
+        ECSNode.HashRange wrap = new ECSNode.HashRange("20", "10");
+        assertTrue(wrap.covers(new BigInteger("0", 16), new BigInteger("10", 16)));
+        assertFalse(wrap.covers(new BigInteger("0", 16), new BigInteger("30", 16)));
+        assertTrue(wrap.overlaps(new BigInteger("0", 16), new BigInteger("30", 16)));
+        assertFalse(wrap.overlaps(new BigInteger("11", 16), new BigInteger("20", 16)));
+    }
+
+    @Test
+    public void testPutGetAcrossSegments() throws Exception {
+        KVSegmentedStore store = new KVSegmentedStore("segmentedTest", DIR, 3);
+        store.clearStorage();
+        assertEquals(8, store.getSegmentCount());
+
+        for (int i = 0; i < 200; i++) {
+            store.put("k" + i, "v" + i);
+        }
+        store.put("k7", "changed");
+        store.put("k8", "null");
+        assertEquals("changed", store.get("k7"));
+        assertNull(store.get("k8"));
+        assertFalse(store.inStorage("k8"));
+        assertEquals("v100", store.get("k100"));
+
+        // entries are persisted in their own segment files
+        KVSegmentedStore reopened = new KVSegmentedStore("segmentedTest", DIR, 3);
+        for (int i = 9; i < 200; i++) {
+            assertEquals("v" + i, reopened.get("k" + i));
+        }
+        reopened.clearStorage();
+    }
+
+    @Test
+    public void testParallelLoad() throws Exception {
+        KVSegmentedStore store = new KVSegmentedStore("segmentedTest", DIR, 4);
+        store.clearStorage();
+        for (int i = 0; i < 300; i++) {
+            store.put("k" + i, "v" + i);
+        }
+
+        List<Integer> progress = Collections.synchronizedList(new ArrayList<>());
+        KVSegmentedStore reopened = new KVSegmentedStore("segmentedTest", DIR, 4,
+                KVBinaryFormat.INSTANCE, progress::add);
+        assertEquals(16, progress.size());
+        assertEquals(100, (int) progress.get(15));
+        for (int i = 0; i < 300; i++) {
+            assertEquals("v" + i, reopened.get("k" + i));
+        }
+        reopened.clearStorage();
+    }
+
+    private void checkMove(String[] hashRange) throws Exception {
+        KVSegmentedStore source = new KVSegmentedStore("segmentedSource", DIR, 4);
+        KVSegmentedStore target = new KVSegmentedStore("segmentedTarget", DIR, 4);
+        source.clearStorage();
+        target.clearStorage();
+        for (int i = 0; i < 300; i++) {
+            source.put("k" + i, "v" + i);
+        }
+
+        source.preMoveData(hashRange);
+        File received = new File(target.getfileName() + "~");
+        assertTrue(new File(source.getfileName() + KVIterateStore.MOVE_SUFFIX).renameTo(received));
+        target.mergeData(received);
+        assertFalse(received.exists());
+        source.afterMoveData(true);
+
+        for (int i = 0; i < 300; i++) {
+            String key = "k" + i;
+            boolean moved = ECSNode.isKeyInRange(key, hashRange);
+            assertEquals(moved ? "v" + i : null, target.get(key));
+            assertEquals(moved ? null : "v" + i, source.get(key));
+        }
+
+        target.deleteData(hashRange);
+        for (int i = 0; i < 300; i++) {
+            assertNull(target.get("k" + i));
+        }
+        source.clearStorage();
+        target.clearStorage();
+    }
+
+    @Test
+    public void testMoveData() throws Exception {
+        checkMove(HASH_RANGE);
+        checkMove(WRAP_RANGE);
+    }
+
+    private static Set<String> sqlKeys(KVIterateStore store) throws IOException {
+        Set<String> keys = new HashSet<>();
+        try (KVIterateStore.KVCursor cursor = store.cursor((key, val) -> true)) {
+            while (cursor.hasNext()) {
+                keys.add(cursor.next().getKey());
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void testSplitStoreMove() throws Exception {
+        KVSplitStore source = new KVSplitStore(new KVSegmentedStore("splitSource", DIR, 4),
+                new KVIterateStore("splitSourceSql", DIR, true, KVBinaryFormat.INSTANCE));
+        KVSplitStore target = new KVSplitStore(new KVSegmentedStore("splitTarget", DIR, 4),
+                new KVIterateStore("splitTargetSql", DIR, true, KVBinaryFormat.INSTANCE));
+        source.clearStorage();
+        target.clearStorage();
+        for (int i = 0; i < 100; i++) {
+            source.put("k" + i, "v" + i);
+            // SQL rows are keyed by the hash of their table name
+            source.getSqlRows().appendEntry(new KVIterateStore.KVEntry(ECSNode.calcHash("table" + i), "row" + i));
+        }
+
+        source.preMoveData(HASH_RANGE);
+        File received = new File(target.getfileName() + "~");
+        assertTrue(new File(source.getfileName() + KVIterateStore.MOVE_SUFFIX).renameTo(received));
+        target.mergeData(received);
+        assertFalse(received.exists());
+        source.afterMoveData(true);
+
+        Set<String> sourceRows = sqlKeys(source.getSqlRows());
+        Set<String> targetRows = sqlKeys(target.getSqlRows());
+        for (int i = 0; i < 100; i++) {
+            String key = "k" + i;
+            boolean moved = ECSNode.isKeyInRange(key, HASH_RANGE);
+            assertEquals(moved ? "v" + i : null, target.get(key));
+            assertEquals(moved ? null : "v" + i, source.get(key));
+            String row = ECSNode.calcHash("table" + i);
+            boolean rowMoved = ECSNode.isKeyInRange(row, HASH_RANGE);
+            assertEquals(rowMoved, targetRows.contains(row));
+            assertEquals(!rowMoved, sourceRows.contains(row));
+        }
+        // SQL rows stay out of the engine
+        assertNull(target.get(ECSNode.calcHash("table0")));
+        source.clearStorage();
+        target.clearStorage();
+    }
+}
@@ -0,0 +1,157 @@
+package testing;
+
+import app_kvServer.KVServer;
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.KVBinaryFormat;
+import server.KVIterateStore;
+import server.KVLogStore;
+import server.KVLsmStore;
+import server.KVPersistentStore;
+import server.KVSegmentedStore;
+import server.KVSnapshot;
+import server.KVSplitStore;
+import server.KVValueLogStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class SnapshotTest extends TestCase {
+    private static final String DIR = "./res";
+
+    private static Map<String, String> content(KVSnapshot snapshot) throws Exception {
+        Map<String, String> result = new HashMap<>();
+        Iterator<KVIterateStore.KVEntry> it = snapshot.iterator();
+        while (it.hasNext()) {
+            KVIterateStore.KVEntry entry = it.next();
+            assertNull("duplicate key " + entry.getKey(), result.put(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Changes after the snapshot, including compactions and clearing the store,
+     * are not visible in it, and its data file restores the store
+     */
+    private void checkSnapshot(KVPersistentStore store, KVPersistentStore restored) throws Exception {
+        store.clearStorage();
+        restored.clearStorage();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            store.put("key" + i, "value" + i);
+            expected.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            store.put("key" + i, "null");
+            expected.remove("key" + i);
+        }
+
+        KVSnapshot snapshot = store.snapshot(new File(store.getfileName() + "_snapshotTest"));
+        for (int i = 0; i < 300; i++) {
+            store.upsert("key" + i, "changed" + i);
+        }
+        store.upsert("newKey", "newValue");
+        store.deleteData(new String[]{"00000000000000000000000000000000", "80000000000000000000000000000000"});
+        assertEquals(expected, content(snapshot));
+        store.clearStorage();
+        assertEquals(expected, content(snapshot));
+
+        File dataFile = new File(restored.getfileName() + "~");
+        try (OutputStream out = new FileOutputStream(dataFile)) {
+            assertEquals(expected.size(), snapshot.writeTo(out, null));
+        }
+        restored.mergeData(dataFile);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(expected.get("key" + i), restored.get("key" + i));
+        }
+        snapshot.close();
+        assertFalse(snapshot.getDir().exists());
+        restored.clearStorage();
+    }
+
+    @Test
+    public void testIterateStore() throws Exception {
+        checkSnapshot(new KVIterateStore("snapshotIterate", true, KVBinaryFormat.INSTANCE),
+                new KVIterateStore("snapshotIterateRestored", true, KVBinaryFormat.INSTANCE));
+    }
+
+    @Test
+    public void testSegmentedStore() throws Exception {
+        checkSnapshot(new KVSegmentedStore("snapshotSegmented", DIR, 2),
+                new KVSegmentedStore("snapshotSegmentedRestored", DIR, 2));
+    }
+
+    @Test
+    public void testSplitStore() throws Exception {
+        KVSplitStore store = new KVSplitStore(new KVSegmentedStore("snapshotSplit", DIR, 2),
+                new KVIterateStore("snapshotSplitSql", DIR, true, KVBinaryFormat.INSTANCE));
+        checkSnapshot(store, new KVSplitStore(new KVSegmentedStore("snapshotSplitRestored", DIR, 2),
+                new KVIterateStore("snapshotSplitRestoredSql", DIR, true, KVBinaryFormat.INSTANCE)));
+
+        // SQL rows are part of the snapshot too
+        String row = ECSNode.calcHash("table");
+        store.put("key", "value");
+        store.getSqlRows().appendEntry(new KVIterateStore.KVEntry(row, "{}"));
+        try (KVSnapshot snapshot = store.snapshot(new File(store.getfileName() + "_snapshotTest"))) {
+            Map<String, String> expected = new HashMap<>();
+            expected.put("key", "value");
+            expected.put(row, "{}");
+            assertEquals(expected, content(snapshot));
+        }
+        store.clearStorage();
+    }
+
+    @Test
+    public void testLogStore() throws Exception {
+        // small segments so the snapshot links several of them
+        KVLogStore store = new KVLogStore("snapshotLog", DIR, 2 * 1024, 0.5);
+        KVLogStore restored = new KVLogStore("snapshotLogRestored", DIR, 2 * 1024, 0.5);
+        checkSnapshot(store, restored);
+        store.close();
+        restored.close();
+    }
+
+    @Test
+    public void testLsmStore() throws Exception {
+        checkSnapshot(new KVLsmStore("snapshotLsm", DIR, 2 * 1024, 4 * 1024),
+                new KVLsmStore("snapshotLsmRestored", DIR, 2 * 1024, 4 * 1024));
+    }
+
+    @Test
+    public void testValueLogStore() throws Exception {
+        KVValueLogStore store = new KVValueLogStore("snapshotValueLog", DIR, KVBinaryFormat.INSTANCE, 1024, 0.5);
+        KVValueLogStore restored = new KVValueLogStore("snapshotValueLogRestored", DIR,
+                KVBinaryFormat.INSTANCE, 1024, 0.5);
+        checkSnapshot(store, restored);
+        store.close();
+        restored.close();
+    }
+
+    @Test
+    public void testServerSnapshot() throws Exception {
+        KVServer server = new KVServer(0, 10, "LRU", "snapshotServer", "Log");
+        server.clearStorage();
+        for (int i = 0; i < 50; i++) {
+            server.putKV("key" + i, "value" + i);
+        }
+        File backup = new File(DIR + "/snapshotServer.backup");
+        try (KVSnapshot snapshot = server.snapshot();
+             OutputStream out = new FileOutputStream(backup)) {
+            assertEquals(50, snapshot.writeTo(out, null));
+        }
+
+        server.clearStorage();
+        assertNull(server.getKV("key1"));
+        server.mergeData(backup);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value" + i, server.getKV("key" + i));
+        }
+        server.clearStorage();
+        server.close();
+    }
+}
@@ -0,0 +1,97 @@
+package testing;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.cache.AbstractKVCache;
+import server.cache.KVCache;
+import server.cache.KVFrequencySketch;
+import server.cache.KVLRUCache;
+import server.cache.KVTinyLFUCache;
+
+public class TinyLFUCacheTest extends TestCase {
+    private static final int CACHE_SIZE = 100;
+    private static final int HOT_KEYS = 50;
+
+    /**
+     * Read like the server: a miss puts the key
+     */
+    private static void read(KVCache cache, String key) {
+        if (cache.get(key) == null) {
+            cache.put(key, "value-" + key);
+        }
+    }
+
+    /**
+     * Read the hot keys a few times, then scan once over many other keys
+     *
+     * @return hot keys still cached after the scan
+     */
+    private static int hotKeysAfterScan(KVCache cache) {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                read(cache, "hot" + i);
+            }
+        }
+        for (int i = 0; i < 10 * CACHE_SIZE; i++) {
+            read(cache, "scan" + i);
+        }
+        int cached = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            if (cache.containsKey("hot" + i)) cached++;
+        }
+        return cached;
+    }
+
+    @Test
+    public void testSketch() {
+        KVFrequencySketch sketch = new KVFrequencySketch(1000);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("often");
+        }
+        sketch.increment("once");
+        assertEquals(5, sketch.frequency("often"));
+        assertEquals(1, sketch.frequency("once"));
+        for (int i = 0; i < 2 * KVFrequencySketch.MAX_COUNT; i++) {
+            sketch.increment("often");
+        }
+        assertEquals(KVFrequencySketch.MAX_COUNT, sketch.frequency("often"));
+        sketch.reset();
+        assertEquals(KVFrequencySketch.MAX_COUNT / 2, sketch.frequency("often"));
+        assertEquals(0, sketch.frequency("once"));
+    }
+
+    @Test
+    public void testScanResistance() {
+        assertEquals(0, hotKeysAfterScan(new KVLRUCache(CACHE_SIZE)));
+        KVTinyLFUCache cache = new KVTinyLFUCache(CACHE_SIZE);
+        // the sketch ages during the scan, so a few hot keys may lose against scanned ones
+        assertTrue(hotKeysAfterScan(cache) >= HOT_KEYS * 9 / 10);
+        assertEquals("value-hot0", cache.get("hot0"));
+    }
+
+    @Test
+    public void testBoundsAndRemoval() {
+        KVTinyLFUCache cache = new KVTinyLFUCache(CACHE_SIZE);
+        long used = 0;
+        for (int i = 0; i < 3 * CACHE_SIZE; i++) {
+            read(cache, "key" + (i % (2 * CACHE_SIZE)));
+        }
+        int cached = 0;
+        for (int i = 0; i < 2 * CACHE_SIZE; i++) {
+            if (cache.containsKey("key" + i)) {
+                cached++;
+                used += AbstractKVCache.weigh("key" + i, "value-key" + i);
+            }
+        }
+        assertEquals(CACHE_SIZE, cached);
+        assertEquals(used, cache.getUsedBytes());
+
+        cache.put("new", "value");
+        assertEquals("value", cache.get("new"));
+        cache.put("new", "null");
+        assertFalse(cache.containsKey("new"));
+        cache.clear();
+        assertEquals(0, cache.getUsedBytes());
+        assertEquals(0, cache.getFrequency("key1"));
+    }
+}
@@ -0,0 +1,140 @@
+package testing;
+
+import ecs.ECSNode;
+import junit.framework.TestCase;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import server.KVBinaryFormat;
+import server.KVIterateStore;
+import server.KVPersistentStore.PutResult;
+import server.KVValueLogStore;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ValueLogStoreTest extends TestCase {
+    private static final String DIR = "./res";
+    private static final String STORE_NAME = "valueLogStoreTest";
+    private static final String PADDING = new String(new char[500]).replace('\0', '-');
+
+    private KVValueLogStore open(String name) {
+        // small garbage threshold so the random operations trigger compactions
+        return new KVValueLogStore(name, DIR, KVBinaryFormat.INSTANCE, 64 * 1024, 0.5);
+    }
+
+    private void checkContent(KVValueLogStore store, Map<String, String> model) throws Exception {
+        for (int i = 0; i < 300; i++) {
+            String key = "key" + i;
+            assertEquals(model.get(key), store.get(key));
+            assertEquals(model.containsKey(key), store.inStorage(key));
+        }
+    }
+
+    @Test
+    public void test01RandomOperations() throws Exception {
+        KVValueLogStore store = open(STORE_NAME);
+        store.clearStorage();
+        Map<String, String> model = new HashMap<>();
+        Random random = new Random(419);
+        long maxValueLog = 0;
+        for (int i = 0; i < 3000; i++) {
+            String key = "key" + random.nextInt(300);
+            if (random.nextInt(4) == 0) {
+                PutResult result = store.upsert(key, "null");
+                assertEquals(model.containsKey(key) ? PutResult.DELETED : PutResult.NOT_FOUND, result);
+                model.remove(key);
+            } else {
+                String value = "value " + i + PADDING;
+                PutResult result = store.upsert(key, value);
+                assertEquals(model.containsKey(key) ? PutResult.UPDATED : PutResult.INSERTED, result);
+                model.put(key, value);
+            }
+            maxValueLog = Math.max(maxValueLog, store.getValueLogSize());
+        }
+        checkContent(store, model);
+
+        // compaction keeps the value log bounded, the keys stay far smaller than the values
+        assertTrue(maxValueLog < 3000L * PADDING.length() / 2);
+        assertTrue(store.getKeyFileSize() * 4 < store.getValueLogSize());
+
+        store.sync();
+        store.close();
+        KVValueLogStore reopened = open(STORE_NAME);
+        checkContent(reopened, model);
+
+        reopened.compact();
+        assertEquals(0, reopened.getGarbageSize());
+        checkContent(reopened, model);
+        reopened.close();
+        checkContent(open(STORE_NAME), model);
+    }
+
+    @Test
+    public void test02TornTail() throws Exception {
+        KVValueLogStore store = open(STORE_NAME);
+        store.clearStorage();
+        store.put("a", "1");
+        store.put("b", "2");
+        store.sync();
+        store.close();
+
+        // a crash while appending the last pointer of the key file
+        File keyFile = new File(DIR + "/" + STORE_NAME + "_0" + KVValueLogStore.KEY_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(keyFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        KVValueLogStore reopened = open(STORE_NAME);
+        assertEquals("1", reopened.get("a"));
+        assertNull(reopened.get("b"));
+        reopened.put("c", "3");
+        reopened.close();
+
+        reopened = open(STORE_NAME);
+        assertEquals("3", reopened.get("c"));
+        // left over by a compaction interrupted before its key file was renamed
+        File stray = new File(DIR + "/" + STORE_NAME + "_1" + KVValueLogStore.VALUE_SUFFIX);
+        assertTrue(stray.createNewFile());
+        reopened.close();
+        reopened = open(STORE_NAME);
+        assertFalse(stray.exists());
+        assertEquals("1", reopened.get("a"));
+        reopened.clearStorage();
+    }
+
+    @Test
+    public void test03MoveData() throws Exception {
+        String[] hashRange = new String[]{
+                "358343938402ebb5110716c6e836f5a2",
+                "a98109598267087dfc364fae4cf24578"
+        };
+        KVValueLogStore sender = open(STORE_NAME);
+        KVValueLogStore receiver = open(STORE_NAME + "Receiver");
+        sender.clearStorage();
+        receiver.clearStorage();
+        for (int i = 0; i < 200; i++) {
+            sender.put("k" + i, "v" + i);
+        }
+
+        sender.preMoveData(hashRange);
+        File received = new File(receiver.getfileName() + "~");
+        assertTrue(new File(sender.getfileName() + KVIterateStore.MOVE_SUFFIX).renameTo(received));
+        receiver.mergeData(received);
+        sender.afterMoveData(true);
+
+        for (int i = 0; i < 200; i++) {
+            String key = "k" + i;
+            boolean moved = ECSNode.isKeyInRange(key, hashRange);
+            assertEquals(moved ? null : "v" + i, sender.get(key));
+            assertEquals(moved ? "v" + i : null, receiver.get(key));
+        }
+        sender.clearStorage();
+        receiver.clearStorage();
+        sender.close();
+        receiver.close();
+    }
+}
@@ -0,0 +1,126 @@
+package testing;
+
+import app_kvServer.KVServer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.KVIterateStore;
+import server.KVWriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteAheadLogTest extends TestCase {
+    private static final File LOG_FILE = new File("./res/walTest" + KVWriteAheadLog.WAL_SUFFIX);
+
+    @Test
+    public void testReplayAfterCrash() throws Exception {
+        LOG_FILE.delete();
+        KVWriteAheadLog wal = new KVWriteAheadLog(LOG_FILE, KVWriteAheadLog.Durability.SYNC);
+        for (int i = 0; i < 20; i++) {
+            wal.sync(wal.append("k" + i, "v" + i));
+        }
+        wal.sync(wal.append("k3", "changed"));
+        wal.sync(wal.append("k4", "null"));
+        // deleting a key never stored is skipped on replay
+        wal.sync(wal.append("missing", "null"));
+
+        // the process dies before the puts reach the store, with a torn record at the end
+        try (RandomAccessFile raf = new RandomAccessFile(LOG_FILE, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{1, 2, 3});
+        }
+
+        KVIterateStore store = new KVIterateStore("walTestStore", true);
+        store.clearStorage();
+        KVWriteAheadLog recovered = new KVWriteAheadLog(LOG_FILE, KVWriteAheadLog.Durability.SYNC);
+        assertEquals(23, recovered.replay(store));
+        assertEquals("changed", store.get("k3"));
+        assertNull(store.get("k4"));
+        assertEquals("v19", store.get("k19"));
+
+        // the torn record is dropped and new records are appended after the valid ones
+        recovered.sync(recovered.append("k20", "v20"));
+        store.clearStorage();
+        assertEquals(24, new KVWriteAheadLog(LOG_FILE, KVWriteAheadLog.Durability.NONE).replay(store));
+        assertEquals("v20", store.get("k20"));
+
+        recovered.checkpoint();
+        assertEquals(0, recovered.size());
+        store.clearStorage();
+        assertEquals(0, new KVWriteAheadLog(LOG_FILE, KVWriteAheadLog.Durability.NONE).replay(store));
+        store.clearStorage();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        LOG_FILE.delete();
+        KVWriteAheadLog wal = new KVWriteAheadLog(LOG_FILE, KVWriteAheadLog.Durability.BATCH);
+        Object storeLock = new Object();
+        int threadCount = 8, putsPerThread = 50;
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int id = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < putsPerThread; i++) {
+                        long lsn;
+                        synchronized (storeLock) {
+                            lsn = wal.append("t" + id + "k" + i, "v" + i);
+                        }
+                        wal.sync(lsn);
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertTrue(errors.isEmpty());
+        assertTrue(wal.getSyncCount() <= threadCount * putsPerThread);
+        assertTrue(wal.getSyncCount() > 0);
+
+        KVIterateStore store = new KVIterateStore("walTestStore", true);
+        store.clearStorage();
+        assertEquals(threadCount * putsPerThread,
+                new KVWriteAheadLog(LOG_FILE, KVWriteAheadLog.Durability.NONE).replay(store));
+        assertEquals("v49", store.get("t7k49"));
+        store.clearStorage();
+        LOG_FILE.delete();
+    }
+
+    @Test
+    public void testServerCheckpoint() throws Exception {
+        KVServer server = new KVServer(0, 10, "FIFO", "walTestServer");
+        server.clearStorage();
+        KVWriteAheadLog wal = server.getWriteAheadLog();
+        assertNotNull(wal);
+        assertEquals(KVWriteAheadLog.Durability.BATCH, wal.getDurability());
+
+        server.putKV("hello", "world");
+        assertTrue(wal.size() > 0);
+        assertEquals("world", server.getKV("hello"));
+
+        // clearing the store truncates the log so the put is not replayed
+        server.clearStorage();
+        assertEquals(0, wal.size());
+        KVServer reopened = new KVServer(0, 10, "FIFO", "walTestServer");
+        assertNull(reopened.getKV("hello"));
+
+        // closing the server releases the log file
+        server.close();
+        try {
+            wal.checkpoint();
+            fail("log still open after close");
+        } catch (IOException e) {
+            // expected, the channel is closed
+        }
+        reopened.close();
+    }
+}